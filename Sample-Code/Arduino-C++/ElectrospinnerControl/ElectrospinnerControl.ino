@@ -24,8 +24,26 @@ SimpleTimer timer;
 // Value for timer
 double value = 0;
 
-// Place value variable
-double place = 0;
+// Binary command frames sent by the Raspberry Pi:
+// [0xA5][opcode][device id][sequence][value high][value low][CRC-8]
+// Every accepted frame is answered with an ACK frame carrying the
+// same sequence number.
+const byte FRAME_SYNC = 0xA5;
+const byte FRAME_ACK = 0x06;
+const int FRAME_LENGTH = 7;
+const byte DEVICE_ID = 1;
+byte frame[FRAME_LENGTH];
+int frameIndex = 0;
+
+// Recently accepted sequence numbers. The Pi resends a frame whose ACK
+// was lost; a repeat seen within REPEAT_MILLIS of its command finishing
+// is acknowledged again without running the command twice.
+const int RECENT_FRAMES = 16;
+const unsigned long REPEAT_MILLIS = 1000;
+byte recentSequence[RECENT_FRAMES];
+unsigned long recentTime[RECENT_FRAMES];
+int recentCount = 0;
+int recentNext = 0;
 
 // Variables for controlling the tone
 int melody[] = { 262, 196, 196, 220, 196, 0, 247, 262 };
@@ -45,31 +63,46 @@ void setup() {
 
 void loop() {
   // Check for command from Raspberry Pi
-  if ( Serial.available()) {
-    // Value sent by Raspberry Pi
-    int data = Serial.read();
-    
-    if(data >= 48 && data <= 57){
-      // Increment value which will either be speed or step size
-      data = data - 48;
-      value += pow((double)data,place);
-      place++;
-    }else if(data == 117){
-      pumpUp();
-    }else if(data == 100){
-      pumpDown();
-    }else if(data == 115){
-      pumpStop();
-    }else if(data == 116){
-      millisec = value*60*1000;
-      pumpDown();
-      setUpTimer();
-      timer.run();
-      pumpStop();
-      // Reset Conditional Variables
-      value = 0;
-      place = 0;
+  if(Serial.available()){
+    byte data = Serial.read();
+
+    // Skip bytes until the start of a frame
+    if(frameIndex == 0 && data != FRAME_SYNC){
+      return;
     }
+    frame[frameIndex++] = data;
+
+    if(frameIndex == FRAME_LENGTH){
+      frameIndex = 0;
+      // Drop corrupt frames and frames meant for another device
+      if(crc8(frame + 1, FRAME_LENGTH - 2) == frame[FRAME_LENGTH - 1] && frame[2] == DEVICE_ID){
+        value = ((unsigned int)frame[4] << 8) | frame[5];
+        // Acknowledge before running: a jog blocks for longer than the
+        // Pi waits for an ACK
+        sendAck(frame[3]);
+        if(!isRepeat(frame[3])){
+          runCommand(frame[1]);
+          stampRepeat(frame[3]);
+        }
+      }
+    }
+  }
+}
+// Carry out the command named by the frame's opcode
+void runCommand(byte opcode){
+  if(opcode == 117){
+    pumpUp();
+  }else if(opcode == 100){
+    pumpDown();
+  }else if(opcode == 115){
+    pumpStop();
+  }else if(opcode == 116){
+    millisec = value*60*1000;
+    pumpDown();
+    setUpTimer();
+    timer.run();
+    pumpStop();
+    value = 0;
   }
 }
 /*******************************************************
@@ -118,3 +151,50 @@ void stopTone(){
     delay(50); // Short delay between notes.
   }
 }
+/***********************************************
+ *************** FRAME PROTOCOL ****************
+ ***********************************************/
+// True if the sequence number was accepted recently; otherwise
+// remembers it
+bool isRepeat(byte sequence){
+  unsigned long now = millis();
+  for(int i = 0; i < recentCount; i++){
+    if(recentSequence[i] == sequence && now - recentTime[i] < REPEAT_MILLIS){
+      return true;
+    }
+  }
+  recentSequence[recentNext] = sequence;
+  recentTime[recentNext] = now;
+  recentNext = (recentNext + 1) % RECENT_FRAMES;
+  if(recentCount < RECENT_FRAMES){
+    recentCount++;
+  }
+  return false;
+}
+// Restarts the repeat memory of a sequence number once its command has
+// finished, so resends that queued up while it ran are still repeats
+void stampRepeat(byte sequence){
+  unsigned long now = millis();
+  for(int i = 0; i < recentCount; i++){
+    if(recentSequence[i] == sequence){
+      recentTime[i] = now;
+    }
+  }
+}
+// Acknowledge a frame back to the Raspberry Pi
+void sendAck(byte sequence){
+  byte ack[FRAME_LENGTH] = {FRAME_SYNC, FRAME_ACK, DEVICE_ID, sequence, 0, 0, 0};
+  ack[FRAME_LENGTH - 1] = crc8(ack + 1, FRAME_LENGTH - 2);
+  Serial.write(ack, FRAME_LENGTH);
+}
+// CRC-8 with polynomial 0x07, matches FrameCodec on the Pi
+byte crc8(const byte *data, int length){
+  byte crc = 0;
+  for(int i = 0; i < length; i++){
+    crc ^= data[i];
+    for(int bit = 0; bit < 8; bit++){
+      crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : (crc << 1);
+    }
+  }
+  return crc;
+}
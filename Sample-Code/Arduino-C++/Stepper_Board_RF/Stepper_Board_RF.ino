@@ -33,8 +33,26 @@ double sliderInterval = 1.92*stepsPerRevolution;
 // Value of speed, step-rate, or timer
 double value = 0;
 
-// Place value variable
-double place = 0;
+// Binary command frames sent by the Raspberry Pi:
+// [0xA5][opcode][device id][sequence][value high][value low][CRC-8]
+// Every accepted frame is answered with an ACK frame carrying the
+// same sequence number.
+const byte FRAME_SYNC = 0xA5;
+const byte FRAME_ACK = 0x06;
+const int FRAME_LENGTH = 7;
+const byte DEVICE_ID = 2;
+byte frame[FRAME_LENGTH];
+int frameIndex = 0;
+
+// Recently accepted sequence numbers. The Pi resends a frame whose ACK
+// was lost; a repeat seen within REPEAT_MILLIS of its command finishing
+// is acknowledged again without running the command twice.
+const int RECENT_FRAMES = 16;
+const unsigned long REPEAT_MILLIS = 1000;
+byte recentSequence[RECENT_FRAMES];
+unsigned long recentTime[RECENT_FRAMES];
+int recentCount = 0;
+int recentNext = 0;
 
 void setup() {
   // Initial parameters to be set at boot
@@ -47,49 +65,60 @@ void setup() {
 
 void loop() {
   if(Serial.available()){
-    int data = Serial.read();
-    
-    if(data >= 48 && data <= 57){
-      // Increment value which will either be speed or step size
-      data = data - 48;
-      value += pow((double)data,place);
-      place++;
-    }
-    else if(data == 114)
-    {// Set steps per revolution
-      stepsPerRevolution = value;
-      // Reset conditional variables
-      value = 0;
-      place = 0;
-    }
-    else if(data == 115){
-      // Set speed of slider
-      rpm = value;
-      myMotor->setSpeed(rpm);
-      // Reset conditional variables
-      value = 0;
-      place = 0;
-    }
-    else if(data == 116){
-      // Set time of acqusiition
-      timerElectro = value*60*1000;
-      // Start acquisition
-      setUpTimer();
-      timer.run();
-      releaseMotor();
-      // Reset conditional variables
-      value = 0;
-      place = 0;
+    byte data = Serial.read();
+
+    // Skip bytes until the start of a frame
+    if(frameIndex == 0 && data != FRAME_SYNC){
+      return;
     }
-    else if(data == 76){
-      // Move slider left
-     stepperMoveLeft(); 
-    }else if(data == 82){
-     // Move slider right
-     stepperMoveRight();   
+    frame[frameIndex++] = data;
+
+    if(frameIndex == FRAME_LENGTH){
+      frameIndex = 0;
+      // Drop corrupt frames and frames meant for another device
+      if(crc8(frame + 1, FRAME_LENGTH - 2) == frame[FRAME_LENGTH - 1] && frame[2] == DEVICE_ID){
+        value = ((unsigned int)frame[4] << 8) | frame[5];
+        // Acknowledge before running: a jog blocks for longer than the
+        // Pi waits for an ACK
+        sendAck(frame[3]);
+        if(!isRepeat(frame[3])){
+          runCommand(frame[1]);
+          stampRepeat(frame[3]);
+        }
+      }
     }
   }
 }
+// Carry out the command named by the frame's opcode
+void runCommand(byte opcode){
+  if(opcode == 114)
+  {// Set steps per revolution
+    stepsPerRevolution = value;
+    value = 0;
+  }
+  else if(opcode == 115){
+    // Set speed of slider
+    rpm = value;
+    myMotor->setSpeed(rpm);
+    value = 0;
+  }
+  else if(opcode == 116){
+    // Set time of acqusiition
+    timerElectro = value*60*1000;
+    // Start acquisition
+    setUpTimer();
+    timer.run();
+    releaseMotor();
+    value = 0;
+  }
+  else if(opcode == 76){
+    // Move slider left
+   stepperMoveLeft(); 
+  }else if(opcode == 82){
+   // Move slider right
+   stepperMoveRight();   
+  }
+}
 void stepperMoveLeft(){
   myMotor->step(stepsPerRevolution,FORWARD,DOUBLE);
 }
@@ -109,3 +138,50 @@ void setUpTimer(){
 void releaseMotor(){
   myMotor->release();
 }
+/***********************************************
+ *************** FRAME PROTOCOL ****************
+ ***********************************************/
+// True if the sequence number was accepted recently; otherwise
+// remembers it
+bool isRepeat(byte sequence){
+  unsigned long now = millis();
+  for(int i = 0; i < recentCount; i++){
+    if(recentSequence[i] == sequence && now - recentTime[i] < REPEAT_MILLIS){
+      return true;
+    }
+  }
+  recentSequence[recentNext] = sequence;
+  recentTime[recentNext] = now;
+  recentNext = (recentNext + 1) % RECENT_FRAMES;
+  if(recentCount < RECENT_FRAMES){
+    recentCount++;
+  }
+  return false;
+}
+// Restarts the repeat memory of a sequence number once its command has
+// finished, so resends that queued up while it ran are still repeats
+void stampRepeat(byte sequence){
+  unsigned long now = millis();
+  for(int i = 0; i < recentCount; i++){
+    if(recentSequence[i] == sequence){
+      recentTime[i] = now;
+    }
+  }
+}
+// Acknowledge a frame back to the Raspberry Pi
+void sendAck(byte sequence){
+  byte ack[FRAME_LENGTH] = {FRAME_SYNC, FRAME_ACK, DEVICE_ID, sequence, 0, 0, 0};
+  ack[FRAME_LENGTH - 1] = crc8(ack + 1, FRAME_LENGTH - 2);
+  Serial.write(ack, FRAME_LENGTH);
+}
+// CRC-8 with polynomial 0x07, matches FrameCodec on the Pi
+byte crc8(const byte *data, int length){
+  byte crc = 0;
+  for(int i = 0; i < length; i++){
+    crc ^= data[i];
+    for(int bit = 0; bit < 8; bit++){
+      crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : (crc << 1);
+    }
+  }
+  return crc;
+}
@@ -0,0 +1,13 @@
+/*
+ * AcquisitionListener follows the progress of an acquisition run. It is
+ * called on the controller's scheduler thread.
+ */
+public interface AcquisitionListener {
+
+	void acquisitionStarted(int minutes);
+
+	// Called about once a second with the whole seconds left in the run
+	void acquisitionTick(int secondsLeft);
+
+	void acquisitionFinished();
+}
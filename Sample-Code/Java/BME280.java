@@ -0,0 +1,69 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * BME280 reads a Bosch BME280 (temperature, humidity and pressure) through
+ * the Linux IIO driver, so no helper process is involved. With the sensor on
+ * the Pi's I2C bus, enable the driver with
+ *
+ *     dtoverlay=i2c-sensor,bme280
+ *
+ * in /boot/config.txt and the readings appear as files under
+ * /sys/bus/iio/devices/iio:device0. Temperature is reported in degrees
+ * Fahrenheit like the DHT11's, humidity as a percentage and pressure in hPa.
+ */
+public class BME280 implements Sensor {
+	public static final String DEFAULT_PATH = "/sys/bus/iio/devices/iio:device0";
+	public static final SampleSchema SCHEMA = new SampleSchema("temperature", "F", "humidity", "%", "pressure",
+			"hPa");
+
+	private String name;
+	private File dir;
+	private long periodMillis, budgetMillis;
+
+	// Constructor
+	public BME280(String name, String path, long periodMillis, long budgetMillis) {
+		this.name = name;
+		this.dir = new File(path);
+		this.periodMillis = periodMillis;
+		this.budgetMillis = budgetMillis;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public SampleSchema getSchema() {
+		return SCHEMA;
+	}
+
+	public long getPeriodMillis() {
+		return periodMillis;
+	}
+
+	public long getBudgetMillis() {
+		return budgetMillis;
+	}
+
+	public SensorSample read() throws IOException {
+		// The driver reports millidegrees Celsius, kPa and milli-percent
+		double celsius = value("in_temp_input") / 1000.0;
+		double humidity = value("in_humidityrelative_input") / 1000.0;
+		double pressure = value("in_pressure_input") * 10.0;
+		return new SensorSample(System.currentTimeMillis(), SCHEMA, celsius * 9 / 5 + 32, humidity, pressure);
+	}
+
+	private double value(String file) throws IOException {
+		String text = new String(Files.readAllBytes(new File(dir, file).toPath()), StandardCharsets.US_ASCII).trim();
+		try {
+			return Double.parseDouble(text);
+		} catch (NumberFormatException e) {
+			throw new IOException(name + ": cannot read " + file + ": " + text);
+		}
+	}
+
+	public void close() {
+	}
+}
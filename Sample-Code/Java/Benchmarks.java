@@ -0,0 +1,281 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Benchmarks times the control path of the GUI: encoding and sending device
+ * commands, parsing sensor output, the exec-and-capture round trip of a
+ * one-shot helper script, and formatting the clock and timer labels.
+ *
+ *     java Benchmarks [-o results.json] [-c baseline.json] [-i iterations] [filter]
+ *
+ * Every benchmark is warmed up and then measured over a number of one second
+ * iterations, reporting the average time per operation and its 99.9%
+ * confidence error. Results are written as JSON in the same shape JMH uses
+ * (benchmark, mode, primaryMetric.score/scoreError/scoreUnit), so runs can be
+ * kept and diffed. With -c the run is compared against an earlier result file
+ * and any benchmark that got more than 10% slower is reported as a
+ * regression, which also sets a non-zero exit code.
+ */
+public class Benchmarks {
+	private static final long ITERATION_NANOS = 1000000000L;
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final double REGRESSION_THRESHOLD = 0.10;
+
+	// Results are folded in here so the JIT cannot drop the measured work
+	static volatile long sink;
+
+	/*
+	 * Case is one benchmark. op performs a single operation.
+	 */
+	static abstract class Case {
+		String name;
+
+		Case(String name) {
+			this.name = name;
+		}
+
+		void setUp() throws Exception {
+		}
+
+		abstract void op() throws Exception;
+
+		void tearDown() throws Exception {
+		}
+	}
+
+	static class Result {
+		String name;
+		String unit = "ns/op";
+		double score, error;
+		double[] raw;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String output = null, baseline = null, filter = "";
+		int iterations = 5;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-o")) {
+				output = args[++i];
+			} else if (args[i].equals("-c")) {
+				baseline = args[++i];
+			} else if (args[i].equals("-i")) {
+				iterations = Integer.parseInt(args[++i]);
+			} else {
+				filter = args[i];
+			}
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		for (Case c : cases()) {
+			if (c.name.contains(filter)) {
+				Result r = measure(c, iterations);
+				results.add(r);
+				System.out.println(String.format("%-40s %14.1f ns/op  +- %.1f", r.name, r.score, r.error));
+			}
+		}
+		if (output != null) {
+			writeJson(results, iterations, output);
+		}
+		if (baseline != null && compare(results, readScores(baseline)) > 0) {
+			System.exit(2);
+		}
+	}
+
+	static List<Case> cases() throws IOException {
+		List<Case> cases = new ArrayList<Case>();
+
+		final LoopbackTransport link = new LoopbackTransport(1 << 16);
+		final DeviceRegistry registry = new DeviceRegistry(new LinkPool(new TransportFactory() {
+			public DeviceTransport createTransport(String name) {
+				return link;
+			}
+		}));
+		registry.load(DeviceRegistry.loadConfig());
+
+		// 1. Command encoding and write for each device's vocabulary
+		for (final DeviceChannel device : registry.getDevices()) {
+			cases.add(new Case("sendCommand." + device.getName()) {
+				int i = 0;
+
+				void op() throws IOException {
+					device.sendCommand(0, i++ & 0x3FF);
+				}
+			});
+		}
+
+		// 2. Sensor output parsing, one-shot script format and stream format
+		cases.add(new Case("dht11.parseReading") {
+			void op() {
+				sink += (long) DHT11.parseReading("72.5  48.0\n", 0).getHumidity();
+			}
+		});
+		final byte[] line = "1700000000000 72.5 48.0".getBytes();
+		cases.add(new Case("dht11.parseStreamLine") {
+			void op() {
+				sink += SensorStreamReader.parseLine(line, line.length).getTimestamp();
+			}
+		});
+
+		// 3. Process exec-and-capture round trip against a stub helper
+		cases.add(new Case("exec.roundTrip") {
+			File stub;
+			DHT11 dht11;
+
+			void setUp() throws IOException {
+				stub = File.createTempFile("dht11-stub", ".sh");
+				PrintWriter out = new PrintWriter(new FileWriter(stub));
+				out.println("#!/bin/sh");
+				out.println("echo '72.5  48.0'");
+				out.close();
+				stub.setExecutable(true);
+				dht11 = new DHT11("sh " + stub.getAbsolutePath());
+			}
+
+			void op() {
+				dht11.readings();
+				sink += (long) dht11.getHumidiy();
+			}
+
+			void tearDown() {
+				stub.delete();
+			}
+		});
+
+		// 4. Clock and timer label formatting
+		cases.add(new Case("label.dateTime") {
+			void op() {
+				sink += CardioPanel.formatDateTime(new GregorianCalendar()).length();
+			}
+		});
+		cases.add(new Case("label.timer") {
+			int i = 0;
+
+			void op() {
+				i++;
+				sink += CardioPanel.formatTimer((i / 60) % 60, i % 60).length();
+			}
+		});
+		return cases;
+	}
+
+	static Result measure(Case c, int iterations) throws Exception {
+		c.setUp();
+		try {
+			for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+				iteration(c);
+			}
+			double[] raw = new double[iterations];
+			for (int i = 0; i < iterations; i++) {
+				raw[i] = iteration(c);
+			}
+			Result r = new Result();
+			r.name = c.name;
+			r.raw = raw;
+			double sum = 0;
+			for (double v : raw) {
+				sum += v;
+			}
+			r.score = sum / raw.length;
+			double var = 0;
+			for (double v : raw) {
+				var += (v - r.score) * (v - r.score);
+			}
+			// 3.29 standard errors is a 99.9% interval for a normal distribution
+			r.error = raw.length > 1 ? 3.29 * Math.sqrt(var / (raw.length - 1)) / Math.sqrt(raw.length) : 0;
+			return r;
+		} finally {
+			c.tearDown();
+		}
+	}
+
+	// Runs operations for about a second and returns nanoseconds per op
+	private static double iteration(Case c) throws Exception {
+		long ops = 0;
+		long start = System.nanoTime();
+		long now;
+		do {
+			for (int i = 0; i < 64; i++) {
+				c.op();
+			}
+			ops += 64;
+			now = System.nanoTime();
+		} while (now - start < ITERATION_NANOS);
+		return (double) (now - start) / ops;
+	}
+
+	static void writeJson(List<Result> results, int iterations, String path) throws IOException {
+		writeJson(results, "avgt", WARMUP_ITERATIONS, iterations, path);
+	}
+
+	static void writeJson(List<Result> results, String mode, int warmups, int iterations, String path)
+			throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(path));
+		out.println("[");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			out.println("    {");
+			out.println("        \"benchmark\" : \"" + r.name + "\",");
+			out.println("        \"mode\" : \"" + mode + "\",");
+			out.println("        \"warmupIterations\" : " + warmups + ",");
+			out.println("        \"measurementIterations\" : " + iterations + ",");
+			out.println("        \"primaryMetric\" : {");
+			out.println("            \"score\" : " + r.score + ",");
+			out.println("            \"scoreError\" : " + r.error + ",");
+			out.println("            \"scoreUnit\" : \"" + r.unit + "\",");
+			out.println("            \"rawData\" : [ " + Arrays.toString(r.raw) + " ]");
+			out.println("        }");
+			out.println("    }" + (i < results.size() - 1 ? "," : ""));
+		}
+		out.println("]");
+		out.close();
+	}
+
+	// Reads benchmark name -> score from a result file written by writeJson
+	static Map<String, Double> readScores(String path) throws IOException {
+		StringBuilder text = new StringBuilder();
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		String l;
+		while ((l = in.readLine()) != null) {
+			text.append(l).append('\n');
+		}
+		in.close();
+		Map<String, Double> scores = new HashMap<String, Double>();
+		Matcher m = Pattern.compile("\"benchmark\" : \"([^\"]+)\"[^{]*\\{\\s*\"score\" : ([0-9.Ee+-]+)")
+				.matcher(text);
+		while (m.find()) {
+			scores.put(m.group(1), Double.parseDouble(m.group(2)));
+		}
+		return scores;
+	}
+
+	// Prints the change against the baseline and returns the number of regressions
+	static int compare(List<Result> results, Map<String, Double> baseline) {
+		int regressions = 0;
+		System.out.println();
+		for (Result r : results) {
+			Double before = baseline.get(r.name);
+			if (before == null) {
+				continue;
+			}
+			double change = (r.score - before) / before;
+			boolean regressed = change > REGRESSION_THRESHOLD;
+			if (regressed) {
+				regressions++;
+			}
+			System.out.println(String.format("%-40s %+7.1f%%%s", r.name, change * 100, regressed ? "  REGRESSION" : ""));
+		}
+		return regressions;
+	}
+}
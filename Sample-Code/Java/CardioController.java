@@ -0,0 +1,517 @@
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/*
+ * CardioController is the electrospinner's control engine without any user
+ * interface: it owns the devices, the command dispatcher, the DHT11 sensor
+ * and its history, and the acquisition timer. CardioPanel is one client of
+ * it and ControlServer, which serves scripts and the --headless mode, is
+ * another.
+ *
+ * Device operations return a future that completes with true once the device
+ * has taken the command, or false if it is not connected.
+ *
+ * Whether the humidity allows a run is decided by the rig's
+ * HumidityInterlock. When it trips during a run the pump is stopped, and a
+ * recipe is paused until the interlock clears; a timed run, which lives on
+ * the devices and cannot be paused, is aborted. With interlock.action=abort
+ * recipes are aborted too.
+ */
+public class CardioController {
+	// Acquisitions need the humidity within 50% +/- 5% unless configured
+	public static final double HUMIDITY_MIN = 45;
+	public static final double HUMIDITY_MAX = 55;
+
+	private String name;
+	private DeviceRegistry devices;
+	private DeviceChannel pump, slider;
+	private CommandDispatcher dispatcher;
+	private PeriodicScheduler scheduler;
+	private DHT11 dht11;
+	private HumidityInterlock interlock;
+	private SamplingScheduler sampling;
+	private volatile TelemetryExporter exporter;
+	private EnvironmentHistory history = new EnvironmentHistory();
+	private List<AcquisitionListener> listeners = new CopyOnWriteArrayList<AcquisitionListener>();
+	private ScheduledTask timerTask, finishTask;
+	private volatile RecipeRunner recipeRunner;
+	private volatile RunJournal journal;
+	private volatile boolean acquiring = false;
+	// Set once abortAcquisition has stopped the pump for the current run
+	private boolean aborting = false;
+	private boolean sensorsStarted = false;
+	private volatile long acquisitionEnd;
+
+	// Constructor
+	public CardioController() {
+		this(DeviceRegistry.createDefault(), new DHT11());
+	}
+
+	public CardioController(DeviceRegistry devices, DHT11 dht11) {
+		this(null, devices, dht11);
+	}
+
+	/*
+	 * A controller for one named rig. Every rig has its own command and
+	 * scheduler threads, named after it, so rigs never wait on each other.
+	 */
+	public CardioController(String name, DeviceRegistry devices, DHT11 dht11) {
+		this(name, devices, dht11, new PeriodicScheduler((name == null ? "" : name + "-") + "periodic-scheduler"));
+	}
+
+	/*
+	 * A controller on the given scheduler, whose clock it reads the time
+	 * from; with a VirtualScheduler whole acquisitions run in virtual time.
+	 */
+	public CardioController(String name, DeviceRegistry devices, DHT11 dht11, PeriodicScheduler scheduler) {
+		this.name = name;
+		this.devices = devices;
+		this.dht11 = dht11;
+		this.scheduler = scheduler;
+		dht11.setClock(scheduler.getClock());
+		pump = devices.get(DeviceRegistry.PUMP);
+		slider = devices.get(DeviceRegistry.SLIDER);
+		String prefix = name == null ? "" : name + "-";
+		dispatcher = new CommandDispatcher(scheduler.newPipelineExecutor(prefix + "command-dispatcher"),
+				scheduler.newPipelineExecutor(prefix + "command-dispatcher-emergency", Thread.MAX_PRIORITY));
+		interlock = new HumidityInterlock(scheduler.newPipelineExecutor(prefix + "interlock"));
+		interlock.subscribe(new HumidityInterlock.Subscriber<InterlockEvent>() {
+			protected void onItem(InterlockEvent event) {
+				interlockChanged();
+			}
+		});
+		interlock.subscribe(new HumidityInterlock.Subscriber<InterlockEvent>() {
+			protected void onItem(InterlockEvent event) {
+				RunJournal run = journal;
+				if (run != null) {
+					run.interlock(event);
+				}
+			}
+		});
+
+		// Samples reach the journal, history and interlock once the sensor runs
+		dht11.addListener(new SampleListener() {
+			public void sampleReceived(DHT11Sample sample) {
+				RunJournal run = journal;
+				if (run != null) {
+					run.sample(sample);
+				}
+			}
+		});
+		dht11.addListener(history);
+		dht11.addListener(interlock);
+
+		// All periodic work runs on one scheduler, which also owns clean-up
+		sampling = new SamplingScheduler(prefix + "sensor", scheduler);
+		sampling.register(dht11);
+		scheduler.addShutdownHook(new Runnable() {
+			public void run() {
+				stopRecipe();
+				RunJournal unfinished = journal;
+				if (unfinished != null) {
+					unfinished.runEnd(false);
+					unfinished.close();
+				}
+				sampling.stop();
+				interlock.close();
+				TelemetryExporter export = exporter;
+				if (export != null) {
+					export.close();
+				}
+				dispatcher.shutdown();
+				CardioController.this.devices.close();
+			}
+		});
+	}
+
+	/*
+	 * start brings the engine up in the background, so the caller (normally
+	 * the GUI, right after its window is shown) does not wait for it. The
+	 * Bluetooth links are opened on a thread of their own, since an RFCOMM
+	 * connect can take seconds and the scheduler's one thread runs every
+	 * tick; the sensor reader is started on the scheduler once they are.
+	 */
+	public void start() {
+		String prefix = name == null ? "" : name + "-";
+		ExecutorService opener = scheduler.newPipelineExecutor(prefix + "link-opener");
+		opener.execute(new Runnable() {
+			public void run() {
+				devices.getPool().openAll();
+				scheduler.schedule(new Runnable() {
+					public void run() {
+						startSensors();
+					}
+				}, 0, TimeUnit.MILLISECONDS);
+			}
+		});
+		// The open already submitted still runs; the thread ends after it
+		opener.shutdown();
+	}
+
+	// Starts recording the humidity and temperature in the container
+	public synchronized void startSensors() {
+		if (sensorsStarted) {
+			return;
+		}
+		sensorsStarted = true;
+		dht11.startStream();
+		sampling.start();
+	}
+
+	/***************************************************************************************
+	 *********************************** Slider COMMANDS ***********************************
+	 ***************************************************************************************/
+	public CompletableFuture<Boolean> setSpeed(int speed) {
+		return dispatcher.dispatch(slider, 0, speed, CommandDispatcher.Priority.BULK);
+	}
+
+	public CompletableFuture<Boolean> setStep(int step) {
+		return dispatcher.dispatch(slider, 1, step, CommandDispatcher.Priority.BULK);
+	}
+
+	public CompletableFuture<Boolean> jogLeft() {
+		return dispatcher.dispatch(slider, 2, 0);
+	}
+
+	public CompletableFuture<Boolean> jogRight() {
+		return dispatcher.dispatch(slider, 3, 0);
+	}
+
+	/***************************************************************************************
+	 ******************************** Syringe Pump COMMANDS ********************************
+	 ***************************************************************************************/
+	public CompletableFuture<Boolean> pumpUp() {
+		return dispatcher.dispatch(pump, 0, 0);
+	}
+
+	public CompletableFuture<Boolean> pumpDown() {
+		return dispatcher.dispatch(pump, 1, 0);
+	}
+
+	// Stop is an emergency command: it goes ahead of anything queued for the pump
+	public CompletableFuture<Boolean> pumpStop() {
+		return dispatcher.dispatch(pump, 2, 0, CommandDispatcher.Priority.EMERGENCY);
+	}
+
+	/***************************************************************************************
+	 ************************************* ACQUISITION *************************************
+	 ***************************************************************************************/
+	/*
+	 * startAcquisition sends the timed run to the pump and then the slider and
+	 * starts the countdown. It is refused (the future completes with false and
+	 * nothing is sent) while a run is in progress or the humidity is out of
+	 * range.
+	 */
+	public synchronized CompletableFuture<Boolean> startAcquisition(int minutes) {
+		if (acquiring || !isHumidityInRange()) {
+			return CompletableFuture.completedFuture(false);
+		}
+		recipeRunner = null;
+		startTimer(minutes);
+		CompletableFuture<Boolean> pumpAck = dispatcher.dispatch(pump, 3, minutes);
+		CompletableFuture<Boolean> sliderAck = dispatcher.dispatch(slider, 4, minutes);
+		return pumpAck.thenCombine(sliderAck, new BiFunction<Boolean, Boolean, Boolean>() {
+			public Boolean apply(Boolean a, Boolean b) {
+				return a && b;
+			}
+		});
+	}
+
+	/*
+	 * startTimer starts the count down of an acquisition. The end of the run
+	 * is fixed as a deadline on the scheduler's clock when the run starts, and the
+	 * ticks report the time left until that deadline, so the countdown cannot
+	 * drift however late a tick runs. The run itself is finished by a
+	 * one-shot task due exactly at the deadline.
+	 */
+	private void startTimer(int minutes) {
+		startCountdown(TimeUnit.MINUTES.toNanos(minutes));
+		finishTask = scheduler.schedule(new Runnable() {
+			public void run() {
+				finishTimer(true);
+			}
+		}, acquisitionEnd - scheduler.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	private void startCountdown(long durationNanos) {
+		acquisitionEnd = scheduler.nanoTime() + durationNanos;
+		acquiring = true;
+		aborting = false;
+		int minutes = (int) ((durationNanos + 59999999999L) / 60000000000L);
+		openJournal(minutes);
+		for (AcquisitionListener listener : listeners) {
+			listener.acquisitionStarted(minutes);
+		}
+		timerTask = scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				int seconds = getSecondsLeft();
+				for (AcquisitionListener listener : listeners) {
+					listener.acquisitionTick(seconds);
+				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/*
+	 * startRecipe runs a compiled recipe as the acquisition: a RecipeRunner
+	 * sends its steps on their deadlines and the countdown follows the run,
+	 * moving back by any time spent in humidity holds. It is refused on the
+	 * same terms as startAcquisition. The future completes when the run ends,
+	 * with false if it was stopped, a hold timed out or a device was not
+	 * connected; the pump is stopped whenever it ends with false.
+	 */
+	public synchronized CompletableFuture<Boolean> startRecipe(Recipe recipe) {
+		if (acquiring || !isHumidityInRange()) {
+			return CompletableFuture.completedFuture(false);
+		}
+		String prefix = name == null ? "" : name + "-";
+		recipeRunner = new RecipeRunner(recipe, dispatcher, pump, slider, dht11, scheduler, prefix + "recipe");
+		startCountdown(recipe.getDurationNanos());
+		return recipeRunner.start().whenComplete(new BiConsumer<Boolean, Throwable>() {
+			public void accept(Boolean ok, Throwable failure) {
+				recipeFinished(Boolean.TRUE.equals(ok));
+			}
+		});
+	}
+
+	/*
+	 * recipeFinished ends the countdown of a recipe run. A run that failed,
+	 * by a hold timing out, an exception or a device not answering, may
+	 * have left the pump running, so it is stopped as abortAcquisition
+	 * would, unless an abort has stopped it already.
+	 */
+	private synchronized void recipeFinished(boolean ok) {
+		if (!ok && acquiring && !aborting) {
+			pumpStop();
+		}
+		finishTimer(ok);
+	}
+
+	/*
+	 * abortAcquisition ends the run in progress, timed or recipe, and stops
+	 * the pump. The slider finishes its current pass.
+	 */
+	public synchronized void abortAcquisition() {
+		if (!acquiring) {
+			return;
+		}
+		aborting = true;
+		pumpStop();
+		if (recipeRunner != null) {
+			stopRecipe();
+		} else {
+			finishTask.cancel();
+			finishTimer(false);
+		}
+	}
+
+	/*
+	 * interlockChanged acts on the interlock's current state, which may be
+	 * newer than the event that announced the change.
+	 */
+	private synchronized void interlockChanged() {
+		if (!acquiring) {
+			return;
+		}
+		RecipeRunner runner = recipeRunner;
+		if (interlock.isOk()) {
+			if (runner != null) {
+				runner.resume();
+			}
+		} else if (runner != null && interlock.getAction() == HumidityInterlock.Action.PAUSE && runner.tryPause()) {
+			pumpStop();
+		} else {
+			// Timed runs, and recipes that have sent one, cannot be paused
+			abortAcquisition();
+		}
+	}
+
+	// Stops a running recipe; steps already sent are not undone
+	public void stopRecipe() {
+		RecipeRunner runner = recipeRunner;
+		if (runner != null) {
+			runner.cancel();
+		}
+	}
+
+	// The runner of the current or last recipe, or null
+	public RecipeRunner getRecipeRunner() {
+		return recipeRunner;
+	}
+
+	// Loads and compiles a recipe file against this rig's devices
+	public Recipe loadRecipe(String path) throws IOException {
+		return Recipe.load(path, pump, slider);
+	}
+
+	private synchronized void finishTimer(boolean ok) {
+		if (!acquiring) {
+			return;
+		}
+		timerTask.cancel();
+		acquiring = false;
+		closeJournal(ok);
+		for (AcquisitionListener listener : listeners) {
+			listener.acquisitionFinished();
+		}
+	}
+
+	/*
+	 * openJournal starts the run journal for a new acquisition: commands and
+	 * samples are recorded from here until the run finishes. Journals go to
+	 * the directory named by -Dcardio.journal.dir, journal/ by default, as
+	 * <rig>-<yyyyMMdd-HHmmss>. A run goes ahead without a journal if it
+	 * cannot be created.
+	 */
+	private void openJournal(int minutes) {
+		File dir = new File(System.getProperty("cardio.journal.dir", "journal"));
+		String run = (name == null ? RigRegistry.DEFAULT_RIG : name) + "-"
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(scheduler.currentTimeMillis()));
+		try {
+			journal = new RunJournal(dir, run);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		journal.runStart(minutes);
+		pump.setJournal(journal);
+		slider.setJournal(journal);
+	}
+
+	private void closeJournal(boolean ok) {
+		final RunJournal finished = journal;
+		if (finished == null) {
+			return;
+		}
+		journal = null;
+		pump.setJournal(null);
+		slider.setJournal(null);
+		finished.runEnd(ok);
+
+		// Forcing the segments out is file I/O; keep it off the caller's thread
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				finished.close();
+			}
+		}, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * setExporter streams the DHT11 samples and every device command to the
+	 * exporter from now on, for as long as the rig runs.
+	 */
+	public synchronized void setExporter(TelemetryExporter exporter) {
+		if (this.exporter != null) {
+			throw new IllegalStateException("Rig " + name + " already exports");
+		}
+		this.exporter = exporter;
+		dht11.addListener(exporter);
+		pump.setExporter(exporter);
+		slider.setExporter(exporter);
+	}
+
+	// The rig's telemetry exporter, or null if it does not export
+	public TelemetryExporter getExporter() {
+		return exporter;
+	}
+
+	// The journal of the run in progress, or null
+	public RunJournal getJournal() {
+		return journal;
+	}
+
+	public boolean isAcquiring() {
+		return acquiring;
+	}
+
+	// Whole seconds left in the current run, rounded up, or 0 if none
+	public int getSecondsLeft() {
+		if (!acquiring) {
+			return 0;
+		}
+		RecipeRunner runner = recipeRunner;
+		long end = acquisitionEnd + (runner == null ? 0 : runner.getShiftNanos());
+		long left = Math.max(0, end - scheduler.nanoTime());
+		return (int) ((left + 999999999L) / 1000000000L);
+	}
+
+	public void addAcquisitionListener(AcquisitionListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeAcquisitionListener(AcquisitionListener listener) {
+		listeners.remove(listener);
+	}
+
+	/***************************************************************************************
+	 ************************************* ENVIRONMENT *************************************
+	 ***************************************************************************************/
+	public double getTemperature() {
+		return dht11.getTemperature();
+	}
+
+	public double getHumidity() {
+		return dht11.getHumidiy();
+	}
+
+	// Latest temperature and humidity from the same reading, with its age
+	public SensorSnapshot getEnvironment() {
+		return dht11.getSnapshot();
+	}
+
+	// True while the interlock allows an acquisition and the sensor is live
+	public boolean isHumidityInRange() {
+		return interlock.isOk() && dht11.getSnapshot(DHT11.STALE_MILLIS) != null;
+	}
+
+	public HumidityInterlock getInterlock() {
+		return interlock;
+	}
+
+	// Reads the DHT11 and any further sensors configured for the rig
+	public SamplingScheduler getSampling() {
+		return sampling;
+	}
+
+	// The rig's name, or null for a controller built without one
+	public String getName() {
+		return name;
+	}
+
+	public EnvironmentHistory getHistory() {
+		return history;
+	}
+
+	public DHT11 getSensor() {
+		return dht11;
+	}
+
+	public DeviceChannel getPump() {
+		return pump;
+	}
+
+	public DeviceChannel getSlider() {
+		return slider;
+	}
+
+	public PeriodicScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/*
+	 * shutdown stops the periodic work, the sensor reader and the command
+	 * thread, and closes the Bluetooth links.
+	 */
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+}
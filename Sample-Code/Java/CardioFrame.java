@@ -1,20 +1,66 @@
 import java.awt.GraphicsConfiguration;
 import java.awt.HeadlessException;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
 
 import javax.swing.JFrame;
+import javax.swing.JTabbedPane;
 
+/*
+ * CardioFrame shows one CardioPanel per rig: the panel itself when there is a
+ * single rig, or one tab per rig when the process drives several.
+ */
 @SuppressWarnings("serial")
 public class CardioFrame extends JFrame {
-	private CardioPanel panel;
-	
+	private CardioPanel[] panels;
+
 	public CardioFrame() throws IOException{
-		panel = new CardioPanel();
-		
+		this(RigRegistry.createDefault());
+	}
+
+	public CardioFrame(CardioController controller) throws IOException{
+		panels = new CardioPanel[] { new CardioPanel(controller) };
+
 		setUpGUI();
 	}
-	
+
+	public CardioFrame(RigRegistry rigs) throws IOException{
+		CardioController[] controllers = rigs.getRigs();
+		panels = new CardioPanel[controllers.length];
+		for (int i = 0; i < controllers.length; i++) {
+			panels[i] = new CardioPanel(controllers[i]);
+		}
+
+		setUpGUI();
+	}
+
 	private void setUpGUI(){
-		this.setContentPane(panel);
+		if (panels.length == 1) {
+			this.setContentPane(panels[0]);
+		} else {
+			JTabbedPane tabs = new JTabbedPane();
+			for (CardioPanel panel : panels) {
+				tabs.addTab(panel.getRigName(), panel);
+			}
+			this.setContentPane(tabs);
+		}
+
+		// Start the panels' background work once the window is on screen,
+		// and stop it when the window is closed
+		this.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		this.addWindowListener(new WindowAdapter() {
+			public void windowOpened(WindowEvent e) {
+				for (CardioPanel panel : panels) {
+					panel.start();
+				}
+			}
+
+			public void windowClosed(WindowEvent e) {
+				for (CardioPanel panel : panels) {
+					panel.shutdown();
+				}
+			}
+		});
 	}
-}
\ No newline at end of file
+}
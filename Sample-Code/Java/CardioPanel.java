@@ -15,37 +15,74 @@ import javax.swing.LayoutStyle.ComponentPlacement;
 import java.awt.event.ActionListener;
 import java.awt.event.AdjustmentEvent;
 import java.awt.event.AdjustmentListener;
+import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.awt.event.ActionEvent;
 import java.awt.ScrollPane;
 import java.awt.SystemColor;
 import com.jgoodies.forms.factories.DefaultComponentFactory;
 
 public class CardioPanel extends JPanel {
-	private BlueSliderComm bsc;
-	private BlueStepMotBeltComm bsmbc;
+	// Shared colours and fonts, so restyling a label never allocates
+	private static final Color DARK_BLUE = new Color(0, 0, 139);
+	private static final Font BUTTON_FONT = new Font("Times New Roman", Font.BOLD, 30);
+	private static final Font STATUS_FONT = new Font("Times New Roman", Font.BOLD, 24);
+	private static final Font LABEL_FONT = new Font("Times New Roman", Font.BOLD, 20);
+	private static final Font TIMER_FONT = new Font("Times New Roman", Font.BOLD, 40);
+
+	private CardioController controller;
+	private UiUpdateBus ui = new UiUpdateBus();
+	private UiUpdateBus.Property<String> clockText, timerText, humidityText, tempText, bluetoothText;
+	private UiUpdateBus.Property<Color> humidityColor, bluetoothColor;
+	private UiUpdateBus.Property<Boolean> controlsEnabled, acquireEnabled;
+	private ControlState controls;
+	private CommandListener sliderStatus, pumpStatus, acquireStatus;
 	private JButton left, right, up, down, stop, startAcquire, acquisitionProtocol, setSpeed, setStep;
 	private JLabel AdjustSlider, AdjustPump, bluetoothEnabled, Cardiovate, DateTime, humidity, temp, Timer;
 	private JScrollBar speedScroll, stepScroll,timerScroll;
 	private JSeparator separator, separator_1;
 	private JTextField speedText, stepText;
+	private EnvironmentChart chart;
 	private Image img;
-	private Thread timerClock, dateClock, DHT11Clock;
-	private int second = 0, minute = 1;
-	private Boolean stopThread = false, startThreadOnce = false;
+	private int minute = 1;
 
 	@SuppressWarnings("unchecked")
 	public CardioPanel() throws IOException {
-		// Initialize Bluetooth Communication objects
-		bsc = new BlueSliderComm();
-		bsmbc = new BlueStepMotBeltComm();
+		this(new CardioController());
+	}
+
+	public CardioPanel(CardioController controller) throws IOException {
+		// The controller owns the devices, sensor and acquisition timer;
+		// the panel only shows their state and forwards button presses
+		this.controller = controller;
+		
+		// Commands are sent off the event thread and report back to the
+		// Bluetooth status label when the device has answered
+		sliderStatus = new CommandListener() {
+			public void commandCompleted(DeviceComm device, boolean connected) {
+				showBluetoothStatus(connected, "Bluetooth S.M. Disabled");
+			}
+		};
+		pumpStatus = new CommandListener() {
+			public void commandCompleted(DeviceComm device, boolean connected) {
+				showBluetoothStatus(connected, "Bluetooth Pump Disabled");
+			}
+		};
+		acquireStatus = new CommandListener() {
+			public void commandCompleted(DeviceComm device, boolean connected) {
+				showBluetoothStatus(connected, "Bluetooth Disabled");
+			}
+		};
 		
-		// Initialize JLabel with Cardiovate logo
+		// Initialize JLabel for the Cardiovate logo, which is loaded in the
+		// background so decoding it does not hold up the first frame
 		Cardiovate = new JLabel("");
-		img = new ImageIcon(this.getClass().getResource("cardiovate.png")).getImage();
-		Cardiovate.setIcon(new ImageIcon(img));
+		loadLogo();
 
 		// Initialize JLabels for GUI
 		AdjustSlider = new JLabel("Adjust Slider");
@@ -80,19 +117,72 @@ public class CardioPanel extends JPanel {
 		timerScroll = new JScrollBar();
 		timerScroll.setOrientation(JScrollBar.HORIZONTAL);
 
+		// Humidity and temperature history, drawn off the event thread
+		chart = new EnvironmentChart(controller.getHistory(), controller.getInterlock());
+
 		// Separators for separating the various modules of control
 		separator = new JSeparator();
 		separator_1 = new JSeparator();
 
+		bindLabels(); // Route background updates through the event thread
 		showPanel(); // Where the rest of the GUI is configured
-		currentDate(); // Start the currentDate function for displaying current
-						// date and time
-		timerLabel(); // Start the thread for the timer
-		DHT11thread(); // Start the thread for recording the humidity and
-						// temperature in the electrospinner container
-		DHT11Clock.start(); // Start the DHT11 thread for acquiring the humidity
-							// and temperature within the electro-spinner's
-							// container
+		timerLabel(); // Follow the acquisition countdown
+	}
+
+	/*
+	 * start begins the panel's live work once the window is on screen: the
+	 * clock, the humidity and temperature labels and chart, and the
+	 * controller's devices and sensor reader, which come up in the
+	 * background.
+	 */
+	public void start() {
+		currentDate(); // Start the clock displaying the current date and time
+		DHT11thread(); // Start recording the humidity and temperature
+						// in the electrospinner container
+		chart.start(controller.getScheduler());
+		controls.start();
+		controller.start();
+	}
+
+	/*
+	 * loadLogo decodes the Cardiovate logo on the scheduler thread and puts
+	 * it on the label from the Swing event thread when it is ready. If the
+	 * image is not on the class path the label is left empty.
+	 */
+	private void loadLogo() {
+		controller.getScheduler().schedule(new Runnable() {
+			public void run() {
+				URL url = CardioPanel.class.getResource("cardiovate.png");
+				if (url == null) {
+					return;
+				}
+				img = new ImageIcon(url).getImage();
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						Cardiovate.setIcon(new ImageIcon(img));
+						revalidate();
+					}
+				});
+			}
+		}, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * bindLabels ties the labels and buttons that change while the GUI runs
+	 * to properties on the update bus. The clock, timer and sensor threads
+	 * only publish values; the bus applies them on the event thread.
+	 */
+	private void bindLabels() {
+		clockText = ui.text(DateTime);
+		timerText = ui.text(Timer);
+		humidityText = ui.text(humidity);
+		tempText = ui.text(temp);
+		bluetoothText = ui.text(bluetoothEnabled);
+		humidityColor = ui.foreground(humidity);
+		bluetoothColor = ui.foreground(bluetoothEnabled);
+		controlsEnabled = ui.enabled(left, right, setSpeed, setStep, up, down, stop);
+		acquireEnabled = ui.enabled(startAcquire);
+		controls = new ControlState(controller, controlsEnabled, acquireEnabled);
 	}
 
 	private void showPanel() {
@@ -100,33 +190,33 @@ public class CardioPanel extends JPanel {
 		setBackground(Color.WHITE);
 
 		// Set GUI texts to dark blue color
-		AdjustPump.setForeground(new Color(0, 0, 139));
-		AdjustSlider.setForeground(new Color(0, 0, 139));
+		AdjustPump.setForeground(DARK_BLUE);
+		AdjustSlider.setForeground(DARK_BLUE);
 		bluetoothEnabled.setForeground(Color.GREEN);
-		DateTime.setForeground(new Color(0, 0, 139));
-		humidity.setForeground(new Color(0, 0, 139));
-		temp.setForeground(new Color(0, 0, 139));
-		Timer.setForeground(new Color(0, 0, 139));
+		DateTime.setForeground(DARK_BLUE);
+		humidity.setForeground(DARK_BLUE);
+		temp.setForeground(DARK_BLUE);
+		Timer.setForeground(DARK_BLUE);
 
 		// Set the fonts of various GUIs
-		AdjustSlider.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		AdjustPump.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		left.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		right.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		up.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		down.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		stop.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		bluetoothEnabled.setFont(new Font("Times New Roman", Font.BOLD, 24));
-		DateTime.setFont(new Font("Times New Roman", Font.BOLD, 20));
-		startAcquire.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		acquisitionProtocol.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		Timer.setFont(new Font("Times New Roman", Font.BOLD, 40));
-		temp.setFont(new Font("Times New Roman", Font.BOLD, 20));
-		humidity.setFont(new Font("Times New Roman", Font.BOLD, 20));
-		setSpeed.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		setStep.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		speedText.setFont(new Font("Times New Roman", Font.BOLD, 30));
-		stepText.setFont(new Font("Times New Roman", Font.BOLD, 30));
+		AdjustSlider.setFont(BUTTON_FONT);
+		AdjustPump.setFont(BUTTON_FONT);
+		left.setFont(BUTTON_FONT);
+		right.setFont(BUTTON_FONT);
+		up.setFont(BUTTON_FONT);
+		down.setFont(BUTTON_FONT);
+		stop.setFont(BUTTON_FONT);
+		bluetoothEnabled.setFont(STATUS_FONT);
+		DateTime.setFont(LABEL_FONT);
+		startAcquire.setFont(BUTTON_FONT);
+		acquisitionProtocol.setFont(BUTTON_FONT);
+		Timer.setFont(TIMER_FONT);
+		temp.setFont(LABEL_FONT);
+		humidity.setFont(LABEL_FONT);
+		setSpeed.setFont(BUTTON_FONT);
+		setStep.setFont(BUTTON_FONT);
+		speedText.setFont(BUTTON_FONT);
+		stepText.setFont(BUTTON_FONT);
 
 		// Set size of textfields
 		speedText.setColumns(10);
@@ -155,39 +245,13 @@ public class CardioPanel extends JPanel {
 		 ***************************************************************************************/
 		right.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
-				try {
-					bsmbc.sendCommand(3, 0);
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-					bluetoothEnabled.setText("Bluetooth S.M. Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}
-				if(bsmbc.checkConnection() == false){
-					bluetoothEnabled.setText("Bluetooth S.M. Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}else{
-					bluetoothEnabled.setText("Bluetooth Enabled");
-					bluetoothEnabled.setForeground(Color.GREEN);
-				}
+				CommandDispatcher.notifyOnEdt(controller.jogRight(), controller.getSlider(), sliderStatus);
 			}
 		});
 
 		left.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
-				try {
-					bsmbc.sendCommand(2, 0);
-				} catch (IOException e) {
-					bluetoothEnabled.setText("Bluetooth S.M. Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}
-				if(bsmbc.checkConnection() == false){
-					bluetoothEnabled.setText("Bluetooth S.M. Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}else{
-					bluetoothEnabled.setText("Bluetooth Enabled");
-					bluetoothEnabled.setForeground(Color.GREEN);
-				}
+				CommandDispatcher.notifyOnEdt(controller.jogLeft(), controller.getSlider(), sliderStatus);
 			}
 		});
 
@@ -196,22 +260,8 @@ public class CardioPanel extends JPanel {
 				// Add 1000 to current step then pass
 				int passInt = Integer.parseInt(stepText.getText());
 				
-				// Set values to be written to text file
-				try {
-					bsmbc.sendCommand(1, passInt);
-				} catch (IOException e1) {
-					bluetoothEnabled.setText("Bluetooth S.M. Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}
-				// Execute
-
-				if(bsmbc.checkConnection() == false){
-					bluetoothEnabled.setText("Bluetooth S.M. Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}else{
-					bluetoothEnabled.setText("Bluetooth Enabled");
-					bluetoothEnabled.setForeground(Color.GREEN);
-				}
+				// Queue the new step size for the slider
+				CommandDispatcher.notifyOnEdt(controller.setStep(passInt), controller.getSlider(), sliderStatus);
 			}
 		});
 
@@ -226,20 +276,7 @@ public class CardioPanel extends JPanel {
 				// Get current speed value
 				int passInt = Integer.parseInt(speedText.getText());
 
-				try {
-					bsmbc.sendCommand(0, passInt);
-				} catch (IOException e1) {
-					bluetoothEnabled.setText("Bluetooth S.M. Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}
-
-				if(bsmbc.checkConnection() == false){
-					bluetoothEnabled.setText("Bluetooth S.M. Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}else{
-					bluetoothEnabled.setText("Bluetooth Enabled");
-					bluetoothEnabled.setForeground(Color.GREEN);
-				}
+				CommandDispatcher.notifyOnEdt(controller.setSpeed(passInt), controller.getSlider(), sliderStatus);
 			}
 		});
 
@@ -253,58 +290,19 @@ public class CardioPanel extends JPanel {
 		 ***************************************************************************************/
 		up.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				try {
-					bsc.sendCommand(0, 0);
-				} catch (IOException e1) {
-					bluetoothEnabled.setText("Bluetooth Pump Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}
-				
-				if(bsc.checkConnection() == false){
-					bluetoothEnabled.setText("Bluetooth Pump Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}else{
-					bluetoothEnabled.setText("Bluetooth Enabled");
-					bluetoothEnabled.setForeground(Color.GREEN);
-				}
+				CommandDispatcher.notifyOnEdt(controller.pumpUp(), controller.getPump(), pumpStatus);
 			}
 		});
 
 		down.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
-				try {
-					bsc.sendCommand(1, 0);
-				} catch (IOException e) {
-					bluetoothEnabled.setText("Bluetooth Pump Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}
-				
-				if(bsc.checkConnection() == false){
-					bluetoothEnabled.setText("Bluetooth Pump Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}else{
-					bluetoothEnabled.setText("Bluetooth Enabled");
-					bluetoothEnabled.setForeground(Color.GREEN);
-				}
+				CommandDispatcher.notifyOnEdt(controller.pumpDown(), controller.getPump(), pumpStatus);
 			}
 		});
 
 		stop.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
-				try {
-					bsc.sendCommand(2, 0);
-				} catch (IOException e) {
-					bluetoothEnabled.setText("Bluetooth Pump Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}
-				
-				if(bsc.checkConnection() == false){
-					bluetoothEnabled.setText("Bluetooth Pump Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}else{
-					bluetoothEnabled.setText("Bluetooth Enabled");
-					bluetoothEnabled.setForeground(Color.GREEN);
-				}
+				CommandDispatcher.notifyOnEdt(controller.pumpStop(), controller.getPump(), pumpStatus);
 			}
 		});
 
@@ -313,65 +311,39 @@ public class CardioPanel extends JPanel {
 		 ***************************************************************************************/
 		timerScroll.addAdjustmentListener(new AdjustmentListener() {
 			public void adjustmentValueChanged(AdjustmentEvent e) {
-				Timer.setText("Timer " + Integer.toString(timerScroll.getValue()) + ":00");
+				timerText.set("Timer " + Integer.toString(timerScroll.getValue()) + ":00");
 				minute = timerScroll.getValue();
 			}
 		});
 		startAcquire.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				// Pass the commands to the Arduino
-				try {
-					bsc.sendCommand(3, minute);
-					bsmbc.sendCommand(4, minute);
-				} catch (IOException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-					bluetoothEnabled.setText("Bluetooth Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}
-				if(bsc.checkConnection() == false){
-					bluetoothEnabled.setText("Bluetooth Pump Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}else{
-					bluetoothEnabled.setText("Bluetooth Enabled");
-					bluetoothEnabled.setForeground(Color.GREEN);
+				// Pass the commands to the Arduino and start the countdown;
+				// the controls follow the run once it has started
+				if (controller.isAcquiring()) {
+					return;
 				}
-				if(bsmbc.checkConnection() == false){
-					bluetoothEnabled.setText("Bluetooth S.M. Disabled");
-					bluetoothEnabled.setForeground(Color.RED);
-				}else{
-					bluetoothEnabled.setText("Bluetooth Enabled");
-					bluetoothEnabled.setForeground(Color.GREEN);
-				}
-				// Start the timer countdown
-				stopThread = false;
-				if (startThreadOnce == false) {
-					timerClock.start();
-					startThreadOnce = true;
-				}
-				// Disable buttons for communication with Arduino
-				startAcquire.setEnabled(false);
-				left.setEnabled(false);
-				right.setEnabled(false);
-				setSpeed.setEnabled(false);
-				setStep.setEnabled(false);
-				up.setEnabled(false);
-				down.setEnabled(false);
-				stop.setEnabled(false);
+				started(controller.startAcquisition(minute), "Acquisition not started");
 			}
 		});
 
 		/*
 		 * Acquisiton Protocol ActionListenr When user presses button, they are
-		 * shown a dialog with a list of proper electrospinning etiquette.
+		 * shown a dialog with a list of proper electrospinning etiquette, and
+		 * can pick a recipe file to run the acquisition from.
 		 */
 		acquisitionProtocol.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				Component frame = null;
-				JOptionPane.showMessageDialog(frame,
+				Object[] options = { "Run Recipe...", "Close" };
+				int choice = JOptionPane.showOptionDialog(frame,
 						"Sample Prep Reminders: \n+ Use shiny side of tin foil\n+ Wrap foil neatly & diagonally\n+ Amount of solution used"
 								+ "should ~= 0.5 mL\n+ Step size of pump should be 125R\n+ Set current to 14 microAmps\n+ Revolution voltage is 3V\n"
-								+ "+ Run electrospinner for 20 minutes\n+ Wear gloves when handling samples");
+								+ "+ Run electrospinner for 20 minutes\n+ Wear gloves when handling samples",
+						"Acquisition Protocol", JOptionPane.DEFAULT_OPTION, JOptionPane.INFORMATION_MESSAGE, null,
+						options, options[1]);
+				if (choice == 0) {
+					runRecipe();
+				}
 			}
 		});
 		
@@ -445,7 +417,8 @@ public class CardioPanel extends JPanel {
 							.addGap(18)
 							.addComponent(Timer, GroupLayout.PREFERRED_SIZE, 245, GroupLayout.PREFERRED_SIZE)
 							.addPreferredGap(ComponentPlacement.UNRELATED)
-							.addComponent(timerScroll, GroupLayout.PREFERRED_SIZE, 307, GroupLayout.PREFERRED_SIZE)))
+							.addComponent(timerScroll, GroupLayout.PREFERRED_SIZE, 307, GroupLayout.PREFERRED_SIZE))
+						.addComponent(chart, GroupLayout.DEFAULT_SIZE, 600, Short.MAX_VALUE))
 					.addContainerGap())
 		);
 		groupLayout.setVerticalGroup(
@@ -503,129 +476,167 @@ public class CardioPanel extends JPanel {
 						.addGroup(groupLayout.createSequentialGroup()
 							.addGap(19)
 							.addComponent(timerScroll, GroupLayout.PREFERRED_SIZE, 76, GroupLayout.PREFERRED_SIZE)))
+					.addPreferredGap(ComponentPlacement.RELATED)
+					.addComponent(chart, GroupLayout.DEFAULT_SIZE, 180, Short.MAX_VALUE)
 					.addContainerGap())
 		);
 		setLayout(groupLayout);
 	}
 
 	/*
-	 * currentDate displays the current date and time on the GUI. This function
-	 * runs infinitely on a separate thread from the main program.
+	 * runRecipe lets the user pick a recipe file, compiles it and starts it
+	 * as the acquisition. Mistakes in the recipe are shown before anything
+	 * is sent.
+	 */
+	private void runRecipe() {
+		if (controller.isAcquiring()) {
+			return;
+		}
+		JFileChooser chooser = new JFileChooser(new File("recipes"));
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		Recipe recipe;
+		try {
+			recipe = controller.loadRecipe(chooser.getSelectedFile().getPath());
+		} catch (IOException | IllegalArgumentException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Recipe not loaded", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		if (!controller.isHumidityInRange()) {
+			JOptionPane.showMessageDialog(this, "Humidity is out of range", "Recipe not started",
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		started(controller.startRecipe(recipe), "Recipe not started");
+	}
+
+	/*
+	 * started reports on a start request. The controller refuses a start
+	 * (the future is already false and no run is going) when a run is in
+	 * progress or the humidity is out of range or stale; that is shown as
+	 * such rather than as a Bluetooth failure, and Start is brought up to
+	 * date.
+	 */
+	private void started(CompletableFuture<Boolean> ack, String title) {
+		if (ack.isDone() && !ack.isCompletedExceptionally() && !controller.isAcquiring() && !ack.getNow(false)) {
+			controls.refresh();
+			JOptionPane.showMessageDialog(this, "Humidity is out of range or the sensor is not reporting", title,
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		CommandDispatcher.notifyOnEdt(ack, null, acquireStatus);
+	}
+
+	/*
+	 * showBluetoothStatus updates the Bluetooth label after a command has been
+	 * answered.
+	 */
+	private void showBluetoothStatus(boolean connected, String disabledText) {
+		if (connected == false) {
+			bluetoothText.set(disabledText);
+			bluetoothColor.set(Color.RED);
+		} else {
+			bluetoothText.set("Bluetooth Enabled");
+			bluetoothColor.set(Color.GREEN);
+		}
+	}
+
+	/*
+	 * currentDate displays the current date and time on the GUI. The clock is
+	 * refreshed once a second by the scheduler, just after each wall-clock
+	 * second ticks over, and published through the update bus.
 	 */
 	private void currentDate() {
-		dateClock = new Thread() {
+		final PeriodicScheduler scheduler = controller.getScheduler();
+		long untilNextSecond = 1000 - scheduler.currentTimeMillis() % 1000;
+		scheduler.scheduleAtFixedRate(new Runnable() {
 			public void run() {
-				for (;;) {
-
-					Calendar cal = new GregorianCalendar();
-					int month = cal.get(Calendar.MONTH);
-					int year = cal.get(Calendar.YEAR);
-					int day = cal.get(Calendar.DAY_OF_MONTH);
-
-					int second = cal.get(Calendar.SECOND);
-					int minute = cal.get(Calendar.MINUTE);
-					int hour = cal.get(Calendar.HOUR);
-					DateTime.setText("Date: " + (month+1) + "/" + day + "/" + year + "       Time: " + (hour+12) + ":" + minute
-							+ ":" + second);
-					try {
-						sleep(1000);
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
+				Calendar now = new GregorianCalendar();
+				now.setTimeInMillis(scheduler.currentTimeMillis());
+				clockText.set(formatDateTime(now));
 			}
-		};
-		dateClock.start();
+		}, untilNextSecond, 1000, TimeUnit.MILLISECONDS);
+	}
+
+	static String formatDateTime(Calendar cal) {
+		int month = cal.get(Calendar.MONTH);
+		int year = cal.get(Calendar.YEAR);
+		int day = cal.get(Calendar.DAY_OF_MONTH);
+
+		int second = cal.get(Calendar.SECOND);
+		int minute = cal.get(Calendar.MINUTE);
+		int hour = cal.get(Calendar.HOUR);
+		return "Date: " + (month+1) + "/" + day + "/" + year + "       Time: " + (hour+12) + ":" + minute
+				+ ":" + second;
 	}
 
 	/*
-	 * timerLabel displays the count down of a 20 minute timer. This function
-	 * runs infinitely at program start. A system of primitive locks and keys
-	 * allows for the display to be reset using the three JButtons 'Start
-	 * Acquisition', 'Stop Timer', and 'Reset?'
+	 * timerLabel displays the count down of an acquisition. The controller
+	 * times the run; when it ends the timer is reset to 20 minutes. The
+	 * buttons for communication with the Arduino follow the ControlState.
 	 */
 	private void timerLabel() {
-		timerClock = new Thread() {
-			public void run() {
-				for (;;) {
-					if (stopThread == false) {
-						if (second == 0) {
-							second = 59;
-							minute--;
-						} else {
-							second--;
-						}
-						if (minute == 0 && second <= 0) {
-							// Insert alarm here
-							// Put thread to sleep
-							stopThread = true;
-							startThreadOnce = false;
-							minute = 20;
-							second = 0;
-							Timer.setText("Timer: " + minute + ":" + second);
-							
-							// Enable buttons for communication with Arduino
-							left.setEnabled(true);
-							right.setEnabled(true);
-							up.setEnabled(true);
-							down.setEnabled(true);
-							stop.setEnabled(true);
-							setSpeed.setEnabled(true);
-							setStep.setEnabled(true);
-						}
-						Timer.setText("Timer: " + minute + ":" + second);
-					}
-					try {
-						sleep(1000);
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
+		controller.addAcquisitionListener(new AcquisitionListener() {
+			public void acquisitionStarted(int minutes) {
 			}
-		};
+
+			public void acquisitionTick(int secondsLeft) {
+				timerText.set(formatTimer(secondsLeft / 60, secondsLeft % 60));
+			}
+
+			public void acquisitionFinished() {
+				// Insert alarm here
+				timerText.set(formatTimer(20, 0));
+			}
+		});
+	}
+
+	static String formatTimer(int minute, int second) {
+		return "Timer: " + minute + ":" + second;
 	}
 
 	/*
-	 * DHT11thread is used to acquire the current humidity and temperature
-	 * within the container housing the electro-spinner. Data is collected every
-	 * two seconds per hardware constraints of the sensor used. Humidity is
-	 * reported as percentage and temperature in degrees Fahrenheit.
+	 * DHT11thread is used to show the current humidity and temperature
+	 * within the container housing the electro-spinner. The labels follow
+	 * the rig's humidity interlock: filtered samples refresh the readings as
+	 * they arrive, and interlock changes colour the humidity. Humidity is reported as percentage and
+	 * temperature in degrees Fahrenheit.
 	 */
 	private void DHT11thread() {
-		DHT11 dht11 = new DHT11();
+		HumidityInterlock interlock = controller.getInterlock();
+		showInterlock(interlock.isOk());
+		interlock.subscribeSamples(new HumidityInterlock.Subscriber<DHT11Sample>() {
+			protected void onItem(DHT11Sample sample) {
+				humidityText.set("Humidity: " + sample.getHumidity() + "%");
+				tempText.set("Temperature: " + sample.getTemperature() + "\u00b0" + "F");
+			}
+		});
+		interlock.subscribe(new HumidityInterlock.Subscriber<InterlockEvent>() {
+			protected void onItem(InterlockEvent event) {
+				showInterlock(controller.isHumidityInRange());
+			}
+		});
+	}
 
-		DHT11Clock = new Thread() {
-			public void run() {
-				
-				for (;;) {
-					dht11.readings();
-					try {
-						Thread.sleep(2000);
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
+	private void showInterlock(boolean ok) {
+		if (ok == false) {
+			humidityColor.set(Color.RED);
+		} else {
+			humidityColor.set(DARK_BLUE);
+		}
+	}
 
-					double humid = dht11.getHumidiy();
-					double temperature = dht11.getTemperature();
-
-					humidity.setText("Humidity: " + humid + "%");
-					temp.setText("Temperature: " + temperature + "\u00b0" + "F");
-
-					// Check if humidity is around threshold of 50% +/- 5%
-					if (humid > 55 || humid < 45) {
-						humidity.setForeground(new Color(255, 0, 0));
-						startAcquire.setEnabled(false);
-					} else {
-						if(startThreadOnce == false){
-							humidity.setForeground(new Color(0, 0, 139));
-							startAcquire.setEnabled(true);
-						}
-					}
-				}
-			}
-		};
+	// The rig this panel drives, for the tab title
+	public String getRigName() {
+		return controller.getName() == null ? RigRegistry.DEFAULT_RIG : controller.getName();
+	}
+
+	/*
+	 * shutdown stops the periodic work, the sensor reader and the command
+	 * thread, and closes the Bluetooth links.
+	 */
+	public void shutdown() {
+		controller.shutdown();
 	}
 }
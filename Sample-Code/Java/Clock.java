@@ -0,0 +1,25 @@
+/*
+ * Clock is where the controller reads the time. SYSTEM is the real clock;
+ * a VirtualScheduler's clock only moves when the scheduler is advanced, so
+ * a simulated acquisition runs in virtual time, as fast as the CPU allows
+ * and the same way every time.
+ */
+public interface Clock {
+
+	// The real clock
+	Clock SYSTEM = new Clock() {
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	// Monotonic time for measuring intervals, as System.nanoTime()
+	long nanoTime();
+
+	// Wall-clock time, milliseconds since the epoch
+	long currentTimeMillis();
+}
@@ -0,0 +1,511 @@
+import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.swing.SwingUtilities;
+
+/*
+ * CommandDispatcher takes commands from the GUI and sends them to the devices
+ * on its own thread, so an ActionListener never waits on Bluetooth I/O. Each
+ * dispatch returns a future that completes with the connection state once the
+ * device has accepted the command. The dispatcher does not wait for one
+ * command's ACK before writing the next: the link's CommandWindow matches the
+ * ACKs as they come back.
+ *
+ * Commands travel in one of three priority lanes:
+ *
+ *     EMERGENCY  (pump stop) is written at once by its own thread, ahead of
+ *                everything queued. Commands still queued or waiting for
+ *                room in the window for the same device are dropped, and
+ *                those already written are not resent; their futures are
+ *                cancelled unless already acknowledged, which is not
+ *                reported as a link failure.
+ *     CONTROL    (jog, pump, acquisition, recipe steps) goes out in the
+ *                order dispatched, ahead of any bulk command.
+ *     BULK       (speed and step size) is sent when no control command is
+ *                waiting. A bulk command that repeats one still queued for
+ *                the same device replaces its value, so a flood of slider
+ *                updates collapses to the latest one, unless a control
+ *                command for the device was dispatched in between: the
+ *                new value is then queued after it.
+ *
+ * A control command takes the bulk commands queued earlier for its device
+ * along with it, so one device never sees its commands reordered. An
+ * emergency command waits for nothing but the frame being written on the
+ * link at the time and the frames already in the kernel's buffer, which the
+ * window keeps to at most its size per device.
+ */
+public class CommandDispatcher {
+	public enum Priority {
+		EMERGENCY, CONTROL, BULK
+	}
+
+	private ArrayDeque<Queued> control = new ArrayDeque<Queued>();
+	private ArrayDeque<Queued> bulk = new ArrayDeque<Queued>();
+	private long dispatched = 0;
+	private boolean shutdown = false;
+	private ExecutorService sender, emergency;
+	private final Runnable sendNext = new Runnable() {
+		public void run() {
+			sendNext();
+		}
+	};
+
+	// A command waiting in the control or bulk lane
+	private static class Queued {
+		DeviceComm device;
+		int command, value;
+		long order;
+		CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+	}
+
+	// Constructor
+	public CommandDispatcher() {
+		this("command-dispatcher");
+	}
+
+	public CommandDispatcher(String threadName) {
+		this(executor(threadName, Thread.NORM_PRIORITY), executor(threadName + "-emergency", Thread.MAX_PRIORITY));
+	}
+
+	/*
+	 * A dispatcher that sends on the given executors, each of which must run
+	 * one task at a time in order, such as a scheduler's pipeline executors;
+	 * on a VirtualScheduler the commands then go out inline, in virtual time.
+	 */
+	public CommandDispatcher(ExecutorService sender, ExecutorService emergency) {
+		this.sender = sender;
+		this.emergency = emergency;
+	}
+
+	private static ExecutorService executor(final String threadName, final int priority) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				t.setPriority(priority);
+				return t;
+			}
+		});
+	}
+
+	/*
+	 * dispatch queues a control command for the device and returns
+	 * immediately. The future completes with true once the device has
+	 * acknowledged the command, or false if it could not be sent or was never
+	 * acknowledged. It is cancelled if the command was dropped for an
+	 * emergency command.
+	 */
+	public CompletableFuture<Boolean> dispatch(DeviceComm device, int command, int value) {
+		return dispatch(device, command, value, Priority.CONTROL);
+	}
+
+	public CompletableFuture<Boolean> dispatch(final DeviceComm device, final int command, final int value,
+			Priority priority) {
+		if (priority == Priority.EMERGENCY) {
+			// The device first, so a command taken from the queue before the
+			// queue is flushed cannot slip out after the emergency one
+			device.flush();
+			flush(device);
+			return CompletableFuture.supplyAsync(new Supplier<CompletableFuture<Boolean>>() {
+				public CompletableFuture<Boolean> get() {
+					return device.sendUrgent(command, value);
+				}
+			}, emergency).thenCompose(new Function<CompletableFuture<Boolean>, CompletionStage<Boolean>>() {
+				public CompletionStage<Boolean> apply(CompletableFuture<Boolean> ack) {
+					return ack;
+				}
+			});
+		}
+		synchronized (this) {
+			if (shutdown) {
+				return CompletableFuture.completedFuture(false);
+			}
+			if (priority == Priority.BULK) {
+				Queued replaced = replaceable(device, command);
+				if (replaced != null) {
+					replaced.value = value;
+					return replaced.result;
+				}
+			}
+			Queued queued = new Queued();
+			queued.device = device;
+			queued.command = command;
+			queued.value = value;
+			queued.order = dispatched++;
+			(priority == Priority.BULK ? bulk : control).add(queued);
+			// One send per command queued; it may send an earlier one first
+			sender.execute(sendNext);
+			return queued.result;
+		}
+	}
+
+	/*
+	 * replaceable returns the bulk command a new value for the same device
+	 * and command can replace: the latest one queued, as long as no control
+	 * command for the device was dispatched after it, since the new value
+	 * would then go out ahead of that control command.
+	 */
+	private Queued replaceable(DeviceComm device, int command) {
+		Queued latest = null;
+		for (Queued queued : bulk) {
+			if (queued.device == device && queued.command == command) {
+				latest = queued;
+			}
+		}
+		if (latest == null) {
+			return null;
+		}
+		for (Queued queued : control) {
+			if (queued.device == device && queued.order > latest.order) {
+				return null;
+			}
+		}
+		return latest;
+	}
+
+	// Drops every command still queued for the device
+	private void flush(DeviceComm device) {
+		List<Queued> dropped = new ArrayList<Queued>();
+		synchronized (this) {
+			remove(control, device, dropped);
+			remove(bulk, device, dropped);
+		}
+		for (Queued queued : dropped) {
+			queued.result.cancel(false);
+		}
+	}
+
+	private static void remove(ArrayDeque<Queued> lane, DeviceComm device, List<Queued> removed) {
+		Iterator<Queued> it = lane.iterator();
+		while (it.hasNext()) {
+			Queued queued = it.next();
+			if (queued.device == device) {
+				removed.add(queued);
+				it.remove();
+			}
+		}
+	}
+
+	// Sends the next command in lane order, if any is still queued
+	private void sendNext() {
+		final Queued sending;
+		synchronized (this) {
+			sending = takeNext();
+		}
+		if (sending == null) {
+			return;
+		}
+		try {
+			sending.device.send(sending.command, sending.value).whenComplete(new BiConsumer<Boolean, Throwable>() {
+				public void accept(Boolean ok, Throwable failure) {
+					if (failure != null) {
+						sending.result.completeExceptionally(failure);
+					} else {
+						sending.result.complete(ok);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			sending.result.completeExceptionally(e);
+		}
+	}
+
+	/*
+	 * takeNext picks the next command: the oldest control command, unless a
+	 * bulk command for the same device was dispatched before it, or the
+	 * oldest bulk command if no control command is waiting.
+	 */
+	private Queued takeNext() {
+		Queued first = control.peekFirst();
+		if (first == null) {
+			return bulk.pollFirst();
+		}
+		Iterator<Queued> it = bulk.iterator();
+		while (it.hasNext()) {
+			Queued queued = it.next();
+			if (queued.order > first.order) {
+				break;
+			}
+			if (queued.device == first.device) {
+				it.remove();
+				return queued;
+			}
+		}
+		return control.pollFirst();
+	}
+
+	/*
+	 * Same as dispatch above, but also posts the result to the listener on the
+	 * Swing event thread.
+	 */
+	public CompletableFuture<Boolean> dispatch(DeviceComm device, int command, int value,
+			CommandListener listener) {
+		return notifyOnEdt(dispatch(device, command, value), device, listener);
+	}
+
+	/*
+	 * notifyOnEdt posts the outcome of ack to the listener on the Swing event
+	 * thread once it completes, and returns ack. A command cancelled for an
+	 * emergency command is not posted: it tells nothing about the link.
+	 */
+	public static CompletableFuture<Boolean> notifyOnEdt(CompletableFuture<Boolean> ack, final DeviceComm device,
+			final CommandListener listener) {
+		ack.whenComplete(new BiConsumer<Boolean, Throwable>() {
+			public void accept(final Boolean connected, Throwable error) {
+				if (isCancelled(error)) {
+					return;
+				}
+				final boolean ok = error == null && connected != null && connected;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						listener.commandCompleted(device, ok);
+					}
+				});
+			}
+		});
+		return ack;
+	}
+
+	// True if a command's future failed with error because it was cancelled
+	public static boolean isCancelled(Throwable error) {
+		return error instanceof CancellationException
+				|| error != null && error.getCause() instanceof CancellationException;
+	}
+
+	/*
+	 * shutdown stops the dispatcher once the commands already queued have
+	 * been sent.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		sender.shutdown();
+		emergency.shutdown();
+	}
+
+	/*
+	 * Measures how long a pump Stop takes to reach the wire and to be
+	 * acknowledged while the dispatcher is flooded with slider speed updates
+	 * over an emulated link: once with Stop in the emergency lane, and once,
+	 * for comparison, queued behind the flood in the control lane as every
+	 * command used to be. Then checks that no pump command dispatched before
+	 * an emergency Stop reaches the wire after it, and that the ones it drops
+	 * are cancelled rather than failed, and fails if either is not so.
+	 *
+	 *     java CommandDispatcher [stops]
+	 */
+	public static void main(String[] args) throws Exception {
+		int stops = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		report("emergency", measureStop(Priority.EMERGENCY, Priority.BULK, stops));
+		report("control  ", measureStop(Priority.CONTROL, Priority.CONTROL, stops));
+		int[] order = checkStopOrder(stops);
+		System.out.println("pump commands written after their Stop: " + order[0] + ", reported failed: " + order[1]
+				+ " in " + stops + " stops");
+		if (order[0] > 0) {
+			throw new IllegalStateException("pump commands overtook an emergency Stop");
+		}
+		if (order[1] > 0) {
+			throw new IllegalStateException("commands dropped for a Stop were reported as failed");
+		}
+	}
+
+	private static void report(String lane, long[][] latencies) {
+		for (int i = 0; i < 2; i++) {
+			long[] sorted = latencies[i].clone();
+			Arrays.sort(sorted);
+			System.out.println(String.format("%s stop %s p50 %8.1f us  p99 %8.1f us  max %8.1f us", lane,
+					i == 0 ? "written: " : "acked:   ", sorted[sorted.length / 2] / 1000.0,
+					sorted[(int) (sorted.length * 0.99)] / 1000.0, sorted[sorted.length - 1] / 1000.0));
+		}
+	}
+
+	/*
+	 * checkStopOrder dispatches a burst of pump jogs and then a Stop, round
+	 * after round, while slider updates keep the window busy. Returns the
+	 * number of jogs written to the link after their round's Stop, and the
+	 * number that completed with false; on the emulated link every jog is
+	 * either acknowledged or cancelled.
+	 */
+	private static int[] checkStopOrder(int rounds) throws Exception {
+		final AtomicBoolean stopped = new AtomicBoolean();
+		final AtomicLong late = new AtomicLong();
+		// Counts pump frames written after the Stop
+		DeviceRegistry registry = emulatedRig(new Consumer<ByteBuffer>() {
+			public void accept(ByteBuffer src) {
+				int at = src.position();
+				if (src.get(at + 2) == 1) {
+					if (src.get(at + 1) == 's') {
+						stopped.set(true);
+					} else if (stopped.get()) {
+						late.incrementAndGet();
+					}
+				}
+			}
+		});
+		final DeviceChannel pump = registry.get(DeviceRegistry.PUMP);
+		final DeviceChannel slider = registry.get(DeviceRegistry.SLIDER);
+		final CommandDispatcher dispatcher = new CommandDispatcher("stop-order");
+
+		final Semaphore outstanding = new Semaphore(64);
+		final AtomicBoolean flooding = new AtomicBoolean(true);
+		Thread flood = new Thread("flood") {
+			public void run() {
+				int speed = 0;
+				while (flooding.get()) {
+					outstanding.acquireUninterruptibly();
+					dispatcher.dispatch(slider, 0, speed++ & 0x3FF, Priority.BULK).whenComplete(
+							new BiConsumer<Boolean, Throwable>() {
+								public void accept(Boolean ok, Throwable failure) {
+									outstanding.release();
+								}
+							});
+				}
+			}
+		};
+		flood.setDaemon(true);
+		flood.start();
+		Thread.sleep(100);
+
+		List<CompletableFuture<Boolean>> jogs = new ArrayList<CompletableFuture<Boolean>>();
+		int failed = 0;
+		for (int i = 0; i < rounds; i++) {
+			stopped.set(false);
+			jogs.clear();
+			// Pump up and timed runs in turn, more than the window holds
+			for (int j = 0; j < CommandWindow.MAX_SIZE; j++) {
+				jogs.add(dispatcher.dispatch(pump, j % 2 == 0 ? 0 : 3, j));
+			}
+			Thread.sleep(i % 3);
+			dispatcher.dispatch(pump, 2, 0, Priority.EMERGENCY).join();
+			for (CompletableFuture<Boolean> jog : jogs) {
+				try {
+					if (!jog.join()) {
+						failed++;
+					}
+				} catch (CancellationException e) {
+					// Dropped for the Stop
+				}
+			}
+		}
+		flooding.set(false);
+		dispatcher.shutdown();
+		registry.getPool().closeAll();
+		return new int[] { (int) late.get(), failed };
+	}
+
+	// Returns the time from dispatch to the Stop frame being written, and to its ACK
+	private static long[][] measureStop(Priority stopLane, final Priority floodLane, int stops) throws Exception {
+		final AtomicLong stopWritten = new AtomicLong();
+		// Notes when a Stop for the pump (id 1) goes out
+		DeviceRegistry registry = emulatedRig(new Consumer<ByteBuffer>() {
+			public void accept(ByteBuffer src) {
+				int at = src.position();
+				if (src.get(at + 1) == 's' && src.get(at + 2) == 1) {
+					stopWritten.compareAndSet(0, System.nanoTime());
+				}
+			}
+		});
+		final DeviceChannel pump = registry.get(DeviceRegistry.PUMP);
+		final DeviceChannel slider = registry.get(DeviceRegistry.SLIDER);
+		final CommandDispatcher dispatcher = new CommandDispatcher("stop-check");
+
+		// The flood keeps up to 64 speed updates outstanding at all times
+		final Semaphore outstanding = new Semaphore(64);
+		final AtomicBoolean flooding = new AtomicBoolean(true);
+		Thread flood = new Thread("flood") {
+			public void run() {
+				int speed = 0;
+				while (flooding.get()) {
+					outstanding.acquireUninterruptibly();
+					dispatcher.dispatch(slider, 0, speed++ & 0x3FF, floodLane).whenComplete(
+							new BiConsumer<Boolean, Throwable>() {
+								public void accept(Boolean ok, Throwable failure) {
+									outstanding.release();
+								}
+							});
+				}
+			}
+		};
+		flood.setDaemon(true);
+		flood.start();
+		Thread.sleep(200);
+
+		// The first tenth of the stops is JIT warm-up and not counted
+		int warmup = stops / 10;
+		long[][] latencies = new long[2][stops];
+		for (int i = -warmup; i < stops; i++) {
+			stopWritten.set(0);
+			long start = System.nanoTime();
+			dispatcher.dispatch(pump, 2, 0, stopLane).join();
+			long acked = System.nanoTime();
+			if (i >= 0) {
+				latencies[0][i] = stopWritten.get() - start;
+				latencies[1][i] = acked - start;
+			}
+			Thread.sleep(5);
+		}
+		flooding.set(false);
+		dispatcher.shutdown();
+		registry.getPool().closeAll();
+		return latencies;
+	}
+
+	/*
+	 * emulatedRig loads the configured pump and slider onto one emulated
+	 * link, so one window sees every ACK. Each frame is shown to tap before
+	 * it is written; tap must not move the buffer's position.
+	 */
+	private static DeviceRegistry emulatedRig(final Consumer<ByteBuffer> tap) {
+		final DeviceEmulator emulator = new DeviceEmulator();
+		emulator.setLatency(200);
+		emulator.setJitter(100);
+		emulator.setProcessingTime(50);
+		DeviceRegistry registry = new DeviceRegistry(new LinkPool(new TransportFactory() {
+			public DeviceTransport createTransport(String link) {
+				return new DeviceTransport() {
+					public void open() {
+						emulator.open();
+					}
+
+					public boolean isOpen() {
+						return emulator.isOpen();
+					}
+
+					public void write(ByteBuffer src) {
+						tap.accept(src);
+						emulator.write(src);
+					}
+
+					public int read(ByteBuffer dst) {
+						return emulator.read(dst);
+					}
+
+					public void close() {
+						emulator.close();
+					}
+				};
+			}
+		}));
+		Properties config = DeviceRegistry.loadConfig();
+		config.setProperty("device.slider.link", config.getProperty("device.pump.link"));
+		registry.load(config);
+		return registry;
+	}
+}
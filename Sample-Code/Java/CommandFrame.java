@@ -0,0 +1,20 @@
+/*
+ * CommandFrame holds the fields of one decoded wire frame. Instances are
+ * meant to be reused: FrameCodec.decode overwrites the fields in place so the
+ * receive path does not allocate per frame.
+ */
+public class CommandFrame {
+	public int opcode;
+	public int deviceId;
+	public int sequence;
+	public int value;
+
+	public boolean isAck() {
+		return opcode == FrameCodec.OPCODE_ACK;
+	}
+
+	public String toString() {
+		return "CommandFrame[opcode=" + (char) opcode + ", device=" + deviceId + ", seq=" + sequence + ", value="
+				+ value + "]";
+	}
+}
@@ -0,0 +1,9 @@
+/*
+ * CommandListener is told the outcome of a command sent through the
+ * CommandDispatcher. It is always called on the Swing event thread, so
+ * implementations may update components directly.
+ */
+public interface CommandListener {
+
+	void commandCompleted(DeviceComm device, boolean connected);
+}
@@ -0,0 +1,405 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * CommandWindow pipelines the commands sent over one link. Instead of waiting
+ * for each command's ACK before sending the next, up to a window's worth of
+ * commands per device may be waiting for their ACK at once, so a burst such as
+ * speed, step and start costs about one round trip instead of three and the
+ * link's bandwidth, not its latency, bounds the command rate.
+ *
+ * Every frame carries the device's next sequence number. A reader thread
+ * decodes what the link sends back and matches each ACK to its command by
+ * device id and sequence number, in whatever order ACKs arrive. A command
+ * whose ACK has not arrived within the timeout is sent again on its own
+ * (selective retransmission, the other commands in flight are not resent);
+ * after the configured number of retries it fails. The sketches ACK a frame
+ * as soon as it arrives, before running its command, so a jog that blocks
+ * the sketch for seconds does not time out here. They acknowledge a sequence
+ * number whose command finished in the last second without running it
+ * again, so a retransmission after a lost ACK, or one that queued up while
+ * the jog ran, does not jog the slider twice; the timeout times the retries
+ * should stay under a second.
+ * They only remember the last MAX_SIZE sequence numbers, so besides the
+ * window's count of commands in flight, no command is sent MAX_SIZE or more
+ * sequence numbers past the oldest one still waiting for its ACK: however
+ * fast the other commands are acknowledged, a resent frame is always still
+ * in the sketch's memory.
+ *
+ * Settings come from devices.properties:
+ *
+ *     ack.window=8            commands in flight per device, 0 to send
+ *                             without waiting for ACKs
+ *     ack.timeout.millis=250  time to wait for an ACK before resending
+ *     ack.retries=3           resends before the command fails
+ */
+public class CommandWindow {
+	public static final int DEFAULT_SIZE = 8;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 250;
+	public static final int DEFAULT_RETRIES = 3;
+	// The sketches remember this many recent frames (RECENT_FRAMES) to drop repeats
+	public static final int MAX_SIZE = 16;
+	private static final long IDLE_PARK_NANOS = 50000;
+	private static final long CLOSED_PARK_NANOS = 100000000L;
+
+	private String link;
+	private DeviceTransport transport;
+	private int size;
+	private long timeoutNanos;
+	private int retries;
+	private Slot[][] slots = new Slot[256][];
+	private int[] inFlight = new int[256];
+	private int[] flushes = new int[256];
+	private AtomicLong retransmitted = new AtomicLong();
+	private AtomicLong unmatched = new AtomicLong();
+	private Thread reader, retransmitter;
+	private volatile boolean closed = false;
+
+	/*
+	 * Slot is one command in flight. Each device has a slot per sequence
+	 * number, reused as the sequence wraps, holding the encoded frame so it
+	 * can be resent as is.
+	 */
+	static class Slot {
+		DeviceChannel channel;
+		int command, value, sequence;
+		ByteBuffer frame = ByteBuffer.allocate(FrameCodec.FRAME_LENGTH);
+		long firstSent, lastSent;
+		int tries;
+		CompletableFuture<Boolean> ack;
+		boolean busy;
+	}
+
+	// What is left of a failed command once its slot has been freed
+	private static class Failure {
+		DeviceChannel channel;
+		int command, sequence, value;
+		long elapsed;
+		CompletableFuture<Boolean> ack;
+
+		Failure(Slot slot, long elapsed) {
+			channel = slot.channel;
+			command = slot.command;
+			sequence = slot.sequence;
+			value = slot.value;
+			ack = slot.ack;
+			this.elapsed = elapsed;
+		}
+	}
+
+	// Constructor
+	public CommandWindow(String link, DeviceTransport transport, int size, long timeoutMillis, int retries) {
+		if (size < 1 || size > MAX_SIZE) {
+			throw new IllegalArgumentException("ack.window must be between 1 and " + MAX_SIZE + ": " + size);
+		}
+		this.link = link;
+		this.transport = transport;
+		this.size = size;
+		this.timeoutNanos = timeoutMillis * 1000000L;
+		this.retries = retries;
+	}
+
+	/*
+	 * awaitRoom waits while the device already has a full window in flight,
+	 * or sending the given sequence number would take it too far past the
+	 * oldest command still in flight. It returns the device's flush
+	 * generation, or -1 if an urgent command flushed the device meanwhile, in
+	 * which case the caller drops its command. The caller checks the
+	 * generation again with isFlushed just before writing, since an urgent
+	 * command may still overtake it after it has found room.
+	 */
+	synchronized int awaitRoom(int deviceId, int sequence) throws InterruptedException {
+		int device = deviceId & 0xFF;
+		int flush = flushes[device];
+		while ((inFlight[device] >= size || !inReach(device, sequence)) && flushes[device] == flush) {
+			wait();
+		}
+		return flushes[device] == flush ? flush & 0x7FFFFFFF : -1;
+	}
+
+	// True if the device was flushed since awaitRoom returned the generation
+	synchronized boolean isFlushed(int deviceId, int generation) {
+		return (flushes[deviceId & 0xFF] & 0x7FFFFFFF) != generation;
+	}
+
+	// True if no command in flight is MAX_SIZE or more sequence numbers behind
+	private boolean inReach(int device, int sequence) {
+		Slot[] pending = slots[device];
+		if (pending == null || inFlight[device] == 0) {
+			return true;
+		}
+		for (int behind = MAX_SIZE; behind <= 256; behind++) {
+			if (pending[(sequence - behind) & 0xFF].busy) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * flush turns away the device's commands waiting in awaitRoom and stops
+	 * resending the ones already written: a resend going out after an urgent
+	 * command would run a command the device may never have seen before it.
+	 * Their futures are cancelled rather than failed, since whether the
+	 * device took them says nothing about the link.
+	 */
+	void flush(int deviceId) {
+		int device = deviceId & 0xFF;
+		List<CompletableFuture<Boolean>> dropped = new ArrayList<CompletableFuture<Boolean>>();
+		synchronized (this) {
+			flushes[device]++;
+			if (slots[device] != null) {
+				for (Slot slot : slots[device]) {
+					if (slot.busy) {
+						dropped.add(slot.ack);
+						release(slot);
+					}
+				}
+			}
+			notifyAll();
+		}
+		for (CompletableFuture<Boolean> ack : dropped) {
+			ack.cancel(false);
+		}
+	}
+
+	/*
+	 * reserve takes the slot for a device's next command. The caller encodes
+	 * the frame into the slot and hands it to send. Returns null if the
+	 * sequence number is out of reach after all (see awaitRoom), for instance
+	 * because an urgent command took the one awaitRoom was called with; the
+	 * caller then waits for room again. Urgent commands are never turned
+	 * away.
+	 */
+	synchronized Slot reserve(DeviceChannel channel, int sequence, boolean urgent) throws InterruptedException {
+		int device = channel.getDeviceId() & 0xFF;
+		if (slots[device] == null) {
+			slots[device] = new Slot[256];
+			for (int i = 0; i < 256; i++) {
+				slots[device][i] = new Slot();
+			}
+		}
+		if (!urgent && !inReach(device, sequence)) {
+			return null;
+		}
+		Slot slot = slots[device][sequence];
+		while (slot.busy) {
+			// The sequence number has wrapped onto a command still in flight
+			wait();
+		}
+		inFlight[device]++;
+		slot.busy = true;
+		slot.channel = channel;
+		slot.sequence = sequence;
+		slot.tries = 0;
+		slot.ack = new CompletableFuture<Boolean>();
+		slot.frame.clear();
+		return slot;
+	}
+
+	/*
+	 * send writes a reserved slot's frame to the link and starts its ACK
+	 * timer. If the write fails the slot is freed and the exception thrown.
+	 */
+	CompletableFuture<Boolean> send(Slot slot) throws IOException {
+		if (closed) {
+			release(slot);
+			return CompletableFuture.completedFuture(false);
+		}
+		startThreads();
+		CompletableFuture<Boolean> ack = slot.ack;
+		synchronized (this) {
+			slot.firstSent = slot.lastSent = System.nanoTime();
+		}
+		try {
+			transport.write(slot.frame.duplicate());
+		} catch (IOException e) {
+			release(slot);
+			throw e;
+		}
+		LockSupport.unpark(retransmitter);
+		return ack;
+	}
+
+	// Frees a slot that was reserved but will not be sent
+	synchronized void release(Slot slot) {
+		if (slot.busy) {
+			slot.busy = false;
+			inFlight[slot.channel.getDeviceId() & 0xFF]--;
+			notifyAll();
+		}
+	}
+
+	private synchronized void startThreads() {
+		if (reader != null) {
+			return;
+		}
+		reader = new Thread("acks-" + link) {
+			public void run() {
+				readAcks();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+		retransmitter = new Thread("retransmit-" + link) {
+			public void run() {
+				retransmit();
+			}
+		};
+		retransmitter.setDaemon(true);
+		retransmitter.start();
+	}
+
+	// Reader thread: matches ACK frames to the commands in flight
+	private void readAcks() {
+		ByteBuffer in = ByteBuffer.allocate(1024);
+		CommandFrame frame = new CommandFrame();
+		while (!closed) {
+			int count;
+			try {
+				count = transport.read(in);
+			} catch (IOException e) {
+				count = -1;
+			}
+			if (count < 0) {
+				// Not connected; the next write reopens the link
+				LockSupport.parkNanos(CLOSED_PARK_NANOS);
+				continue;
+			}
+			if (count == 0) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			in.flip();
+			while (FrameCodec.decode(in, frame)) {
+				if (frame.opcode == FrameCodec.OPCODE_ACK) {
+					acknowledged(frame.deviceId, frame.sequence);
+				}
+			}
+			in.compact();
+		}
+	}
+
+	private void acknowledged(int device, int sequence) {
+		DeviceChannel channel;
+		CompletableFuture<Boolean> ack;
+		int command, value;
+		long rtt;
+		synchronized (this) {
+			Slot slot = slots[device] == null ? null : slots[device][sequence];
+			if (slot == null || !slot.busy) {
+				// A late ACK for a command already acknowledged or failed
+				unmatched.incrementAndGet();
+				return;
+			}
+			rtt = System.nanoTime() - slot.firstSent;
+			channel = slot.channel;
+			ack = slot.ack;
+			command = slot.command;
+			value = slot.value;
+			release(slot);
+		}
+		channel.acknowledged(command, sequence, value, true, rtt);
+		ack.complete(true);
+	}
+
+	/*
+	 * Retransmit thread: resends each command whose ACK is overdue and fails
+	 * the ones out of retries, then sleeps until the next ACK falls due.
+	 */
+	private void retransmit() {
+		List<Slot> resend = new ArrayList<Slot>();
+		List<Failure> failed = new ArrayList<Failure>();
+		while (!closed) {
+			long now = System.nanoTime();
+			long next = now + timeoutNanos;
+			synchronized (this) {
+				for (Slot[] device : slots) {
+					if (device == null) {
+						continue;
+					}
+					for (Slot slot : device) {
+						if (!slot.busy) {
+							continue;
+						}
+						long due = slot.lastSent + timeoutNanos;
+						if (due - now > 0) {
+							next = due - next < 0 ? due : next;
+						} else if (slot.tries >= retries) {
+							failed.add(new Failure(slot, now - slot.firstSent));
+							release(slot);
+						} else {
+							slot.tries++;
+							slot.lastSent = now;
+							resend.add(slot);
+						}
+					}
+				}
+			}
+			for (Slot slot : resend) {
+				try {
+					retransmitted.incrementAndGet();
+					transport.write(slot.frame.duplicate());
+				} catch (IOException e) {
+					// Counts as another try; the link reopens on the next write
+				}
+			}
+			for (Failure failure : failed) {
+				failure.channel.acknowledged(failure.command, failure.sequence, failure.value, false, failure.elapsed);
+				failure.ack.complete(false);
+			}
+			resend.clear();
+			failed.clear();
+			LockSupport.parkNanos(next - System.nanoTime());
+		}
+	}
+
+	// Commands a device has waiting for their ACK
+	public synchronized int getInFlight(int deviceId) {
+		return inFlight[deviceId & 0xFF];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public long getRetransmitted() {
+		return retransmitted.get();
+	}
+
+	// ACKs that matched no command in flight
+	public long getUnmatched() {
+		return unmatched.get();
+	}
+
+	/*
+	 * close stops the reader and retransmit threads. Commands still in flight
+	 * fail.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(reader);
+		LockSupport.unpark(retransmitter);
+		List<CompletableFuture<Boolean>> pending = new ArrayList<CompletableFuture<Boolean>>();
+		synchronized (this) {
+			for (Slot[] device : slots) {
+				if (device != null) {
+					for (Slot slot : device) {
+						if (slot.busy) {
+							pending.add(slot.ack);
+							release(slot);
+						}
+					}
+				}
+			}
+		}
+		for (CompletableFuture<Boolean> ack : pending) {
+			ack.complete(false);
+		}
+	}
+}
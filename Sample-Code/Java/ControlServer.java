@@ -0,0 +1,220 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ControlServer exposes a CardioController on a local TCP port with a
+ * line-based protocol, so rigs can be driven from scripts (e.g. nc or a
+ * Python socket) without the GUI. It only listens on the loopback interface.
+ *
+ *     SPEED <rpm>          set slider speed
+ *     STEP <steps>         set slider step size
+ *     JOG LEFT|RIGHT       move the slider one step
+ *     PUMP UP|DOWN|STOP    drive the syringe pump
+ *     ACQUIRE <minutes>    start a timed acquisition
+ *     RECIPE <file>        compile a recipe and start it as the acquisition
+ *     ABORT                stop the running acquisition and the pump
+ *     ENV                  latest reading, its age and the interlock
+ *     SENSORS              latest sample of every sensor
+ *     STATUS               acquisition state
+ *     QUIT                 close the connection
+ *
+ * Every request gets one reply line starting with OK or ERR. Device commands
+ * reply once the device has taken the command.
+ */
+public class ControlServer {
+	public static final int DEFAULT_PORT = 5050;
+	private static final long COMMAND_TIMEOUT_SECONDS = 5;
+
+	private CardioController controller;
+	private int port;
+	private ServerSocket server;
+	private ExecutorService clients;
+	private volatile boolean running = false;
+
+	// Constructor
+	public ControlServer(CardioController controller, int port) {
+		this.controller = controller;
+		this.port = port;
+		clients = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "control-client");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public synchronized void start() throws IOException {
+		server = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+		running = true;
+		Thread acceptor = new Thread("control-server") {
+			public void run() {
+				while (running) {
+					try {
+						final Socket client = server.accept();
+						clients.execute(new Runnable() {
+							public void run() {
+								serve(client);
+							}
+						});
+					} catch (IOException e) {
+						// Socket closed by stop()
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		try {
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		clients.shutdownNow();
+	}
+
+	public int getPort() {
+		return server != null ? server.getLocalPort() : port;
+	}
+
+	private void serve(Socket client) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), "UTF-8"), true);
+			String line;
+			while ((line = in.readLine()) != null) {
+				String request = line.trim();
+				if (request.equalsIgnoreCase("QUIT")) {
+					out.println("OK bye");
+					break;
+				}
+				if (request.length() > 0) {
+					out.println(handle(request));
+				}
+			}
+			client.close();
+		} catch (IOException e) {
+			// Client went away
+		}
+	}
+
+	/*
+	 * handle runs one request and returns its reply line.
+	 */
+	String handle(String request) {
+		String[] words = request.split("\\s+");
+		String verb = words[0].toUpperCase(Locale.ROOT);
+		String arg = words.length > 1 ? words[1].toUpperCase(Locale.ROOT) : "";
+		try {
+			if (verb.equals("SPEED")) {
+				return await(controller.setSpeed(Integer.parseInt(arg)));
+			} else if (verb.equals("STEP")) {
+				return await(controller.setStep(Integer.parseInt(arg)));
+			} else if (verb.equals("JOG") && arg.equals("LEFT")) {
+				return await(controller.jogLeft());
+			} else if (verb.equals("JOG") && arg.equals("RIGHT")) {
+				return await(controller.jogRight());
+			} else if (verb.equals("PUMP") && arg.equals("UP")) {
+				return await(controller.pumpUp());
+			} else if (verb.equals("PUMP") && arg.equals("DOWN")) {
+				return await(controller.pumpDown());
+			} else if (verb.equals("PUMP") && arg.equals("STOP")) {
+				return await(controller.pumpStop());
+			} else if (verb.equals("ACQUIRE")) {
+				if (controller.isAcquiring()) {
+					return "ERR acquisition already running";
+				}
+				if (!controller.isHumidityInRange()) {
+					return "ERR humidity out of range";
+				}
+				return await(controller.startAcquisition(Integer.parseInt(arg)));
+			} else if (verb.equals("RECIPE") && words.length == 2) {
+				if (controller.isAcquiring()) {
+					return "ERR acquisition already running";
+				}
+				if (!controller.isHumidityInRange()) {
+					return "ERR humidity out of range";
+				}
+				// Replies once the recipe has started; STATUS follows the run
+				Recipe recipe = controller.loadRecipe(words[1]);
+				controller.startRecipe(recipe);
+				return "OK recipe " + recipe.getName() + " started, " + recipe.size() + " steps, "
+						+ TimeUnit.NANOSECONDS.toSeconds(recipe.getDurationNanos()) + " s";
+			} else if (verb.equals("ABORT")) {
+				controller.abortAcquisition();
+				return "OK";
+			} else if (verb.equals("ENV")) {
+				SensorSnapshot env = controller.getEnvironment();
+				return "OK temperature=" + env.getTemperature() + " humidity=" + env.getHumidity() + " quality="
+						+ env.getQuality() + " ageMillis="
+						+ (env.getQuality() == SensorSnapshot.Quality.NONE ? "-" : Long.toString(env.getAgeMillis()))
+						+ " inRange=" + controller.isHumidityInRange() + " filtered="
+						+ controller.getInterlock().getFilteredHumidity();
+			} else if (verb.equals("SENSORS")) {
+				StringBuilder reply = new StringBuilder("OK");
+				SamplingScheduler sampling = controller.getSampling();
+				for (Sensor sensor : sampling.getSensors()) {
+					SensorSample sample = sampling.getLatest(sensor.getName());
+					reply.append(' ').append(sensor.getName()).append('[');
+					for (int i = 0; i < sensor.getSchema().size(); i++) {
+						reply.append(i == 0 ? "" : " ").append(sensor.getSchema().getField(i)).append('=')
+								.append(sample == null ? "?" : Double.toString(sample.get(i)));
+					}
+					reply.append(']');
+				}
+				return reply.toString();
+			} else if (verb.equals("STATUS")) {
+				String status = "OK acquiring=" + controller.isAcquiring() + " secondsLeft=" + controller.getSecondsLeft();
+				RecipeRunner runner = controller.getRecipeRunner();
+				if (runner != null) {
+					status += " recipeSteps=" + runner.getStepsDone() + "/" + runner.getRecipe().size()
+							+ " holding=" + runner.isHolding() + " paused=" + runner.isPaused() + " maxJitterMicros="
+							+ TimeUnit.NANOSECONDS.toMicros(runner.getJitter().getMax());
+				}
+				return status;
+			}
+		} catch (NumberFormatException e) {
+			return "ERR expected a number: " + request;
+		} catch (IllegalArgumentException e) {
+			return "ERR " + e.getMessage();
+		} catch (IOException e) {
+			return "ERR " + e;
+		}
+		return "ERR unknown command: " + request;
+	}
+
+	private static String await(CompletableFuture<Boolean> ack) {
+		try {
+			return ack.get(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS) ? "OK" : "ERR device not connected";
+		} catch (CancellationException e) {
+			return "ERR cancelled by an emergency stop";
+		} catch (ExecutionException e) {
+			if (CommandDispatcher.isCancelled(e.getCause())) {
+				return "ERR cancelled by an emergency stop";
+			}
+			return "ERR " + e.getCause().getMessage();
+		} catch (Exception e) {
+			return "ERR " + e;
+		}
+	}
+}
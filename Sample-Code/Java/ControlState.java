@@ -0,0 +1,87 @@
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ControlState decides which of a rig's controls can be used and publishes
+ * the answer to two properties on an update bus:
+ *
+ *     controls   jog, pump, speed and step: while no acquisition runs
+ *     acquire    Start Acquisition: while no acquisition runs and the
+ *                humidity is in range with a fresh reading
+ *
+ * The state is worked out from the controller every time, never remembered,
+ * so a start the controller refuses leaves everything as it was. It follows
+ * the controller's acquisition and interlock events and re-checks once a
+ * second on the scheduler, which is how a sensor that goes quiet (and sends
+ * no interlock event) greys out Start. CardioPanel shows these properties
+ * and Simulation checks them, so both go by the same rules.
+ */
+public class ControlState implements AcquisitionListener {
+	private static final long CHECK_MILLIS = 1000;
+
+	private CardioController controller;
+	private UiUpdateBus.Property<Boolean> controlsEnabled, acquireEnabled;
+	private ScheduledTask check;
+
+	// Constructor
+	public ControlState(CardioController controller, UiUpdateBus.Property<Boolean> controlsEnabled,
+			UiUpdateBus.Property<Boolean> acquireEnabled) {
+		this.controller = controller;
+		this.controlsEnabled = controlsEnabled;
+		this.acquireEnabled = acquireEnabled;
+		controller.addAcquisitionListener(this);
+		refresh();
+	}
+
+	// Starts following the interlock and the sensor's freshness
+	public synchronized void start() {
+		if (check != null) {
+			return;
+		}
+		controller.getInterlock().subscribe(new HumidityInterlock.Subscriber<InterlockEvent>() {
+			protected void onItem(InterlockEvent event) {
+				refresh();
+			}
+		});
+		check = controller.getScheduler().scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (check != null) {
+			check.cancel();
+		}
+		controller.removeAcquisitionListener(this);
+	}
+
+	/*
+	 * refresh publishes the current state. Calls are serialised, so the last
+	 * one to run publishes the controller's latest state.
+	 */
+	public synchronized void refresh() {
+		boolean idle = !controller.isAcquiring();
+		controlsEnabled.set(idle);
+		acquireEnabled.set(idle && controller.isHumidityInRange());
+	}
+
+	public boolean isControlsEnabled() {
+		return Boolean.TRUE.equals(controlsEnabled.get());
+	}
+
+	public boolean isAcquireEnabled() {
+		return Boolean.TRUE.equals(acquireEnabled.get());
+	}
+
+	public void acquisitionStarted(int minutes) {
+		refresh();
+	}
+
+	public void acquisitionTick(int secondsLeft) {
+	}
+
+	public void acquisitionFinished() {
+		refresh();
+	}
+}
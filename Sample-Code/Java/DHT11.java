@@ -1,19 +1,106 @@
 import java.io.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-public class DHT11 {
-	private double lastTemp, lastHum;
+/*
+ * DHT11 reads the humidity and temperature sensor in the electrospinner's
+ * container. readings() takes a single reading by running the Adafruit
+ * script once. startStream() instead keeps DHT11_stream.py running and
+ * updates the values as samples arrive, without paying for a Python
+ * start-up per reading.
+ *
+ * The latest values are published as one immutable SensorSnapshot through a
+ * volatile reference: readers on any thread get a temperature and humidity
+ * from the same reading without locking, together with its age, and can
+ * refuse values older than they can act on.
+ *
+ * As a Sensor plugin a DHT11 reports temperature and humidity every
+ * PERIOD_MILLIS. While streaming, read() returns the latest streamed sample
+ * instead of running the script again.
+ */
+public class DHT11 implements SampleListener, Sensor {
+	public static final SampleSchema SCHEMA = new SampleSchema("temperature", "F", "humidity", "%");
+	// The DHT11 cannot be read more often than about every two seconds
+	public static final long PERIOD_MILLIS = 2000;
+	public static final long BUDGET_MILLIS = 3000;
+	// Readings older than this are not acted on
+	public static final long STALE_MILLIS = 2 * PERIOD_MILLIS;
 	private String LIB_NOT_PRESENT_MESSAGE = "Python: File is missing.";
 	private String ERROR_READING = "Failed to get reading. Try again!";
 	private String ERROR_READING_MSG = "Python: Failed to get reading. Try again!";
 	private String cmd = "sudo python /home/pi/Adafruit_Python_DHT/examples/DHT11_read.py";
+	static final String STREAM_CMD = "sudo python /home/pi/temp/DHT11_stream.py";
+	private String streamCmd = STREAM_CMD;
+	static final String METRICS_NAME = "dht11";
+	private String name = METRICS_NAME;
+	private SensorMetrics metrics;
 	private boolean state = false;
+	private SensorStreamReader stream;
+	private List<SampleListener> listeners = new CopyOnWriteArrayList<SampleListener>();
+	private volatile SensorSnapshot snapshot = SensorSnapshot.NONE;
+	private volatile boolean streaming = false;
+	private volatile Clock clock = Clock.SYSTEM;
 	
 	public DHT11() {
-		lastTemp = 0.0;
-		lastHum = 0.0;
+		metrics = Metrics.sensor(name);
+	}
+
+	// Reads with a different one-shot command, e.g. a stub script
+	public DHT11(String cmd) {
+		this();
+		this.cmd = cmd;
+	}
+
+	/*
+	 * A named sensor streaming from its own helper command, for rigs that
+	 * each have their own DHT11. The name keys the sensor's metrics.
+	 */
+	public DHT11(String name, String streamCmd) {
+		this.name = name;
+		this.streamCmd = streamCmd;
+		metrics = Metrics.sensor(name);
+	}
+
+	/*
+	 * startStream starts the long-running sensor reader. From then on the
+	 * values are updated by the stream and readings() is not needed.
+	 */
+	public synchronized void startStream() {
+		if (stream == null) {
+			stream = new SensorStreamReader(name, streamCmd, this);
+		}
+		stream.start();
+		streaming = true;
+	}
+
+	public synchronized void stopStream() {
+		if (stream != null) {
+			stream.stop();
+		}
+		streaming = false;
+	}
+
+	public void sampleReceived(DHT11Sample sample) {
+		publish(sample);
+		for (SampleListener listener : listeners) {
+			listener.sampleReceived(sample);
+		}
+	}
+
+	// Listeners are told about every streamed sample
+	public void addListener(SampleListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(SampleListener listener) {
+		listeners.remove(listener);
 	}
 
 	public void readings() {
+		SensorReadEvent event = new SensorReadEvent();
+		event.begin();
+		long start = System.nanoTime();
+		FailureCause cause = FailureCause.IO_ERROR;
 		
 		try {
 			String ret = "";
@@ -32,34 +119,123 @@ public class DHT11 {
 				ex.printStackTrace();
 			}
 			ret.trim();
-			if (ret.length() == 0) // Library is not present
+			if (ret.length() == 0) { // Library is not present
+				cause = FailureCause.MISSING_SCRIPT;
 				throw new RuntimeException(LIB_NOT_PRESENT_MESSAGE);
-			else {
+			} else {
 				// Error reading the the sensor, maybe is not connected.
 				if (ret.contains(ERROR_READING)) {
+					cause = FailureCause.NO_DEVICE;
 					String msg = String.format(ERROR_READING_MSG, toString());
 					throw new Exception(msg);
 				} else {
 					// Read completed. Parse and update the values
-					String[] vals = ret.split("  ");
-					double t = Float.parseFloat(vals[0].trim());
-					double h = Float.parseFloat(vals[1].trim());
-					lastTemp = t;
-					lastHum = h;
+					cause = FailureCause.PARSE_ERROR;
+					DHT11Sample sample = parseReading(ret, clock.currentTimeMillis());
+					publish(sample);
+					metrics.sample(System.nanoTime() - start, sample.getTimestamp());
+					event.temperature = sample.getTemperature();
+					event.humidity = sample.getHumidity();
+					event.success = true;
 				}
 			}
 		} catch (Exception e) {
-			//System.out.println(e.getMessage());
-			//if (e instanceof RuntimeException)
-				//System.exit(-1);
+			// Counted by cause instead of being lost
+			metrics.failure(System.nanoTime() - start, cause, String.valueOf(e.getMessage()));
+			synchronized (this) {
+				snapshot = snapshot.failed();
+			}
+			event.cause = cause.name();
+		}
+		event.sensor = name;
+		event.commit();
+	}
+
+	// Parses the "<temperature>  <humidity>" output of DHT11_read.py
+	static DHT11Sample parseReading(String ret, long timestamp) {
+		String[] vals = ret.split("  ");
+		double t = Float.parseFloat(vals[0].trim());
+		double h = Float.parseFloat(vals[1].trim());
+		return new DHT11Sample(timestamp, t, h);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public SampleSchema getSchema() {
+		return SCHEMA;
+	}
+
+	public long getPeriodMillis() {
+		return PERIOD_MILLIS;
+	}
+
+	public long getBudgetMillis() {
+		return BUDGET_MILLIS;
+	}
+
+	// Writers take turns so sequence numbers stay unique; readers never lock
+	private synchronized void publish(DHT11Sample sample) {
+		snapshot = snapshot.next(sample);
+	}
+
+	/*
+	 * read returns the latest streamed sample, or takes a reading when not
+	 * streaming. It fails if there is no sample yet or the latest one is
+	 * older than STALE_MILLIS, i.e. the stream or the script has stopped
+	 * delivering.
+	 */
+	public SensorSample read() throws IOException {
+		if (!streaming) {
+			readings();
+		}
+		SensorSnapshot current = snapshot;
+		if (current.getQuality() == SensorSnapshot.Quality.NONE) {
+			throw new IOException(name + ": no reading yet");
+		}
+		if (!streaming && current.getQuality() == SensorSnapshot.Quality.FAILED) {
+			throw new IOException(name + ": reading failed");
 		}
+		if (!current.isFresh(STALE_MILLIS, clock.currentTimeMillis())) {
+			throw new IOException(name + ": latest reading is stale");
+		}
+		return new SensorSample(current.getTimestamp(), SCHEMA, current.getTemperature(), current.getHumidity());
+	}
+
+	public void close() {
+		stopStream();
+	}
+
+	// Sets the clock that readings are timestamped and aged by
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	public SensorMetrics getMetrics() {
+		return metrics;
+	}
+
+	// Latest temperature and humidity as one consistent snapshot; wait-free
+	public SensorSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/*
+	 * getSnapshot(maxAgeMillis) returns the latest snapshot only if its
+	 * reading is at most maxAgeMillis old, and null otherwise, so a caller
+	 * never acts on a stale or never-read 0.0.
+	 */
+	public SensorSnapshot getSnapshot(long maxAgeMillis) {
+		SensorSnapshot current = snapshot;
+		return current.isFresh(maxAgeMillis, clock.currentTimeMillis()) ? current : null;
 	}
 
 	public double getTemperature() {
-		return lastTemp;
+		return snapshot.getTemperature();
 	}
 
 	public double getHumidiy() {
-		return lastHum;
+		return snapshot.getHumidity();
 	}
 }
@@ -0,0 +1,33 @@
+/*
+ * DHT11Sample is one reading from the humidity and temperature sensor.
+ * Timestamps are milliseconds since the epoch as reported by the reader,
+ * temperature is in degrees Fahrenheit and humidity is a percentage.
+ */
+public final class DHT11Sample {
+	private final long timestamp;
+	private final double temperature;
+	private final double humidity;
+
+	// Constructor
+	public DHT11Sample(long timestamp, double temperature, double humidity) {
+		this.timestamp = timestamp;
+		this.temperature = temperature;
+		this.humidity = humidity;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public double getTemperature() {
+		return temperature;
+	}
+
+	public double getHumidity() {
+		return humidity;
+	}
+
+	public String toString() {
+		return timestamp + " " + temperature + "F " + humidity + "%";
+	}
+}
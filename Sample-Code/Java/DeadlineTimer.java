@@ -0,0 +1,106 @@
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * DeadlineTimer runs a task at an exact time on its scheduler's clock. It
+ * has one thread, which parks until just before the deadline and spins the
+ * last SPIN_NANOS, so the task runs within a fraction of a millisecond of
+ * its deadline instead of the scheduler's millisecond granularity. Only one
+ * run is pending at a time: at replaces the one before.
+ *
+ * Timers come from PeriodicScheduler.newDeadlineTimer; a VirtualScheduler's
+ * timers run their task on the virtual clock instead.
+ */
+public class DeadlineTimer {
+	// Park until this close to a deadline, then spin
+	private static final long SPIN_NANOS = 200000;
+
+	private String threadName;
+	private Thread thread;
+	private Runnable task;
+	private long deadline;
+	private long armed = 0;
+	private boolean shutdown = false;
+
+	// Constructor
+	public DeadlineTimer(String threadName) {
+		this.threadName = threadName;
+	}
+
+	// For timers that run their task some other way, such as VirtualScheduler's
+	protected DeadlineTimer() {
+	}
+
+	/*
+	 * at runs task once the clock reaches deadline, as System.nanoTime(),
+	 * replacing the run still pending if there is one. A deadline already
+	 * passed runs the task at once.
+	 */
+	public synchronized void at(long deadline, Runnable task) {
+		if (shutdown) {
+			return;
+		}
+		this.deadline = deadline;
+		this.task = task;
+		armed++;
+		if (thread == null) {
+			thread = new Thread(threadName) {
+				public void run() {
+					loop();
+				}
+			};
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+			thread.start();
+		}
+		LockSupport.unpark(thread);
+	}
+
+	// Drops the pending run, if any, and stops the thread
+	public synchronized void shutdown() {
+		shutdown = true;
+		task = null;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private void loop() {
+		while (true) {
+			Runnable next;
+			long due, run;
+			synchronized (this) {
+				if (shutdown) {
+					return;
+				}
+				next = task;
+				due = deadline;
+				run = armed;
+			}
+			if (next == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			long left = due - System.nanoTime();
+			if (left > SPIN_NANOS) {
+				LockSupport.parkNanos(this, left - SPIN_NANOS);
+				continue;
+			}
+			if (left > 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			synchronized (this) {
+				if (armed != run || shutdown) {
+					// Replaced while we waited
+					continue;
+				}
+				task = null;
+			}
+			try {
+				next.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,304 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * DeviceChannel is one logical device (the syringe pump, the slider, ...) on
+ * a Bluetooth link. It knows the device's id and its command vocabulary: the
+ * command letters its sketch understands, in the order the GUI numbers them.
+ * Commands are framed with FrameCodec and written to the link, which may be
+ * shared with other devices.
+ *
+ * sendCommand writes a frame and returns. send goes through the link's
+ * CommandWindow when it has one: it returns as soon as the frame is written
+ * and completes once the device has acknowledged it, so several commands
+ * can be on their way at once.
+ */
+public class DeviceChannel implements DeviceComm {
+	private String name, metricsName;
+	private String link;
+	private int deviceId;
+	private byte[] commandArray;
+	private DeviceTransport transport;
+	private ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.FRAME_LENGTH);
+	private volatile int sequence = 0;
+	private volatile Boolean checkBluetooth = true;
+	private OperationMetrics metrics;
+	private volatile RunJournal journal;
+	private volatile TelemetryExporter exporter;
+	private CommandWindow window;
+
+	// Constructor
+	public DeviceChannel(String name, int deviceId, String commands, String link, DeviceTransport transport) {
+		this(name, name, deviceId, commands, link, transport);
+	}
+
+	// metricsName keys the metrics, e.g. rig2.pump when several rigs run
+	public DeviceChannel(String name, String metricsName, int deviceId, String commands, String link,
+			DeviceTransport transport) {
+		this.name = name;
+		this.metricsName = metricsName;
+		this.deviceId = deviceId;
+		this.link = link;
+		this.transport = transport;
+		metrics = Metrics.command(metricsName);
+		commandArray = new byte[commands.length()];
+		for (int i = 0; i < commandArray.length; i++) {
+			commandArray[i] = (byte) commands.charAt(i);
+		}
+	}
+
+	public synchronized void sendCommand(int command, int value) throws IOException {
+		checkCommand(command);
+
+		// Encode the command into a single binary frame
+		buffer.clear();
+		int seq = sequence;
+		FrameCodec.encode(buffer, commandArray[command], deviceId, seq, value);
+		buffer.flip();
+		sequence = (sequence + 1) & 0xFF;
+
+		// Write straight to the open Bluetooth link
+		DeviceCommandEvent event = new DeviceCommandEvent();
+		event.begin();
+		long start = System.nanoTime();
+		try {
+			transport.write(buffer);
+			checkBluetooth = true;
+			long elapsed = System.nanoTime() - start;
+			metrics.success(elapsed);
+			record(command, seq, value, true, elapsed);
+			event.success = true;
+		} catch (IOException e) {
+			checkBluetooth = false;
+			// A missing RFCOMM device file means the module was never bound
+			FailureCause cause = e instanceof FileNotFoundException ? FailureCause.NO_DEVICE : FailureCause.IO_ERROR;
+			long elapsed = System.nanoTime() - start;
+			metrics.failure(elapsed, cause, e.getMessage());
+			record(command, seq, value, false, elapsed);
+			event.cause = cause.name();
+			throw e;
+		} finally {
+			event.device = metricsName;
+			event.opcode = (char) commandArray[command];
+			event.value = value;
+			event.commit();
+		}
+	}
+
+	/*
+	 * send writes the command and returns without waiting for the device. The
+	 * future completes with true once the device has acknowledged the command,
+	 * or false if the link failed or no ACK came back after the window's
+	 * retries. send blocks while the device has a full window of commands
+	 * waiting for their ACK. Without a window it is sendCommand, completed.
+	 */
+	public CompletableFuture<Boolean> send(int command, int value) {
+		return send(command, value, false);
+	}
+
+	/*
+	 * sendUrgent is send for emergency commands: it does not wait for room
+	 * in the window, and a send that has not written its frame yet gives up,
+	 * whether it is still waiting for room or has found it, and commands
+	 * already written are no longer resent, so nothing sent before the urgent
+	 * command reaches the device after it. The futures of the commands given
+	 * up are cancelled.
+	 */
+	public CompletableFuture<Boolean> sendUrgent(int command, int value) {
+		return send(command, value, true);
+	}
+
+	// Turns away the sends that have not written their frame yet
+	public void flush() {
+		CommandWindow ackWindow = window;
+		if (ackWindow != null) {
+			ackWindow.flush(deviceId);
+		}
+	}
+
+	private CompletableFuture<Boolean> send(int command, int value, boolean urgent) {
+		CommandWindow ackWindow = window;
+		if (ackWindow == null) {
+			try {
+				sendCommand(command, value);
+			} catch (IOException e) {
+				return CompletableFuture.completedFuture(false);
+			}
+			return CompletableFuture.completedFuture(checkBluetooth);
+		}
+		checkCommand(command);
+		try {
+			if (urgent) {
+				ackWindow.flush(deviceId);
+			}
+			int first = -1;
+			while (true) {
+				// Wait for room without holding the channel, so urgent sends pass
+				int generation = urgent ? 0 : ackWindow.awaitRoom(deviceId, sequence);
+				if (generation < 0 || first >= 0 && generation != first) {
+					return cancelled();
+				}
+				first = generation;
+				CompletableFuture<Boolean> ack = sendPipelined(ackWindow, command, value, urgent, generation);
+				if (ack != null) {
+					return ack;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return CompletableFuture.completedFuture(false);
+		}
+	}
+
+	/*
+	 * sendPipelined sends through the window under the next sequence number,
+	 * or returns null if that is out of the window's reach; urgent commands
+	 * are never turned away. A command whose device was flushed since it
+	 * found room is dropped: an urgent command has been, or is about to be,
+	 * written ahead of it.
+	 */
+	private synchronized CompletableFuture<Boolean> sendPipelined(CommandWindow ackWindow, int command, int value,
+			boolean urgent, int generation) throws InterruptedException {
+		if (!urgent && ackWindow.isFlushed(deviceId, generation)) {
+			return cancelled();
+		}
+		CommandWindow.Slot slot = ackWindow.reserve(this, sequence, urgent);
+		if (slot == null) {
+			return null;
+		}
+		try {
+			FrameCodec.encode(slot.frame, commandArray[command], deviceId, sequence, value);
+		} catch (IllegalArgumentException e) {
+			ackWindow.release(slot);
+			throw e;
+		}
+		slot.frame.flip();
+		slot.command = command;
+		slot.value = value;
+		int seq = sequence;
+		sequence = (sequence + 1) & 0xFF;
+
+		DeviceCommandEvent event = new DeviceCommandEvent();
+		event.begin();
+		long start = System.nanoTime();
+		try {
+			CompletableFuture<Boolean> ack = ackWindow.send(slot);
+			checkBluetooth = true;
+			event.success = true;
+			return ack;
+		} catch (IOException e) {
+			checkBluetooth = false;
+			FailureCause cause = e instanceof FileNotFoundException ? FailureCause.NO_DEVICE : FailureCause.IO_ERROR;
+			long elapsed = System.nanoTime() - start;
+			metrics.failure(elapsed, cause, e.getMessage());
+			record(command, seq, value, false, elapsed);
+			event.cause = cause.name();
+			return CompletableFuture.completedFuture(false);
+		} finally {
+			event.device = metricsName;
+			event.opcode = (char) commandArray[command];
+			event.value = value;
+			event.commit();
+		}
+	}
+
+	// The outcome of a command dropped for an urgent one
+	private static CompletableFuture<Boolean> cancelled() {
+		CompletableFuture<Boolean> ack = new CompletableFuture<Boolean>();
+		ack.cancel(false);
+		return ack;
+	}
+
+	/*
+	 * acknowledged is called by the window when a command sent with send has
+	 * been acknowledged (ok) or has run out of retries. elapsed runs from the
+	 * first time the frame was written.
+	 */
+	void acknowledged(int command, int seq, int value, boolean ok, long elapsed) {
+		if (ok) {
+			metrics.success(elapsed);
+		} else {
+			metrics.failure(elapsed, FailureCause.NO_ACK, "no ACK for " + (char) commandArray[command] + " #" + seq);
+		}
+		record(command, seq, value, ok, elapsed);
+		RunJournal run = journal;
+		if (ok && run != null) {
+			run.ack(deviceId, seq);
+		}
+	}
+
+	private void checkCommand(int command) {
+		if (command < 0 || command >= commandArray.length) {
+			throw new IllegalArgumentException(name + " has no command " + command);
+		}
+	}
+
+	private void record(int command, int seq, int value, boolean ok, long elapsed) {
+		RunJournal run = journal;
+		if (run != null) {
+			run.command(deviceId, commandArray[command], seq, value, ok, elapsed);
+		}
+		TelemetryExporter export = exporter;
+		if (export != null) {
+			export.command(deviceId, commandArray[command], value, ok, elapsed);
+		}
+	}
+
+	/*
+	 * setJournal makes every command from now on, and whether the device took
+	 * it, part of the given run journal; null stops recording.
+	 */
+	public void setJournal(RunJournal journal) {
+		this.journal = journal;
+	}
+
+	// Exports every command from now on; null stops exporting
+	public void setExporter(TelemetryExporter exporter) {
+		this.exporter = exporter;
+	}
+
+	// Pipelines send through the link's window; null sends without ACKs
+	public void setWindow(CommandWindow window) {
+		this.window = window;
+	}
+
+	public CommandWindow getWindow() {
+		return window;
+	}
+
+	// Returns the GUI's command number for a command letter, or -1.
+	public int commandIndex(char letter) {
+		for (int i = 0; i < commandArray.length; i++) {
+			if (commandArray[i] == letter) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public Boolean checkConnection() {
+		return checkBluetooth;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getLink() {
+		return link;
+	}
+
+	public int getDeviceId() {
+		return deviceId;
+	}
+
+	public OperationMetrics getMetrics() {
+		return metrics;
+	}
+
+	public DeviceTransport getTransport() {
+		return transport;
+	}
+}
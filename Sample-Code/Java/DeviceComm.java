@@ -0,0 +1,23 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * DeviceComm is implemented by the Bluetooth communication classes so the
+ * panel and the command dispatcher can treat the slider and the syringe
+ * pump the same way.
+ */
+public interface DeviceComm {
+
+	void sendCommand(int command, int value) throws IOException;
+
+	// Sends without waiting; completes once the device has acknowledged
+	CompletableFuture<Boolean> send(int command, int value);
+
+	// Sends ahead of anything the device is still waiting to send
+	CompletableFuture<Boolean> sendUrgent(int command, int value);
+
+	// Drops the sends under way that have not reached the device yet; their futures are cancelled
+	void flush();
+
+	Boolean checkConnection();
+}
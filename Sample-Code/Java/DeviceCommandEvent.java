@@ -0,0 +1,30 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * JFR event for one command sent to a device. The event's duration is the
+ * time taken to frame and write the command.
+ */
+@Name("cardio.DeviceCommand")
+@Label("Device Command")
+@Category({ "Cardio", "Devices" })
+@Description("A command sent to the syringe pump or slider")
+public class DeviceCommandEvent extends Event {
+	@Label("Device")
+	public String device;
+
+	@Label("Opcode")
+	public char opcode;
+
+	@Label("Value")
+	public int value;
+
+	@Label("Success")
+	public boolean success;
+
+	@Label("Failure Cause")
+	public String cause;
+}
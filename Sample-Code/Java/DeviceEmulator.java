@@ -0,0 +1,338 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/*
+ * DeviceEmulator stands in for the HC-06 modules and the Arduinos behind them
+ * so the full Java stack can be driven without hardware. It is a
+ * DeviceTransport: frames written to it are decoded, recorded, applied to a
+ * model of the syringe pump (u/d/s/t) or the slider (s/r/L/R/t), and answered
+ * with ACK frames exactly like the sketches do.
+ *
+ * The simulated link delays each ACK by the configured latency plus a uniform
+ * jitter and the Arduino's processing time, and loses frames with the
+ * configured probability (a lost frame is recorded but never acknowledged).
+ * A fixed seed makes runs repeatable.
+ *
+ *     java DeviceEmulator [commands] [threads] [window]
+ *
+ * drives commands through DeviceRegistry and DeviceChannel into an emulator,
+ * one thread per configured device, and reports throughput and latency
+ * percentiles. With a window of 0 (the default) each thread waits for every
+ * ACK before sending the next command; with a window above 0 the commands
+ * are pipelined through a CommandWindow of that size.
+ */
+public class DeviceEmulator implements DeviceTransport {
+	public static final int PUMP = 0;
+	public static final int SLIDER = 1;
+
+	private Map<Integer, EmulatedDevice> devices = new HashMap<Integer, EmulatedDevice>();
+	private List<EmulatedCommand> received = new ArrayList<EmulatedCommand>();
+	private PriorityQueue<long[]> pendingAcks = new PriorityQueue<long[]>(64, new java.util.Comparator<long[]>() {
+		public int compare(long[] a, long[] b) {
+			return Long.compare(a[0], b[0]);
+		}
+	});
+	private ByteBuffer inbox = ByteBuffer.allocate(4096);
+	private ByteBuffer outbox = ByteBuffer.allocate(FrameCodec.FRAME_LENGTH);
+	private CommandFrame frame = new CommandFrame();
+	private Random random;
+	private long latencyNanos = 0, jitterNanos = 0, processingNanos = 0;
+	private double lossRate = 0;
+	private boolean open = false;
+
+	// Constructor: a pump with id 1 and a slider with id 2, as in devices.properties
+	public DeviceEmulator() {
+		this(42);
+	}
+
+	public DeviceEmulator(long seed) {
+		random = new Random(seed);
+		addDevice(1, PUMP);
+		addDevice(2, SLIDER);
+	}
+
+	public synchronized void addDevice(int deviceId, int kind) {
+		devices.put(deviceId, new EmulatedDevice(kind));
+	}
+
+	public synchronized void setLatency(long micros) {
+		latencyNanos = micros * 1000;
+	}
+
+	public synchronized void setJitter(long micros) {
+		jitterNanos = micros * 1000;
+	}
+
+	public synchronized void setProcessingTime(long micros) {
+		processingNanos = micros * 1000;
+	}
+
+	public synchronized void setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+	}
+
+	public synchronized void open() {
+		open = true;
+	}
+
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	public synchronized void write(ByteBuffer src) {
+		open = true;
+		long now = System.nanoTime();
+		if (src.remaining() > inbox.remaining()) {
+			inbox.clear();
+		}
+		inbox.put(src);
+		inbox.flip();
+		while (FrameCodec.decode(inbox, frame)) {
+			EmulatedDevice device = devices.get(frame.deviceId);
+			boolean lost = random.nextDouble() < lossRate;
+			received.add(new EmulatedCommand(now, frame, lost));
+			if (lost || device == null) {
+				continue;
+			}
+			device.apply(frame.opcode, frame.value);
+			long delay = latencyNanos + processingNanos;
+			if (jitterNanos > 0) {
+				delay += (long) (random.nextDouble() * jitterNanos);
+			}
+			pendingAcks.add(new long[] { now + delay, frame.deviceId, frame.sequence });
+		}
+		inbox.compact();
+	}
+
+	/*
+	 * read returns the ACK frames whose simulated delivery time has passed.
+	 * It never blocks; 0 means nothing has arrived yet.
+	 */
+	public synchronized int read(ByteBuffer dst) {
+		if (!open) {
+			return -1;
+		}
+		long now = System.nanoTime();
+		int count = 0;
+		while (!pendingAcks.isEmpty() && pendingAcks.peek()[0] <= now
+				&& dst.remaining() >= FrameCodec.FRAME_LENGTH) {
+			long[] ack = pendingAcks.poll();
+			outbox.clear();
+			FrameCodec.encode(outbox, FrameCodec.OPCODE_ACK, (int) ack[1], (int) ack[2], 0);
+			outbox.flip();
+			dst.put(outbox);
+			count += FrameCodec.FRAME_LENGTH;
+		}
+		return count;
+	}
+
+	public synchronized void close() {
+		open = false;
+	}
+
+	// Returns a copy of every frame received so far, lost ones included.
+	public synchronized List<EmulatedCommand> getReceived() {
+		return new ArrayList<EmulatedCommand>(received);
+	}
+
+	public synchronized int getReceivedCount() {
+		return received.size();
+	}
+
+	public synchronized void clearReceived() {
+		received.clear();
+	}
+
+	public synchronized EmulatedDevice getDevice(int deviceId) {
+		return devices.get(deviceId);
+	}
+
+	/*
+	 * EmulatedDevice models what the sketch would do with each command.
+	 */
+	public static class EmulatedDevice {
+		private int kind;
+		private char pumpState = 's';
+		private int speed = 100, step = 300, position = 0;
+		private int runMinutes = 0;
+
+		EmulatedDevice(int kind) {
+			this.kind = kind;
+		}
+
+		synchronized void apply(int opcode, int value) {
+			if (kind == PUMP) {
+				if (opcode == 'u' || opcode == 'd' || opcode == 's') {
+					pumpState = (char) opcode;
+				} else if (opcode == 't') {
+					runMinutes = value;
+					pumpState = 'd';
+				}
+			} else {
+				if (opcode == 's') {
+					speed = value;
+				} else if (opcode == 'r') {
+					step = value;
+				} else if (opcode == 'L') {
+					position += step;
+				} else if (opcode == 'R') {
+					position -= step;
+				} else if (opcode == 't') {
+					runMinutes = value;
+				}
+			}
+		}
+
+		public synchronized char getPumpState() {
+			return pumpState;
+		}
+
+		public synchronized int getSpeed() {
+			return speed;
+		}
+
+		public synchronized int getStep() {
+			return step;
+		}
+
+		public synchronized int getPosition() {
+			return position;
+		}
+
+		public synchronized int getRunMinutes() {
+			return runMinutes;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		final int window = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+		final DeviceEmulator emulator = new DeviceEmulator();
+		emulator.setLatency(200);
+		emulator.setJitter(100);
+		emulator.setProcessingTime(50);
+		final DeviceRegistry registry = new DeviceRegistry(new LinkPool(new TransportFactory() {
+			public DeviceTransport createTransport(String link) {
+				return emulator;
+			}
+		}));
+		Properties config = DeviceRegistry.loadConfig();
+		config.setProperty("ack.window", Integer.toString(window));
+		if (window > 0) {
+			// The emulator is a single link; one window must see every ACK
+			config.setProperty("device.slider.link", config.getProperty("device.pump.link"));
+		}
+		registry.load(config);
+		final DeviceChannel[] channels = registry.getDevices();
+
+		// One reader hands out ACKs; each worker does stop-and-wait on its own
+		// device and waits for that device's ACK count to move on
+		final AtomicLongArray acks = new AtomicLongArray(256);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread reader = new Thread("emulator-acks") {
+			public void run() {
+				ByteBuffer in = ByteBuffer.allocate(4096);
+				CommandFrame ack = new CommandFrame();
+				while (!done.get()) {
+					if (emulator.read(in) <= 0) {
+						// Leave the emulator's lock free for the senders
+						LockSupport.parkNanos(10000);
+						continue;
+					}
+					in.flip();
+					while (FrameCodec.decode(in, ack)) {
+						acks.incrementAndGet(ack.deviceId);
+					}
+					in.compact();
+				}
+			}
+		};
+		reader.setDaemon(true);
+		if (window == 0) {
+			reader.start();
+		}
+
+		final int perThread = commands / threads;
+		final long[][] latencies = new long[threads][perThread];
+		Thread[] workers = new Thread[threads];
+		long begin = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final DeviceChannel channel = channels[t % channels.length];
+			final long[] mine = latencies[t];
+			workers[t] = new Thread() {
+				public void run() {
+					try {
+						if (window > 0) {
+							pipeline(channel, mine);
+							return;
+						}
+						for (int i = 0; i < perThread; i++) {
+							long before = acks.get(channel.getDeviceId());
+							long start = System.nanoTime();
+							channel.sendCommand(0, i & 0x3FF);
+							while (acks.get(channel.getDeviceId()) == before) {
+								Thread.onSpinWait();
+							}
+							mine[i] = System.nanoTime() - start;
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - begin;
+		done.set(true);
+
+		long[] all = new long[perThread * threads];
+		for (int t = 0; t < threads; t++) {
+			System.arraycopy(latencies[t], 0, all, t * perThread, perThread);
+		}
+		Arrays.sort(all);
+		System.out.println("commands:    " + all.length + " over " + threads + " threads");
+		System.out.println("throughput:  " + (all.length * 1000000000L / elapsed) + " commands/s");
+		System.out.println("p50 (us):    " + all[all.length / 2] / 1000.0);
+		System.out.println("p99 (us):    " + all[(int) (all.length * 0.99)] / 1000.0);
+		System.out.println("p99.9 (us):  " + all[(int) (all.length * 0.999)] / 1000.0);
+		System.out.println("max (us):    " + all[all.length - 1] / 1000.0);
+		System.out.println("received:    " + emulator.getReceivedCount());
+		if (window > 0) {
+			System.out.println("resent:      " + channels[0].getWindow().getRetransmitted());
+		}
+	}
+
+	// Sends every command without waiting and times each one to its ACK
+	private static void pipeline(DeviceChannel channel, final long[] latencies) {
+		List<CompletableFuture<Boolean>> acks = new ArrayList<CompletableFuture<Boolean>>();
+		for (int i = 0; i < latencies.length; i++) {
+			final int n = i;
+			final long start = System.nanoTime();
+			acks.add(channel.send(0, i & 0x3FF).whenComplete(new BiConsumer<Boolean, Throwable>() {
+				public void accept(Boolean ok, Throwable failure) {
+					latencies[n] = System.nanoTime() - start;
+				}
+			}));
+		}
+		for (CompletableFuture<Boolean> ack : acks) {
+			ack.join();
+		}
+	}
+}
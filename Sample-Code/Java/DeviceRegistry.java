@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/*
+ * DeviceRegistry holds every device the GUI can command, by name. Devices are
+ * described by configuration rather than code, so adding another actuator
+ * only needs a few more lines in devices.properties:
+ *
+ *     devices=pump,slider
+ *     device.pump.id=1
+ *     device.pump.link=/dev/rfcomm0
+ *     device.pump.commands=udst
+ *
+ * The links themselves come from a LinkPool, so devices that share a link
+ * share its connection. The ack.* keys set up the links' CommandWindows.
+ */
+public class DeviceRegistry {
+	public static final String PUMP = "pump";
+	public static final String SLIDER = "slider";
+	private static final String CONFIG_FILE = "devices.properties";
+
+	private LinkPool pool;
+	private String scope;
+	private Map<String, DeviceChannel> devices = new LinkedHashMap<String, DeviceChannel>();
+
+	// Constructor
+	public DeviceRegistry(LinkPool pool) {
+		this(pool, null);
+	}
+
+	/*
+	 * A registry for one of several rigs. Its devices keep their plain names
+	 * but their metrics are kept apart as <scope>.<name>.
+	 */
+	public DeviceRegistry(LinkPool pool, String scope) {
+		this.pool = pool;
+		this.scope = scope;
+	}
+
+	/*
+	 * createDefault builds a registry from devices.properties on the class
+	 * path, or from the built-in pump and slider settings if the file is
+	 * missing.
+	 */
+	public static DeviceRegistry createDefault() {
+		DeviceRegistry registry = new DeviceRegistry(new LinkPool());
+		registry.load(loadConfig());
+		return registry;
+	}
+
+	public static Properties loadConfig() {
+		Properties config = new Properties();
+		InputStream in = DeviceRegistry.class.getResourceAsStream(CONFIG_FILE);
+		if (in != null) {
+			try {
+				config.load(in);
+				in.close();
+			} catch (IOException e) {
+				config.clear();
+			}
+		}
+		if (config.isEmpty()) {
+			config.setProperty("devices", PUMP + "," + SLIDER);
+			config.setProperty("device.pump.id", "1");
+			config.setProperty("device.pump.link", "/dev/rfcomm0");
+			config.setProperty("device.pump.commands", "udst");
+			config.setProperty("device.slider.id", "2");
+			config.setProperty("device.slider.link", "/dev/rfcomm1");
+			config.setProperty("device.slider.commands", "srLRt");
+		}
+		return config;
+	}
+
+	public void load(Properties config) {
+		pool.setWindow(Integer.parseInt(config.getProperty("ack.window", "" + CommandWindow.DEFAULT_SIZE).trim()),
+				Long.parseLong(config.getProperty("ack.timeout.millis", "" + CommandWindow.DEFAULT_TIMEOUT_MILLIS).trim()),
+				Integer.parseInt(config.getProperty("ack.retries", "" + CommandWindow.DEFAULT_RETRIES).trim()));
+		String[] names = config.getProperty("devices", "").split(",");
+		for (String name : names) {
+			name = name.trim();
+			if (name.length() == 0) {
+				continue;
+			}
+			String prefix = "device." + name + ".";
+			int id = Integer.parseInt(config.getProperty(prefix + "id").trim());
+			String link = config.getProperty(prefix + "link").trim();
+			String commands = config.getProperty(prefix + "commands").trim();
+			register(name, id, commands, link);
+		}
+	}
+
+	public synchronized DeviceChannel register(String name, int deviceId, String commands, String link) {
+		if (devices.containsKey(name)) {
+			throw new IllegalArgumentException("Device already registered: " + name);
+		}
+		String metricsName = scope == null ? name : scope + "." + name;
+		DeviceChannel channel = new DeviceChannel(name, metricsName, deviceId, commands, link, pool.acquire(link));
+		channel.setWindow(pool.getWindow(link));
+		devices.put(name, channel);
+		return channel;
+	}
+
+	public synchronized DeviceChannel get(String name) {
+		DeviceChannel channel = devices.get(name);
+		if (channel == null) {
+			throw new IllegalArgumentException("Unknown device: " + name);
+		}
+		return channel;
+	}
+
+	public synchronized DeviceChannel[] getDevices() {
+		return devices.values().toArray(new DeviceChannel[0]);
+	}
+
+	public LinkPool getPool() {
+		return pool;
+	}
+
+	public synchronized void close() {
+		for (DeviceChannel channel : devices.values()) {
+			try {
+				pool.release(channel.getLink());
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+		devices.clear();
+	}
+}
@@ -0,0 +1,25 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * DeviceTransport is a long-lived link to one of the HC-06 Bluetooth modules.
+ * The link is opened once and kept open, so sending a command is only a write
+ * of the command bytes instead of a Python process and a fresh RFCOMM
+ * connection per button press.
+ */
+public interface DeviceTransport {
+
+	// Open the link. Calling open on an already open link does nothing.
+	void open() throws IOException;
+
+	boolean isOpen();
+
+	// Write every remaining byte of src to the device.
+	void write(ByteBuffer src) throws IOException;
+
+	// Read whatever the device has sent back into dst. Returns the number of
+	// bytes read, or -1 once the link has been closed.
+	int read(ByteBuffer dst) throws IOException;
+
+	void close() throws IOException;
+}
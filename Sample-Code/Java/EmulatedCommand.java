@@ -0,0 +1,50 @@
+/*
+ * EmulatedCommand is one frame as received by the DeviceEmulator, with the
+ * time it arrived (System.nanoTime()) and whether the simulated link lost it.
+ */
+public final class EmulatedCommand {
+	private final long receivedAt;
+	private final int deviceId;
+	private final int opcode;
+	private final int sequence;
+	private final int value;
+	private final boolean lost;
+
+	// Constructor
+	public EmulatedCommand(long receivedAt, CommandFrame frame, boolean lost) {
+		this.receivedAt = receivedAt;
+		this.deviceId = frame.deviceId;
+		this.opcode = frame.opcode;
+		this.sequence = frame.sequence;
+		this.value = frame.value;
+		this.lost = lost;
+	}
+
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+
+	public int getDeviceId() {
+		return deviceId;
+	}
+
+	public char getOpcode() {
+		return (char) opcode;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	public int getValue() {
+		return value;
+	}
+
+	public boolean isLost() {
+		return lost;
+	}
+
+	public String toString() {
+		return "device " + deviceId + " '" + (char) opcode + "' " + value + " seq " + sequence + (lost ? " (lost)" : "");
+	}
+}
@@ -0,0 +1,327 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JComponent;
+
+/*
+ * EnvironmentChart plots the humidity and temperature history of a rig, with
+ * the humidity interlock's range shaded, so an operator can see the humidity
+ * drifting towards a limit before the interlock trips. Clicking the chart
+ * switches between the last 10 minutes, hour and day.
+ *
+ * Each pixel column stands for a fixed slice of time and is drawn as the
+ * min/max of the samples in it, joined to its neighbours. The min/max keeps
+ * every excursion visible, which an average or a thinned line (LTTB) would
+ * hide, and it costs at most one vertical line per column whatever the span:
+ * a day is read from the history's one minute rollups, so it is no more work
+ * to draw than ten minutes of raw samples.
+ *
+ * The chart is a sweep display, like a patient monitor: new columns are drawn
+ * over the oldest ones just ahead of a small blank gap, so nothing already
+ * drawn ever moves. Every FRAME_MILLIS the scheduler thread draws only the
+ * columns that have gained data into an off-screen image and asks Swing to
+ * repaint just those columns; the event thread only copies them to the
+ * screen.
+ */
+@SuppressWarnings("serial")
+public class EnvironmentChart extends JComponent {
+	public static final long[] SPANS = { TimeUnit.MINUTES.toMillis(10), TimeUnit.HOURS.toMillis(1),
+			TimeUnit.DAYS.toMillis(1) };
+	private static final String[] SPAN_NAMES = { "10 min", "1 hour", "24 hours" };
+	public static final long FRAME_MILLIS = 250;
+	// Blank columns ahead of the newest one
+	private static final int GAP = 6;
+	// Samples further apart than this are not joined
+	private static final long MAX_JOIN_MILLIS = 10000;
+	private static final int QUERY_SIZE = 4096;
+
+	private static final Color BACKGROUND = Color.WHITE;
+	private static final Color BAND = new Color(225, 245, 225);
+	private static final Color LIMIT = new Color(120, 180, 120);
+	private static final Color HUMIDITY = new Color(0, 0, 139);
+	private static final Color TEMPERATURE = new Color(220, 110, 0);
+	private static final Font LEGEND_FONT = new Font("Times New Roman", Font.BOLD, 14);
+
+	private HumidityInterlock interlock;
+	private Series humidity, temperature;
+	private volatile int spanIndex = 0;
+	private volatile boolean reset = true;
+	private ScheduledTask ticks;
+
+	// Drawing state, guarded by this
+	private BufferedImage plot;
+	private long millisPerColumn;
+	private Resolution resolution;
+	// First column that may still gain data
+	private long drawFrom;
+
+	/*
+	 * Series is one line of the chart: where its data comes from, its
+	 * vertical scale and where the line last ended.
+	 */
+	private class Series {
+		final TimeSeries source;
+		final Color color;
+		final double low, high;
+		final long[] times = new long[QUERY_SIZE];
+		final double[] min = new double[QUERY_SIZE];
+		final double[] max = new double[QUERY_SIZE];
+		final double[] mean = new double[QUERY_SIZE];
+		// The last complete column with data, where the next join starts
+		long anchorColumn = Long.MIN_VALUE;
+		int anchorY;
+
+		Series(TimeSeries source, Color color, double low, double high) {
+			this.source = source;
+			this.color = color;
+			this.low = low;
+			this.high = high;
+		}
+
+		int y(double value, int height) {
+			double fraction = (value - low) / (high - low);
+			int y = (int) Math.round((1 - fraction) * (height - 1));
+			return Math.max(0, Math.min(height - 1, y));
+		}
+
+		/*
+		 * draw plots columns from to last (inclusive). Columns before last are
+		 * complete and become the anchor for later joins; last may still gain
+		 * samples and is drawn again on the next frame.
+		 */
+		void draw(Graphics2D g, long from, long last, int width, int height) {
+			g.setColor(color);
+			boolean raw = resolution == Resolution.RAW;
+			long joinColumns = Math.max(2, (MAX_JOIN_MILLIS + millisPerColumn - 1) / millisPerColumn);
+			long anchor = anchorColumn;
+			int anchorAt = anchorY;
+			long column = Long.MIN_VALUE;
+			double cMin = 0, cMax = 0, first = 0, lastValue = 0;
+			long start = from * millisPerColumn;
+			long end = (last + 1) * millisPerColumn;
+			while (true) {
+				int count = source.query(start, end, resolution, times, raw ? null : min, raw ? null : max, mean);
+				for (int i = 0; i <= count; i++) {
+					long c = i < count ? Math.floorDiv(times[i], millisPerColumn) : Long.MAX_VALUE;
+					if (c != column && column != Long.MIN_VALUE && (i < count || count < QUERY_SIZE)) {
+						// Column finished: a vertical min/max line, joined to the last one
+						int x = (int) Math.floorMod(column, (long) width);
+						int yFirst = y(first, height);
+						if (anchor != Long.MIN_VALUE && column - anchor <= joinColumns) {
+							int anchorX = (int) Math.floorMod(anchor, (long) width);
+							if (anchorX < x) {
+								g.drawLine(anchorX, anchorAt, x, yFirst);
+							}
+						}
+						g.drawLine(x, y(cMax, height), x, y(cMin, height));
+						anchor = column;
+						anchorAt = y(lastValue, height);
+						if (column < last) {
+							anchorColumn = anchor;
+							anchorY = anchorAt;
+						}
+					}
+					if (i == count) {
+						break;
+					}
+					double vMin = raw ? mean[i] : min[i];
+					double vMax = raw ? mean[i] : max[i];
+					if (c != column) {
+						column = c;
+						cMin = vMin;
+						cMax = vMax;
+						first = mean[i];
+					} else {
+						cMin = Math.min(cMin, vMin);
+						cMax = Math.max(cMax, vMax);
+					}
+					lastValue = mean[i];
+				}
+				if (count < QUERY_SIZE) {
+					return;
+				}
+				// More than one query's worth; carry on after the last entry
+				start = times[count - 1] + 1;
+			}
+		}
+	}
+
+	// Constructor
+	public EnvironmentChart(EnvironmentHistory history, HumidityInterlock interlock) {
+		this.interlock = interlock;
+		humidity = new Series(history.getHumidity(), HUMIDITY, 30, 70);
+		temperature = new Series(history.getTemperature(), TEMPERATURE, 50, 100);
+		setPreferredSize(new Dimension(600, 180));
+		setOpaque(true);
+		addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				spanIndex = (spanIndex + 1) % SPANS.length;
+				reset = true;
+			}
+		});
+	}
+
+	// Draws a frame every FRAME_MILLIS on the given scheduler
+	public synchronized void start(PeriodicScheduler scheduler) {
+		if (ticks == null) {
+			ticks = scheduler.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					render(System.currentTimeMillis());
+				}
+			}, 0, FRAME_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if (ticks != null) {
+			ticks.cancel();
+			ticks = null;
+		}
+	}
+
+	/*
+	 * render brings the off-screen image up to now and asks for the columns
+	 * it changed to be repainted. After a click or a resize the whole image
+	 * is drawn again.
+	 */
+	void render(long now) {
+		int width = getWidth(), height = getHeight();
+		if (width <= GAP || height <= 0) {
+			return;
+		}
+		long from, last;
+		synchronized (this) {
+			if (reset || plot == null || plot.getWidth() != width || plot.getHeight() != height) {
+				reset = false;
+				plot = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				millisPerColumn = Math.max(1, SPANS[spanIndex] / (width - GAP));
+				resolution = millisPerColumn >= Resolution.ONE_MINUTE.getBucketMillis() ? Resolution.ONE_MINUTE
+						: millisPerColumn >= Resolution.TEN_SECONDS.getBucketMillis() ? Resolution.TEN_SECONDS
+								: Resolution.RAW;
+				drawFrom = Long.MIN_VALUE;
+				humidity.anchorColumn = Long.MIN_VALUE;
+				temperature.anchorColumn = Long.MIN_VALUE;
+			}
+			last = now / millisPerColumn;
+			// Everything still on screen, if the chart is new or fell behind
+			drawFrom = Math.max(drawFrom, last - (width - GAP) + 1);
+			from = drawFrom;
+			Graphics2D g = plot.createGraphics();
+			try {
+				clear(g, from, last + GAP, width, height);
+				humidity.draw(g, from, last, width, height);
+				temperature.draw(g, from, last, width, height);
+			} finally {
+				g.dispose();
+			}
+			drawFrom = last;
+		}
+		repaintColumns(from, last + GAP, width, height);
+	}
+
+	// Background and the interlock's band for columns from to to
+	private void clear(Graphics2D g, long from, long to, int width, int height) {
+		int top = humidity.y(interlock.getMax(), height);
+		int bottom = humidity.y(interlock.getMin(), height);
+		for (long column = from; column <= to; column++) {
+			int x = (int) Math.floorMod(column, (long) width);
+			g.setColor(BACKGROUND);
+			g.fillRect(x, 0, 1, height);
+			g.setColor(BAND);
+			g.fillRect(x, top, 1, bottom - top + 1);
+			g.setColor(LIMIT);
+			g.fillRect(x, top, 1, 1);
+			g.fillRect(x, bottom, 1, 1);
+		}
+	}
+
+	private void repaintColumns(long from, long to, int width, int height) {
+		int count = (int) Math.min(width, to - from + 1);
+		int x = (int) Math.floorMod(from, (long) width);
+		if (x + count <= width) {
+			repaint(x, 0, count, height);
+		} else {
+			repaint(x, 0, width - x, height);
+			repaint(0, 0, x + count - width, height);
+		}
+	}
+
+	protected void paintComponent(Graphics g) {
+		synchronized (this) {
+			if (plot == null) {
+				g.setColor(BACKGROUND);
+				g.fillRect(0, 0, getWidth(), getHeight());
+			} else {
+				g.drawImage(plot, 0, 0, null);
+			}
+		}
+		g.setFont(LEGEND_FONT);
+		g.setColor(HUMIDITY);
+		g.drawString("Humidity " + (int) humidity.low + "-" + (int) humidity.high + "%", 6, 16);
+		g.setColor(TEMPERATURE);
+		g.drawString("Temperature " + (int) temperature.low + "-" + (int) temperature.high + "\u00b0" + "F", 6, 32);
+		g.setColor(Color.GRAY);
+		g.drawString("Last " + SPAN_NAMES[spanIndex], 6, 48);
+	}
+
+	// Width of a pixel column in milliseconds at the current span
+	public synchronized long getMillisPerColumn() {
+		return millisPerColumn;
+	}
+
+	/*
+	 * Times drawing the chart off screen with a day of 1 Hz history: a full
+	 * redraw at each span, then the per-frame cost of keeping up.
+	 *
+	 *     java -Djava.awt.headless=true EnvironmentChart [width]
+	 */
+	public static void main(String[] args) {
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 800;
+		EnvironmentHistory history = new EnvironmentHistory();
+		long now = System.currentTimeMillis();
+		java.util.Random random = new java.util.Random(5);
+		double h = 50, t = 72;
+		for (long time = now - TimeUnit.DAYS.toMillis(1); time <= now; time += 1000) {
+			h = Math.max(35, Math.min(65, h + random.nextGaussian() * 0.05));
+			t += random.nextGaussian() * 0.02;
+			history.sampleReceived(new DHT11Sample(time, t, h));
+		}
+		HumidityInterlock interlock = new HumidityInterlock("chart-demo");
+		EnvironmentChart chart = new EnvironmentChart(history, interlock);
+		chart.setSize(width, 180);
+		for (int span = 0; span < SPANS.length; span++) {
+			chart.spanIndex = span;
+			for (int warm = 0; warm < 20; warm++) {
+				chart.reset = true;
+				chart.render(now);
+			}
+			long start = System.nanoTime();
+			chart.reset = true;
+			chart.render(now);
+			long full = System.nanoTime() - start;
+			LatencyHistogram frames = new LatencyHistogram();
+			long frameTime = now;
+			for (int frame = 0; frame < 2000; frame++) {
+				frameTime += FRAME_MILLIS;
+				if (frameTime % 1000 < FRAME_MILLIS) {
+					history.sampleReceived(new DHT11Sample(frameTime, t, h));
+				}
+				start = System.nanoTime();
+				chart.render(frameTime);
+				frames.record(System.nanoTime() - start);
+			}
+			now = frameTime;
+			System.out.printf("%-9s %4d ms/column %-12s full redraw %6.2f ms  frame p50 %5.1f us p99 %5.1f us%n",
+					SPAN_NAMES[span], chart.getMillisPerColumn(), chart.resolution, full / 1e6,
+					frames.percentile(0.5) / 1000.0, frames.percentile(0.99) / 1000.0);
+		}
+		interlock.close();
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * EnvironmentHistory records every DHT11 sample of a run so the humidity and
+ * temperature history can be charted or exported for QA. Register it with
+ * DHT11.addListener to have it fed from the sensor stream.
+ */
+public class EnvironmentHistory implements SampleListener {
+	private TimeSeries temperature;
+	private TimeSeries humidity;
+
+	// Constructor
+	public EnvironmentHistory() {
+		temperature = new TimeSeries();
+		humidity = new TimeSeries();
+	}
+
+	public void sampleReceived(DHT11Sample sample) {
+		temperature.append(sample.getTimestamp(), sample.getTemperature());
+		humidity.append(sample.getTimestamp(), sample.getHumidity());
+	}
+
+	public TimeSeries getTemperature() {
+		return temperature;
+	}
+
+	public TimeSeries getHumidity() {
+		return humidity;
+	}
+}
@@ -0,0 +1,15 @@
+/*
+ * FailureCause says why a device command or sensor read failed.
+ */
+public enum FailureCause {
+	// The helper script or program is not installed
+	MISSING_SCRIPT,
+	// The Bluetooth module or the sensor did not answer
+	NO_DEVICE,
+	// The output could not be understood
+	PARSE_ERROR,
+	// Any other I/O failure on the link
+	IO_ERROR,
+	// The device never acknowledged the command
+	NO_ACK
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.util.Random;
+
+/*
+ * FakeSensor produces readings without hardware, for tests, demos and the
+ * emulated rigs. Each value drifts around its base value along a slow sine
+ * with some noise. A read can be made to take a fixed time, to stand in for
+ * a slow sensor, and to fail with a given probability. A fixed seed makes
+ * runs repeatable.
+ */
+public class FakeSensor implements Sensor {
+	private String name;
+	private SampleSchema schema;
+	private long periodMillis, budgetMillis;
+	private double[] base;
+	private double amplitude = 1.0, noise = 0.2;
+	private volatile long delayMillis = 0;
+	private volatile double failureRate = 0;
+	private Random random = new Random(7);
+	private long reads = 0;
+
+	// Constructor: every value starts at 0 unless set with setBase
+	public FakeSensor(String name, SampleSchema schema, long periodMillis, long budgetMillis) {
+		this.name = name;
+		this.schema = schema;
+		this.periodMillis = periodMillis;
+		this.budgetMillis = budgetMillis;
+		base = new double[schema.size()];
+	}
+
+	// Values the readings drift around, one per field
+	public void setBase(double... base) {
+		if (base.length != schema.size()) {
+			throw new IllegalArgumentException("Expected " + schema.size() + " values for " + schema);
+		}
+		this.base = base.clone();
+	}
+
+	public void setDrift(double amplitude, double noise) {
+		this.amplitude = amplitude;
+		this.noise = noise;
+	}
+
+	// How long each read takes
+	public void setDelay(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public SampleSchema getSchema() {
+		return schema;
+	}
+
+	public long getPeriodMillis() {
+		return periodMillis;
+	}
+
+	public long getBudgetMillis() {
+		return budgetMillis;
+	}
+
+	public SensorSample read() throws IOException {
+		if (delayMillis > 0) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(name + ": read interrupted");
+			}
+		}
+		double[] values = new double[base.length];
+		synchronized (this) {
+			if (random.nextDouble() < failureRate) {
+				throw new IOException(name + ": simulated read failure");
+			}
+			reads++;
+			for (int i = 0; i < values.length; i++) {
+				values[i] = base[i] + amplitude * Math.sin(reads / 20.0 + i) + random.nextGaussian() * noise;
+			}
+		}
+		return new SensorSample(System.currentTimeMillis(), schema, values);
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,97 @@
+import java.nio.ByteBuffer;
+
+/*
+ * FrameCodec encodes and decodes the binary frames exchanged with the
+ * Arduinos. Every frame is seven bytes:
+ *
+ *     [0xA5][opcode][device id][sequence][value high][value low][CRC-8]
+ *
+ * The opcode is the command letter the sketches already dispatch on ('u',
+ * 'd', 's', 'L', ...) and the value is an unsigned 16 bit number, which
+ * covers every speed, step size and timer the GUI can set. The Arduino answers
+ * each frame it accepts with an ACK frame carrying the same sequence number.
+ * The CRC-8 (polynomial 0x07) covers everything between the sync byte and the
+ * CRC itself.
+ *
+ * Both directions work on caller-owned ByteBuffers and CommandFrames, so
+ * encoding and decoding allocate nothing.
+ */
+public final class FrameCodec {
+	public static final int FRAME_LENGTH = 7;
+	public static final int SYNC = 0xA5;
+	public static final int OPCODE_ACK = 0x06;
+	public static final int MAX_VALUE = 0xFFFF;
+
+	private static final byte[] CRC_TABLE = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+			}
+			CRC_TABLE[i] = (byte) crc;
+		}
+	}
+
+	private FrameCodec() {
+	}
+
+	/*
+	 * encode writes one frame at the current position of dst. dst must have
+	 * at least FRAME_LENGTH bytes remaining.
+	 */
+	public static void encode(ByteBuffer dst, int opcode, int deviceId, int sequence, int value) {
+		if (value < 0 || value > MAX_VALUE) {
+			throw new IllegalArgumentException("Value out of range: " + value);
+		}
+		int start = dst.position();
+		dst.put((byte) SYNC);
+		dst.put((byte) opcode);
+		dst.put((byte) deviceId);
+		dst.put((byte) sequence);
+		dst.put((byte) (value >>> 8));
+		dst.put((byte) value);
+		dst.put(crc(dst, start + 1, FRAME_LENGTH - 2));
+	}
+
+	/*
+	 * decode reads the next valid frame from src into frame and returns true.
+	 * Bytes before a sync byte, and frames with a bad CRC, are skipped. If src
+	 * does not hold a complete frame yet it is left at the start of the partial
+	 * frame and false is returned, so the caller can compact and read more.
+	 */
+	public static boolean decode(ByteBuffer src, CommandFrame frame) {
+		while (src.remaining() >= FRAME_LENGTH) {
+			int start = src.position();
+			if ((src.get(start) & 0xFF) != SYNC) {
+				src.position(start + 1);
+				continue;
+			}
+			if (crc(src, start + 1, FRAME_LENGTH - 2) != src.get(start + FRAME_LENGTH - 1)) {
+				// Corrupt frame, resynchronise on the next byte
+				src.position(start + 1);
+				continue;
+			}
+			frame.opcode = src.get(start + 1) & 0xFF;
+			frame.deviceId = src.get(start + 2) & 0xFF;
+			frame.sequence = src.get(start + 3) & 0xFF;
+			frame.value = ((src.get(start + 4) & 0xFF) << 8) | (src.get(start + 5) & 0xFF);
+			src.position(start + FRAME_LENGTH);
+			return true;
+		}
+		// Skip leading garbage so a partial frame starts at the position
+		while (src.hasRemaining() && (src.get(src.position()) & 0xFF) != SYNC) {
+			src.get();
+		}
+		return false;
+	}
+
+	private static byte crc(ByteBuffer buffer, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc = CRC_TABLE[(crc ^ buffer.get(i)) & 0xFF];
+		}
+		return (byte) crc;
+	}
+}
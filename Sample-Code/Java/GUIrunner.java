@@ -1,13 +1,106 @@
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 
 public class GUIrunner {
 	
+	/*
+	 * Starts the electrospinner GUI. With --headless no window is created:
+	 * the control engine runs on its own and is driven through the local
+	 * control port instead (see ControlServer). When devices.properties
+	 * lists several rigs the window has a tab per rig, and headless each rig
+	 * gets its own port.
+	 *
+	 *     java GUIrunner [--headless] [--port 5050] [--startup-probe]
+	 *
+	 * The window is built and shown first; the Bluetooth links, the sensor
+	 * reader and the logo come up in the background after it is on screen.
+	 * --startup-probe prints the time to the first frame and exits, which is
+	 * what StartupBenchmark and the AppCDS training run in launch.sh use.
+	 */
 	public static void main(String[] args) throws IOException {
-		CardioFrame gui = new CardioFrame();
+		boolean headless = false, probe = false;
+		int port = ControlServer.DEFAULT_PORT;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--headless")) {
+				headless = true;
+			} else if (args[i].equals("--port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--startup-probe")) {
+				probe = true;
+			}
+		}
+		
+		if (headless) {
+			runHeadless(port);
+			return;
+		}
+		final boolean startupProbe = probe;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				showFrame(startupProbe);
+			}
+		});
+	}
+	
+	private static void showFrame(boolean startupProbe) {
+		CardioFrame gui;
+		try {
+			gui = new CardioFrame();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (startupProbe) {
+			gui.addWindowListener(new WindowAdapter() {
+				public void windowOpened(WindowEvent e) {
+					reportFirstFrame();
+				}
+			});
+		}
 		gui.setExtendedState(JFrame.MAXIMIZED_BOTH); 
 		gui.setVisible(true);
 		gui.setResizable(true);
 	}
-}
\ No newline at end of file
+	
+	/*
+	 * reportFirstFrame prints the milliseconds from launch to the first frame
+	 * and exits. The launch time is passed in by StartupBenchmark as
+	 * -Dcardio.launchMillis so it includes starting the JVM itself; without it
+	 * the JVM's own start time is used.
+	 */
+	private static void reportFirstFrame() {
+		long launched = Long.getLong("cardio.launchMillis",
+				ManagementFactory.getRuntimeMXBean().getStartTime());
+		System.out.println("firstFrame " + (System.currentTimeMillis() - launched));
+		System.exit(0);
+	}
+	
+	/*
+	 * runHeadless starts every configured rig, each with its own control
+	 * port: the first rig listens on port, the next on port + 1, and so on.
+	 */
+	private static void runHeadless(int port) throws IOException {
+		RigRegistry rigs = RigRegistry.createDefault();
+		CardioController[] controllers = rigs.getRigs();
+		for (int i = 0; i < controllers.length; i++) {
+			controllers[i].start();
+			ControlServer server = new ControlServer(controllers[i], port == 0 ? 0 : port + i);
+			server.start();
+			String name = controllers[i].getName();
+			System.out.println("Cardio control engine " + name + " listening on 127.0.0.1:" + server.getPort());
+		}
+		
+		// The scheduler and server threads are daemons; park the main
+		// thread until the JVM is asked to exit
+		try {
+			Thread.currentThread().join();
+		} catch (InterruptedException e) {
+			rigs.shutdown();
+		}
+	}
+}
@@ -0,0 +1,295 @@
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+/*
+ * HumidityInterlock decides whether the humidity allows an acquisition. It is
+ * a java.util.concurrent.Flow pipeline fed by the DHT11:
+ *
+ *     samples -> median filter -> hysteresis threshold -> interlock events
+ *
+ * The filter takes the median of the last FILTER_WINDOW samples, which drops
+ * the single-sample glitches the DHT11 is prone to. The threshold trips as
+ * soon as the filtered humidity has been outside [min, max] for the hold time,
+ * and only clears once it has been back inside [min + band, max - band] for
+ * the hold time, so a humidity sitting on a limit no longer flickers the
+ * interlock. Only changes of state are published.
+ *
+ * Every stage and subscriber has its own bounded buffer. Items are offered
+ * without waiting, and an item that does not fit in a slow subscriber's
+ * buffer is dropped for that subscriber and counted, so a stalled UI can
+ * never hold up sampling or the other subscribers. Since state events can
+ * be dropped that way, a subscriber that acts on the interlock should read
+ * isOk() when it is told of a change rather than trust the event alone.
+ *
+ * Settings come from the rig's configuration:
+ *
+ *     interlock.min=45          interlock.hysteresis=1.0
+ *     interlock.max=55          interlock.hold.seconds=3
+ *     interlock.action=pause    (or abort) what a trip does to a running
+ *                               acquisition
+ */
+public class HumidityInterlock implements SampleListener {
+	public static final int BUFFER_SIZE = 16;
+	public static final int FILTER_WINDOW = 3;
+
+	// What a trip does to an acquisition in progress
+	public enum Action {
+		PAUSE, ABORT
+	}
+
+	private volatile double min = CardioController.HUMIDITY_MIN;
+	private volatile double max = CardioController.HUMIDITY_MAX;
+	private volatile double band = 1.0;
+	private volatile long holdMillis = 3000;
+	private volatile Action action = Action.PAUSE;
+	private volatile boolean ok = false;
+	private volatile double filtered = Double.NaN;
+
+	private ExecutorService executor;
+	private SubmissionPublisher<DHT11Sample> samples;
+	private MedianFilter filter;
+	private Threshold threshold;
+	private AtomicLong dropped = new AtomicLong();
+	private BiPredicate<Flow.Subscriber<? super Object>, Object> onDrop = new BiPredicate<Flow.Subscriber<? super Object>, Object>() {
+		public boolean test(Flow.Subscriber<? super Object> subscriber, Object item) {
+			dropped.incrementAndGet();
+			return false;
+		}
+	};
+
+	// Constructor
+	public HumidityInterlock(final String threadName) {
+		this(Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+	}
+
+	/*
+	 * Runs the pipeline's stages on the given executor, which must run them
+	 * one at a time; see PeriodicScheduler.newPipelineExecutor. The
+	 * interlock shuts it down on close.
+	 */
+	public HumidityInterlock(ExecutorService executor) {
+		this.executor = executor;
+		samples = new SubmissionPublisher<DHT11Sample>(executor, BUFFER_SIZE);
+		filter = new MedianFilter();
+		threshold = new Threshold();
+		samples.subscribe(filter);
+		filter.subscribe(threshold);
+	}
+
+	public void configure(Properties config) {
+		min = Double.parseDouble(config.getProperty("interlock.min", Double.toString(min)).trim());
+		max = Double.parseDouble(config.getProperty("interlock.max", Double.toString(max)).trim());
+		band = Double.parseDouble(config.getProperty("interlock.hysteresis", Double.toString(band)).trim());
+		double hold = Double.parseDouble(
+				config.getProperty("interlock.hold.seconds", Double.toString(holdMillis / 1000.0)).trim());
+		holdMillis = (long) (hold * 1000);
+		action = Action.valueOf(config.getProperty("interlock.action", action.name()).trim().toUpperCase());
+		if (!(min + band < max - band)) {
+			throw new IllegalArgumentException("Interlock band leaves no room between " + min + " and " + max);
+		}
+	}
+
+	// Entry point from the sensor; never blocks the sampling thread
+	public void sampleReceived(DHT11Sample sample) {
+		samples.offer(sample, castDrop());
+	}
+
+	// Interlock state changes, each subscriber with its own bounded buffer
+	public void subscribe(Flow.Subscriber<? super InterlockEvent> subscriber) {
+		threshold.subscribe(subscriber);
+	}
+
+	// Filtered samples, for displays that want the smoothed values
+	public void subscribeSamples(Flow.Subscriber<? super DHT11Sample> subscriber) {
+		filter.subscribe(subscriber);
+	}
+
+	public boolean isOk() {
+		return ok;
+	}
+
+	// Latest filtered humidity, NaN before the first sample
+	public double getFilteredHumidity() {
+		return filtered;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	// Items dropped anywhere in the pipeline because a buffer was full
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public void close() {
+		samples.close();
+		executor.shutdown();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private <T> BiPredicate<Flow.Subscriber<? super T>, ? super T> castDrop() {
+		return (BiPredicate) onDrop;
+	}
+
+	/*
+	 * Subscriber is a subscriber that takes one item at a time, so its
+	 * publisher's buffer is the only queue in front of it. Subclasses
+	 * implement onItem.
+	 */
+	public static abstract class Subscriber<T> implements Flow.Subscriber<T> {
+		private Flow.Subscription subscription;
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		public void onNext(T item) {
+			try {
+				onItem(item);
+			} finally {
+				subscription.request(1);
+			}
+		}
+
+		public void onError(Throwable throwable) {
+			throwable.printStackTrace();
+		}
+
+		public void onComplete() {
+		}
+
+		protected abstract void onItem(T item);
+	}
+
+	// Median of the last FILTER_WINDOW samples
+	private class MedianFilter extends SubmissionPublisher<DHT11Sample>
+			implements Flow.Processor<DHT11Sample, DHT11Sample> {
+		private double[] window = new double[FILTER_WINDOW];
+		private double[] sorted = new double[FILTER_WINDOW];
+		private int count = 0;
+		private Flow.Subscription subscription;
+
+		MedianFilter() {
+			super(executor, BUFFER_SIZE);
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		public void onNext(DHT11Sample sample) {
+			window[count % FILTER_WINDOW] = sample.getHumidity();
+			count++;
+			int n = Math.min(count, FILTER_WINDOW);
+			System.arraycopy(window, 0, sorted, 0, n);
+			Arrays.sort(sorted, 0, n);
+			double median = sorted[n / 2];
+			filtered = median;
+			offer(new DHT11Sample(sample.getTimestamp(), sample.getTemperature(), median), castDrop());
+			subscription.request(1);
+		}
+
+		public void onError(Throwable throwable) {
+			closeExceptionally(throwable);
+		}
+
+		public void onComplete() {
+			close();
+		}
+	}
+
+	// Hysteresis and hold time; publishes only changes of state
+	private class Threshold extends SubmissionPublisher<InterlockEvent>
+			implements Flow.Processor<DHT11Sample, InterlockEvent> {
+		private long pendingSince = -1;
+		private Flow.Subscription subscription;
+
+		Threshold() {
+			super(executor, BUFFER_SIZE);
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		public void onNext(DHT11Sample sample) {
+			double humidity = sample.getHumidity();
+			long now = sample.getTimestamp();
+			boolean wantsChange = ok ? humidity < min || humidity > max
+					: humidity >= min + band && humidity <= max - band;
+			if (!wantsChange) {
+				pendingSince = -1;
+			} else {
+				if (pendingSince < 0) {
+					pendingSince = now;
+				}
+				if (now - pendingSince >= holdMillis) {
+					ok = !ok;
+					pendingSince = -1;
+					offer(new InterlockEvent(ok, humidity, now), castDrop());
+				}
+			}
+			subscription.request(1);
+		}
+
+		public void onError(Throwable throwable) {
+			closeExceptionally(throwable);
+		}
+
+		public void onComplete() {
+			close();
+		}
+	}
+
+	/*
+	 * Feeds a humidity walk through the interlock and prints its changes:
+	 * a slow drift across the upper limit with sensor noise and one glitch.
+	 *
+	 *     java HumidityInterlock
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		HumidityInterlock interlock = new HumidityInterlock("interlock");
+		interlock.subscribe(new Subscriber<InterlockEvent>() {
+			protected void onItem(InterlockEvent event) {
+				System.out.println("t=" + event.getTimestamp() / 1000 + " s  " + event);
+			}
+		});
+		java.util.Random random = new java.util.Random(1);
+		for (int t = 0; t < 300; t++) {
+			double humidity = 50 + 6 * Math.sin(t / 40.0) + random.nextGaussian() * 0.4;
+			if (t == 20) {
+				humidity = 90; // glitch
+			}
+			interlock.sampleReceived(new DHT11Sample(t * 1000L, 72, humidity));
+			Thread.sleep(5);
+		}
+		TimeUnit.MILLISECONDS.sleep(200);
+		System.out.println("dropped: " + interlock.getDropped());
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * InterlockEvent is a change of the humidity interlock: whether acquisitions
+ * may run, the filtered humidity that caused the change and the time of the
+ * sample it was decided on (milliseconds since the epoch).
+ */
+public final class InterlockEvent {
+	private final boolean ok;
+	private final double humidity;
+	private final long timestamp;
+
+	// Constructor
+	public InterlockEvent(boolean ok, double humidity, long timestamp) {
+		this.ok = ok;
+		this.humidity = humidity;
+		this.timestamp = timestamp;
+	}
+
+	// True when the humidity allows an acquisition
+	public boolean isOk() {
+		return ok;
+	}
+
+	public double getHumidity() {
+		return humidity;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String toString() {
+		return (ok ? "OK" : "TRIPPED") + " at " + humidity + "%";
+	}
+}
@@ -0,0 +1,175 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/*
+ * JournalInspector reads a run journal written by RunJournal back in one
+ * sequential pass over its segments, mapping each segment read-only.
+ *
+ *     java JournalInspector [--dump] <dir> <run>
+ *     java JournalInspector --bench <records> [dir]
+ *
+ * By default it prints a summary of the run: records by type, the time span,
+ * commands that failed, the slowest command, and the range of temperature
+ * and humidity. --dump also prints every record, one per line. --bench
+ * writes a journal of the given number of records and times writing and
+ * scanning it.
+ */
+public class JournalInspector {
+	private static final String[] TYPES = { "EMPTY", "RUN_START", "RUN_END", "COMMAND", "COMMAND_FAILED", "ACK",
+			"SAMPLE", "INTERLOCK" };
+
+	// Totals gathered during the scan
+	long records, empty;
+	long[] byType = new long[TYPES.length];
+	long firstMicros = Long.MAX_VALUE, lastMicros = Long.MIN_VALUE;
+	double maxLatency;
+	double minTemp = Double.MAX_VALUE, maxTemp = -Double.MAX_VALUE;
+	double minHum = Double.MAX_VALUE, maxHum = -Double.MAX_VALUE, sumHum;
+	boolean dump;
+	String runName;
+	long runStartMillis;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 2 && args[0].equals("--bench")) {
+			bench(Integer.parseInt(args[1]), args.length > 2 ? new File(args[2]) : new File("journal-bench"));
+			return;
+		}
+		JournalInspector inspector = new JournalInspector();
+		int i = 0;
+		if (args.length > 0 && args[0].equals("--dump")) {
+			inspector.dump = true;
+			i++;
+		}
+		if (args.length - i != 2) {
+			System.err.println("usage: JournalInspector [--dump] <dir> <run> | --bench <records> [dir]");
+			System.exit(1);
+		}
+		int segments = inspector.scan(new File(args[i]), args[i + 1]);
+		if (segments == 0) {
+			System.err.println("No journal for run " + args[i + 1] + " in " + args[i]);
+			System.exit(1);
+		}
+		inspector.printSummary(segments);
+	}
+
+	// Scans every segment of the run in order; returns the number of segments
+	int scan(File dir, String run) throws IOException {
+		int segment = 0;
+		File file;
+		while ((file = RunJournal.segmentFile(dir, run, segment)).isFile()) {
+			scanSegment(file);
+			segment++;
+		}
+		return segment;
+	}
+
+	private void scanSegment(File file) throws IOException {
+		MappedByteBuffer buffer;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+		} finally {
+			in.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(0) != RunJournal.MAGIC || buffer.getInt(4) != RunJournal.RECORD_SIZE) {
+			throw new IOException("Not a run journal segment: " + file);
+		}
+		if (runName == null) {
+			byte[] name = new byte[40];
+			for (int i = 0; i < name.length; i++) {
+				name[i] = buffer.get(24 + i);
+			}
+			int length = 0;
+			while (length < name.length && name[length] != 0) {
+				length++;
+			}
+			runName = new String(name, 0, length, StandardCharsets.UTF_8);
+			runStartMillis = buffer.getLong(16);
+		}
+		int count = buffer.getInt(12);
+		for (int r = 0; r < count; r++) {
+			int offset = RunJournal.HEADER_SIZE + r * RunJournal.RECORD_SIZE;
+			int word = buffer.getInt(offset + 28);
+			int type = word >>> 24;
+			if (type == 0 || type >= TYPES.length) {
+				empty++;
+				continue;
+			}
+			records++;
+			byType[type]++;
+			long micros = buffer.getLong(offset);
+			double a = buffer.getDouble(offset + 8);
+			double b = buffer.getDouble(offset + 16);
+			int value = buffer.getInt(offset + 24);
+			firstMicros = Math.min(firstMicros, micros);
+			lastMicros = Math.max(lastMicros, micros);
+			if (type == RunJournal.COMMAND || type == RunJournal.COMMAND_FAILED) {
+				maxLatency = Math.max(maxLatency, a);
+			} else if (type == RunJournal.SAMPLE) {
+				minTemp = Math.min(minTemp, a);
+				maxTemp = Math.max(maxTemp, a);
+				minHum = Math.min(minHum, b);
+				maxHum = Math.max(maxHum, b);
+				sumHum += b;
+			}
+			if (dump) {
+				System.out.println(micros + " " + TYPES[type] + " device=" + (word & 0xFF) + " opcode="
+						+ (char) ((word >>> 8) & 0xFF) + " seq=" + ((word >>> 16) & 0xFF) + " value=" + value
+						+ " a=" + a + " b=" + b);
+			}
+		}
+	}
+
+	void printSummary(int segments) {
+		System.out.println("run:        " + runName + ", started "
+				+ new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(runStartMillis)));
+		System.out.println("segments:   " + segments);
+		System.out.println("records:    " + records + " (" + empty + " unused slots)");
+		for (int t = 1; t < TYPES.length; t++) {
+			System.out.println(String.format("  %-15s %d", TYPES[t], byType[t]));
+		}
+		if (records > 0) {
+			System.out.println("span:       " + (lastMicros - firstMicros) / 1000000.0 + " s");
+		}
+		if (byType[RunJournal.COMMAND] + byType[RunJournal.COMMAND_FAILED] > 0) {
+			System.out.println("slowest command: " + maxLatency / 1000.0 + " us");
+		}
+		if (byType[RunJournal.SAMPLE] > 0) {
+			System.out.println("temperature: " + minTemp + " .. " + maxTemp + " F");
+			System.out.println("humidity:    " + minHum + " .. " + maxHum + " %, mean "
+					+ sumHum / byType[RunJournal.SAMPLE]);
+		}
+	}
+
+	private static void bench(int count, File dir) throws IOException {
+		String run = "bench-" + System.currentTimeMillis();
+		RunJournal journal = new RunJournal(dir, run);
+		DHT11Sample sample = new DHT11Sample(0, 72.5, 48.0);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			if ((i & 1) == 0) {
+				journal.command(1, 'u', i, i & 0x3FF, true, 1000);
+			} else {
+				journal.sample(sample);
+			}
+		}
+		long written = System.nanoTime() - start;
+		journal.close();
+		System.out.println("append: " + written / count + " ns/record, " + journal.getDropped() + " dropped");
+
+		JournalInspector inspector = new JournalInspector();
+		start = System.nanoTime();
+		int segments = inspector.scan(dir, run);
+		long scanned = System.nanoTime() - start;
+		System.out.println("scan:   " + inspector.records + " records in " + segments + " segments, "
+				+ scanned / 1000000 + " ms (" + (long) (inspector.records * 1e9 / scanned) + " records/s)");
+	}
+}
@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * LatencyHistogram counts durations in nanoseconds in log-linear buckets:
+ * every power of two is split into 16 buckets, so a percentile is reported
+ * within about 6% of the true value however large it is. Recording is a
+ * couple of shifts and an atomic increment, with no locks or allocation, so
+ * it can sit on the command and sensor paths.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BITS = 4;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong total = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(index(nanos));
+		total.incrementAndGet();
+		long current;
+		while (nanos > (current = max.get())) {
+			if (max.compareAndSet(current, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/*
+	 * percentile returns the smallest bucket value that at least the given
+	 * fraction (0 to 1) of recorded durations fall at or below, or 0 if
+	 * nothing has been recorded.
+	 */
+	public long percentile(double fraction) {
+		long count = total.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.set(0);
+		max.set(0);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// Largest value that falls in bucket i
+	private static long upperBound(int i) {
+		if (i < SUB_BUCKETS) {
+			return i;
+		}
+		int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = i % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
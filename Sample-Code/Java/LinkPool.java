@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * LinkPool owns the Bluetooth links. Devices that are configured on the same
+ * link share one DeviceTransport, and the frame's device id tells the
+ * Arduinos apart, so a link is only set up once however many devices use it.
+ * Links are reference counted and closed when the last device releases them.
+ * Each link also gets a CommandWindow, which pipelines the commands sent
+ * over it, unless the window size is set to 0.
+ *
+ * A link is normally an RFCOMM device path. A link written as shm:<base> is
+ * served by a RingBufferBridge process through shared memory instead.
+ */
+public class LinkPool {
+	// Links with this prefix go through a RingBufferBridge helper
+	public static final String SHM_PREFIX = "shm:";
+
+	private TransportFactory factory;
+	private Map<String, DeviceTransport> links = new HashMap<String, DeviceTransport>();
+	private Map<String, Integer> users = new HashMap<String, Integer>();
+	private Map<String, CommandWindow> windows = new HashMap<String, CommandWindow>();
+	private int windowSize = CommandWindow.DEFAULT_SIZE;
+	private long ackTimeoutMillis = CommandWindow.DEFAULT_TIMEOUT_MILLIS;
+	private int ackRetries = CommandWindow.DEFAULT_RETRIES;
+
+	// Constructor
+	public LinkPool() {
+		this(new TransportFactory() {
+			public DeviceTransport createTransport(String link) {
+				if (link.startsWith(SHM_PREFIX)) {
+					return new RingBufferTransport(link.substring(SHM_PREFIX.length()));
+				}
+				return new SerialTransport(link);
+			}
+		});
+	}
+
+	public LinkPool(TransportFactory factory) {
+		this.factory = factory;
+	}
+
+	public synchronized DeviceTransport acquire(String link) {
+		DeviceTransport transport = links.get(link);
+		if (transport == null) {
+			transport = factory.createTransport(link);
+			links.put(link, transport);
+			users.put(link, 0);
+			if (windowSize > 0) {
+				windows.put(link, new CommandWindow(link, transport, windowSize, ackTimeoutMillis, ackRetries));
+			}
+		}
+		users.put(link, users.get(link) + 1);
+		return transport;
+	}
+
+	/*
+	 * setWindow sets up the CommandWindow of links acquired from now on: size
+	 * commands in flight per device, 0 for none.
+	 */
+	public synchronized void setWindow(int size, long ackTimeoutMillis, int ackRetries) {
+		if (size != 0) {
+			// Fail on a bad size now rather than on the first link
+			new CommandWindow("", null, size, ackTimeoutMillis, ackRetries);
+		}
+		this.windowSize = size;
+		this.ackTimeoutMillis = ackTimeoutMillis;
+		this.ackRetries = ackRetries;
+	}
+
+	// The window pipelining commands over the link, or null
+	public synchronized CommandWindow getWindow(String link) {
+		return windows.get(link);
+	}
+
+	public synchronized void release(String link) throws IOException {
+		Integer count = users.get(link);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			users.put(link, count - 1);
+		} else {
+			users.remove(link);
+			CommandWindow window = windows.remove(link);
+			if (window != null) {
+				window.close();
+			}
+			links.remove(link).close();
+		}
+	}
+
+	/*
+	 * openAll sets up every link in the pool up front. A link that cannot be
+	 * opened is skipped; its devices retry when they next send a command.
+	 */
+	public void openAll() {
+		DeviceTransport[] all;
+		synchronized (this) {
+			all = links.values().toArray(new DeviceTransport[0]);
+		}
+		for (DeviceTransport transport : all) {
+			try {
+				transport.open();
+			} catch (IOException e) {
+				// Device not reachable yet
+			}
+		}
+	}
+
+	public synchronized void closeAll() {
+		for (CommandWindow window : windows.values()) {
+			window.close();
+		}
+		windows.clear();
+		for (DeviceTransport transport : links.values()) {
+			try {
+				transport.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+		links.clear();
+		users.clear();
+	}
+}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * LoopbackTransport is an in-memory DeviceTransport. Every byte written is
+ * kept so it can be inspected, and is echoed back to read(), which lets the
+ * whole command path be exercised without an HC-06 module or a radio.
+ */
+public class LoopbackTransport implements DeviceTransport {
+	private ByteBuffer written;
+	private ByteBuffer echo;
+	private boolean open = false;
+
+	// Constructor
+	public LoopbackTransport() {
+		this(4096);
+	}
+
+	public LoopbackTransport(int capacity) {
+		written = ByteBuffer.allocate(capacity);
+		echo = ByteBuffer.allocate(capacity);
+	}
+
+	public synchronized void open() {
+		open = true;
+	}
+
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	public synchronized void write(ByteBuffer src) throws IOException {
+		if (!open) {
+			open();
+		}
+		if (src.remaining() > written.remaining()) {
+			// Keep the capture bounded; tests only look at the latest bytes
+			written.clear();
+		}
+		if (src.remaining() > echo.remaining()) {
+			echo.clear();
+		}
+		ByteBuffer copy = src.duplicate();
+		written.put(copy);
+		echo.put(src);
+	}
+
+	public synchronized int read(ByteBuffer dst) {
+		if (!open) {
+			return -1;
+		}
+		echo.flip();
+		int count = Math.min(echo.remaining(), dst.remaining());
+		for (int i = 0; i < count; i++) {
+			dst.put(echo.get());
+		}
+		echo.compact();
+		return count;
+	}
+
+	public synchronized void close() {
+		open = false;
+	}
+
+	// Returns a copy of every byte written since the last reset.
+	public synchronized byte[] received() {
+		byte[] bytes = new byte[written.position()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = written.get(i);
+		}
+		return bytes;
+	}
+
+	public synchronized void reset() {
+		written.clear();
+		echo.clear();
+	}
+}
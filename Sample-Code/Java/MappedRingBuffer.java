@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * MappedRingBuffer is a single-producer/single-consumer queue of byte
+ * messages living in a memory-mapped file, normally under /dev/shm so it never
+ * touches the SD card. One process writes messages and another reads them
+ * with no system call per message.
+ *
+ * File layout:
+ *     0    head, the consumer's read position (long)
+ *     64   tail, the producer's write position (long)
+ *     120  capacity of the data area in bytes (int, power of two)
+ *     128  data area
+ *
+ * head and tail only ever grow and sit on separate cache lines. Each message
+ * is a four byte length followed by its bytes, wrapping around the data area.
+ * The producer publishes a message by storing tail with release semantics
+ * after the bytes are written, and the consumer frees the space the same way
+ * with head, so neither side ever takes a lock.
+ */
+public class MappedRingBuffer {
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+	private static final int HEAD_OFFSET = 0;
+	private static final int TAIL_OFFSET = 64;
+	private static final int CAPACITY_OFFSET = 120;
+	private static final int HEADER_SIZE = 128;
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.nativeOrder());
+
+	private String path;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int mask;
+
+	// Constructor
+	public MappedRingBuffer(String path) throws IOException {
+		this(path, DEFAULT_CAPACITY);
+	}
+
+	public MappedRingBuffer(String path, int capacity) throws IOException {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		}
+		this.path = path;
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			if (file.length() < HEADER_SIZE + capacity) {
+				file.setLength(HEADER_SIZE + capacity);
+			}
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+		} finally {
+			// The mapping stays valid after the file is closed
+			file.close();
+		}
+		buffer.order(ByteOrder.nativeOrder());
+
+		// The first side to map the file sets its capacity, the other adopts it
+		int existing = buffer.getInt(CAPACITY_OFFSET);
+		if (existing == 0) {
+			buffer.putInt(CAPACITY_OFFSET, capacity);
+			existing = capacity;
+		}
+		if (Integer.bitCount(existing) != 1 || HEADER_SIZE + existing > buffer.capacity()) {
+			throw new IOException("Corrupt ring buffer header in " + path);
+		}
+		this.capacity = existing;
+		mask = existing - 1;
+	}
+
+	/*
+	 * offer copies the remaining bytes of src into the ring as one message.
+	 * Returns false, leaving src untouched, if there is not enough free space.
+	 * Only one thread may call offer.
+	 */
+	public boolean offer(ByteBuffer src) {
+		int length = src.remaining();
+		int needed = 4 + length;
+		if (needed > capacity) {
+			throw new IllegalArgumentException("Message larger than ring: " + length);
+		}
+		long tail = (long) LONGS.getOpaque(buffer, TAIL_OFFSET);
+		long head = (long) LONGS.getAcquire(buffer, HEAD_OFFSET);
+		if (capacity - (tail - head) < needed) {
+			return false;
+		}
+		putByte(tail, (byte) (length >>> 24));
+		putByte(tail + 1, (byte) (length >>> 16));
+		putByte(tail + 2, (byte) (length >>> 8));
+		putByte(tail + 3, (byte) length);
+		long position = tail + 4;
+		while (src.hasRemaining()) {
+			putByte(position++, src.get());
+		}
+		LONGS.setRelease(buffer, TAIL_OFFSET, tail + needed);
+		return true;
+	}
+
+	/*
+	 * poll copies the next message into dst and returns its length, or -1 if
+	 * the ring is empty. dst must have room for the whole message. Only one
+	 * thread may call poll.
+	 */
+	public int poll(ByteBuffer dst) {
+		long head = (long) LONGS.getOpaque(buffer, HEAD_OFFSET);
+		long tail = (long) LONGS.getAcquire(buffer, TAIL_OFFSET);
+		if (head == tail) {
+			return -1;
+		}
+		int length = ((getByte(head) & 0xFF) << 24) | ((getByte(head + 1) & 0xFF) << 16)
+				| ((getByte(head + 2) & 0xFF) << 8) | (getByte(head + 3) & 0xFF);
+		if (length > dst.remaining()) {
+			throw new IllegalArgumentException("Message of " + length + " bytes does not fit");
+		}
+		long position = head + 4;
+		for (int i = 0; i < length; i++) {
+			dst.put(getByte(position++));
+		}
+		LONGS.setRelease(buffer, HEAD_OFFSET, head + 4 + length);
+		return length;
+	}
+
+	public boolean isEmpty() {
+		return (long) LONGS.getAcquire(buffer, HEAD_OFFSET) == (long) LONGS.getAcquire(buffer, TAIL_OFFSET);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	private void putByte(long position, byte value) {
+		buffer.put(HEADER_SIZE + (int) (position & mask), value);
+	}
+
+	private byte getByte(long position) {
+		return buffer.get(HEADER_SIZE + (int) (position & mask));
+	}
+}
@@ -0,0 +1,61 @@
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Metrics is where the command and sensor paths get their OperationMetrics.
+ * Each one is registered with the platform MBean server the first time it is
+ * asked for, as
+ *
+ *     cardio:type=Command,name=<device>
+ *     cardio:type=Sensor,name=<sensor>
+ *
+ * so jconsole or any JMX client can watch latencies and failures on a running
+ * rig. Alongside the MBeans the paths emit DeviceCommandEvent and
+ * SensorReadEvent, which a JFR recording picks up.
+ */
+public final class Metrics {
+	private static Map<String, OperationMetrics> commands = new HashMap<String, OperationMetrics>();
+	private static Map<String, SensorMetrics> sensors = new HashMap<String, SensorMetrics>();
+
+	private Metrics() {
+	}
+
+	public static synchronized OperationMetrics command(String device) {
+		OperationMetrics metrics = commands.get(device);
+		if (metrics == null) {
+			metrics = new OperationMetrics(device);
+			commands.put(device, metrics);
+			register("Command", device, metrics);
+		}
+		return metrics;
+	}
+
+	public static synchronized SensorMetrics sensor(String sensor) {
+		SensorMetrics metrics = sensors.get(sensor);
+		if (metrics == null) {
+			metrics = new SensorMetrics(sensor);
+			sensors.put(sensor, metrics);
+			register("Sensor", sensor, metrics);
+		}
+		return metrics;
+	}
+
+	private static void register(String type, String name, Object mbean) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("cardio:type=" + type + ",name=" + ObjectName.quote(name));
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(mbean, objectName);
+		} catch (JMException e) {
+			// Metrics still work without JMX
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/*
+ * MotionSensor reads a PIR (infrared) motion sensor wired to a GPIO pin,
+ * through the pin's sysfs value file. Export the pin once at boot:
+ *
+ *     echo 17 > /sys/class/gpio/export
+ *     echo in > /sys/class/gpio/gpio17/direction
+ *
+ * A sample's motion value is 1 while the sensor sees movement and 0
+ * otherwise.
+ */
+public class MotionSensor implements Sensor {
+	public static final SampleSchema SCHEMA = new SampleSchema("motion", "");
+
+	private String name;
+	private File value;
+	private long periodMillis, budgetMillis;
+
+	// Constructor
+	public MotionSensor(String name, int gpio, long periodMillis, long budgetMillis) {
+		this(name, "/sys/class/gpio/gpio" + gpio + "/value", periodMillis, budgetMillis);
+	}
+
+	public MotionSensor(String name, String valuePath, long periodMillis, long budgetMillis) {
+		this.name = name;
+		this.value = new File(valuePath);
+		this.periodMillis = periodMillis;
+		this.budgetMillis = budgetMillis;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public SampleSchema getSchema() {
+		return SCHEMA;
+	}
+
+	public long getPeriodMillis() {
+		return periodMillis;
+	}
+
+	public long getBudgetMillis() {
+		return budgetMillis;
+	}
+
+	public SensorSample read() throws IOException {
+		RandomAccessFile in = new RandomAccessFile(value, "r");
+		int level;
+		try {
+			level = in.read();
+		} finally {
+			in.close();
+		}
+		if (level != '0' && level != '1') {
+			throw new IOException(name + ": unexpected GPIO value in " + value);
+		}
+		return new SensorSample(System.currentTimeMillis(), SCHEMA, level - '0');
+	}
+
+	public void close() {
+	}
+}
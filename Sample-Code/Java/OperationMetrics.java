@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * OperationMetrics records how long one kind of operation takes and how
+ * often it fails, by FailureCause. Instances are created and registered as
+ * MBeans by Metrics.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+	private String name;
+	private LatencyHistogram latency = new LatencyHistogram();
+	private AtomicLong successes = new AtomicLong();
+	private AtomicLongArray failures = new AtomicLongArray(FailureCause.values().length);
+	private volatile String lastError = "";
+
+	// Constructor
+	public OperationMetrics(String name) {
+		this.name = name;
+	}
+
+	public void success(long nanos) {
+		latency.record(nanos);
+		successes.incrementAndGet();
+	}
+
+	public void failure(long nanos, FailureCause cause, String message) {
+		latency.record(nanos);
+		failures.incrementAndGet(cause.ordinal());
+		lastError = cause + ": " + message;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	public long getSuccessCount() {
+		return successes.get();
+	}
+
+	public long getFailureCount() {
+		long sum = 0;
+		for (int i = 0; i < failures.length(); i++) {
+			sum += failures.get(i);
+		}
+		return sum;
+	}
+
+	public long getFailures(FailureCause cause) {
+		return failures.get(cause.ordinal());
+	}
+
+	public long getMissingScriptFailures() {
+		return getFailures(FailureCause.MISSING_SCRIPT);
+	}
+
+	public long getNoDeviceFailures() {
+		return getFailures(FailureCause.NO_DEVICE);
+	}
+
+	public long getParseErrorFailures() {
+		return getFailures(FailureCause.PARSE_ERROR);
+	}
+
+	public long getIoErrorFailures() {
+		return getFailures(FailureCause.IO_ERROR);
+	}
+
+	public long getNoAckFailures() {
+		return getFailures(FailureCause.NO_ACK);
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	public double getP50Micros() {
+		return latency.percentile(0.5) / 1000.0;
+	}
+
+	public double getP99Micros() {
+		return latency.percentile(0.99) / 1000.0;
+	}
+
+	public double getMaxMicros() {
+		return latency.getMax() / 1000.0;
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public void reset() {
+		latency.reset();
+		successes.set(0);
+		for (int i = 0; i < failures.length(); i++) {
+			failures.set(i, 0);
+		}
+		lastError = "";
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * JMX view of the latency and outcome of one operation, such as the commands
+ * sent to a device or the reads of a sensor. Latencies are in microseconds.
+ */
+public interface OperationMetricsMBean {
+
+	long getCount();
+
+	long getSuccessCount();
+
+	long getFailureCount();
+
+	long getMissingScriptFailures();
+
+	long getNoDeviceFailures();
+
+	long getParseErrorFailures();
+
+	long getIoErrorFailures();
+
+	long getNoAckFailures();
+
+	String getLastError();
+
+	double getP50Micros();
+
+	double getP99Micros();
+
+	double getMaxMicros();
+
+	void reset();
+}
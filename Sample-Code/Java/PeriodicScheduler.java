@@ -0,0 +1,201 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * PeriodicScheduler runs all of the GUI's periodic work (clock, acquisition
+ * timer, sensor labels) on one thread instead of a sleeping thread each.
+ *
+ * Periodic tasks run on fixed deadlines: the n-th run is due at
+ * start + n * period, measured with System.nanoTime(), so time spent in the
+ * task or a late wake-up never pushes later runs back. If a run overruns by
+ * more than a period, the missed deadlines are skipped rather than run in a
+ * burst.
+ *
+ * Shutdown hooks registered with addShutdownHook run once when the scheduler
+ * is shut down, either explicitly or when the JVM exits.
+ *
+ * Code driven by a scheduler should read the time from it (nanoTime,
+ * currentTimeMillis) rather than from System, so that it follows a
+ * VirtualScheduler's clock in simulations.
+ */
+public class PeriodicScheduler {
+	private ScheduledThreadPoolExecutor executor;
+	private Clock clock;
+	private List<Runnable> shutdownHooks = new CopyOnWriteArrayList<Runnable>();
+	private Thread exitHook;
+	private boolean shutDown = false;
+
+	// Constructor
+	public PeriodicScheduler() {
+		this("periodic-scheduler");
+	}
+
+	public PeriodicScheduler(final String threadName) {
+		clock = Clock.SYSTEM;
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		exitHook = new Thread(threadName + "-exit") {
+			public void run() {
+				runShutdownHooks();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(exitHook);
+	}
+
+	/*
+	 * For schedulers that run their tasks themselves on the given clock, such
+	 * as VirtualScheduler, which override schedule and scheduleAtFixedRate.
+	 */
+	protected PeriodicScheduler(Clock clock) {
+		this.clock = clock;
+	}
+
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	// This scheduler's monotonic time, as System.nanoTime()
+	public long nanoTime() {
+		return clock.nanoTime();
+	}
+
+	public long currentTimeMillis() {
+		return clock.currentTimeMillis();
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	/*
+	 * newPipelineExecutor returns the executor for a pipeline of event stages
+	 * that must run one at a time and in order, such as the humidity
+	 * interlock: here a thread of its own.
+	 */
+	public ExecutorService newPipelineExecutor(String threadName) {
+		return newPipelineExecutor(threadName, Thread.NORM_PRIORITY);
+	}
+
+	// Same as newPipelineExecutor above, with the thread at the given priority
+	public ExecutorService newPipelineExecutor(final String threadName, final int priority) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				t.setPriority(priority);
+				return t;
+			}
+		});
+	}
+
+	/*
+	 * newDeadlineTimer returns a timer that runs tasks at exact times on this
+	 * scheduler's clock, for work that needs better than the scheduler's
+	 * millisecond granularity, such as recipe steps: here a thread of its own.
+	 */
+	public DeadlineTimer newDeadlineTimer(String threadName) {
+		return new DeadlineTimer(threadName);
+	}
+
+	// Runs task once, delay from now.
+	public ScheduledTask schedule(final Runnable task, long delay, TimeUnit unit) {
+		final ScheduledTask handle = new ScheduledTask();
+		handle.setNext(executor.schedule(new Runnable() {
+			public void run() {
+				if (!handle.isCancelled()) {
+					task.run();
+				}
+			}
+		}, delay, unit));
+		return handle;
+	}
+
+	/*
+	 * scheduleAtFixedRate runs task every period, the first time after
+	 * initialDelay. An exception thrown by the task is printed and does not
+	 * stop later runs.
+	 */
+	public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+		ScheduledTask handle = new ScheduledTask();
+		long periodNanos = unit.toNanos(period);
+		long first = now() + unit.toNanos(initialDelay);
+		scheduleRun(handle, task, first, periodNanos);
+		return handle;
+	}
+
+	private void scheduleRun(final ScheduledTask handle, final Runnable task, final long deadline,
+			final long periodNanos) {
+		if (handle.isCancelled() || executor.isShutdown()) {
+			return;
+		}
+		handle.setNext(executor.schedule(new Runnable() {
+			public void run() {
+				if (handle.isCancelled()) {
+					return;
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				// Next deadline on the original grid, skipping any we overran
+				long next = deadline + periodNanos;
+				long current = now();
+				if (next - current <= 0) {
+					next += ((current - next) / periodNanos + 1) * periodNanos;
+				}
+				scheduleRun(handle, task, next, periodNanos);
+			}
+		}, Math.max(0, deadline - now()), TimeUnit.NANOSECONDS));
+	}
+
+	public void addShutdownHook(Runnable hook) {
+		shutdownHooks.add(hook);
+	}
+
+	/*
+	 * shutdown cancels all pending work and runs the shutdown hooks. Calling
+	 * it more than once has no further effect.
+	 */
+	public void shutdown() {
+		runShutdownHooks();
+		if (exitHook == null) {
+			return;
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(exitHook);
+		} catch (IllegalStateException e) {
+			// Already exiting
+		}
+	}
+
+	private void runShutdownHooks() {
+		synchronized (this) {
+			if (shutDown) {
+				return;
+			}
+			shutDown = true;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		for (Runnable hook : shutdownHooks) {
+			try {
+				hook.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,297 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Recipe is an acquisition run compiled into a flat step table. A recipe is
+ * written as one timed action per line, with the time from the start of the
+ * run as m:ss or h:mm:ss:
+ *
+ *     0:00   hold humidity 45 55 max 10:00
+ *     0:00   speed 100
+ *     0:00   step 125
+ *     0:05   pulse 0:02
+ *     1:00   ramp speed 100 400 over 2:00 every 0:10
+ *     20:00  end
+ *
+ *     speed <n> / step <n>        slider speed and step size
+ *     left / right                jog the slider
+ *     pump up|down|stop           drive the syringe pump
+ *     pulse <duration>            pump up, then stop after duration
+ *     run <minutes>               timed run of both devices, as the
+ *                                 Start Acquisition button sends it
+ *     ramp speed|step <from> <to> over <duration> every <interval>
+ *     hold humidity <min> <max> [max <duration>]
+ *                                 wait until the humidity is in range; the
+ *                                 rest of the run moves back by the wait,
+ *                                 and the run is aborted after max
+ *     end                         the end of the run, required once
+ *
+ * compile checks the whole recipe up front (syntax, values, commands the
+ * devices understand, steps after end) and expands pulses and ramps, so the
+ * table RecipeRunner walks holds nothing but planned times and ready-to-send
+ * commands. Blank lines and lines starting with # are ignored.
+ */
+public class Recipe {
+	public static final byte OP_COMMAND = 0;
+	public static final byte OP_HOLD = 1;
+	public static final byte OP_END = 2;
+	public static final byte TARGET_PUMP = 0;
+	public static final byte TARGET_SLIDER = 1;
+
+	private String name;
+	// One entry per step, in execution order
+	final long[] at;
+	final byte[] op;
+	final byte[] target;
+	final int[] command;
+	// The command's letter in the sketch, e.g. 't' for a timed run
+	final char[] letter;
+	final int[] value;
+	final double[] low, high;
+	final long[] timeout;
+
+	private Recipe(String name, List<Step> steps) {
+		this.name = name;
+		int n = steps.size();
+		at = new long[n];
+		op = new byte[n];
+		target = new byte[n];
+		command = new int[n];
+		letter = new char[n];
+		value = new int[n];
+		low = new double[n];
+		high = new double[n];
+		timeout = new long[n];
+		for (int i = 0; i < n; i++) {
+			Step s = steps.get(i);
+			at[i] = s.at;
+			op[i] = s.op;
+			target[i] = s.target;
+			command[i] = s.command;
+			letter[i] = s.letter;
+			value[i] = s.value;
+			low[i] = s.low;
+			high[i] = s.high;
+			timeout[i] = s.timeout;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int size() {
+		return at.length;
+	}
+
+	// Planned length of the run, not counting time spent in holds
+	public long getDurationNanos() {
+		return at[at.length - 1];
+	}
+
+	// One step while compiling; line keeps steps at the same time in file order
+	private static class Step {
+		long at;
+		int line;
+		byte op, target;
+		int command, value;
+		char letter;
+		double low, high;
+		long timeout;
+	}
+
+	public static Recipe load(String path, DeviceChannel pump, DeviceChannel slider) throws IOException {
+		Reader in = new FileReader(path);
+		try {
+			return compile(path, in, pump, slider);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * compile reads and checks a recipe. Any problem is reported as an
+	 * IllegalArgumentException naming the line.
+	 */
+	public static Recipe compile(String name, Reader source, DeviceChannel pump, DeviceChannel slider)
+			throws IOException {
+		BufferedReader in = new BufferedReader(source);
+		List<Step> steps = new ArrayList<Step>();
+		long end = -1;
+		String text;
+		int line = 0;
+		while ((text = in.readLine()) != null) {
+			line++;
+			text = text.trim();
+			if (text.length() == 0 || text.startsWith("#")) {
+				continue;
+			}
+			String[] w = text.toLowerCase(Locale.ROOT).split("\\s+");
+			try {
+				long at = parseTime(w[0]);
+				String action = w.length > 1 ? w[1] : "";
+				if (end >= 0) {
+					throw new IllegalArgumentException("nothing may follow end");
+				}
+				if (action.equals("speed") || action.equals("step")) {
+					expect(w, 3);
+					steps.add(command(line, at, slider, TARGET_SLIDER, action.equals("speed") ? 's' : 'r',
+							parseValue(w[2])));
+				} else if (action.equals("left") || action.equals("right")) {
+					expect(w, 2);
+					steps.add(command(line, at, slider, TARGET_SLIDER, action.equals("left") ? 'L' : 'R', 0));
+				} else if (action.equals("pump")) {
+					expect(w, 3);
+					char letter = w[2].equals("up") ? 'u' : w[2].equals("down") ? 'd' : w[2].equals("stop") ? 's' : 0;
+					if (letter == 0) {
+						throw new IllegalArgumentException("pump up, down or stop");
+					}
+					steps.add(command(line, at, pump, TARGET_PUMP, letter, 0));
+				} else if (action.equals("run")) {
+					// The sketches' own timed run, on both devices
+					expect(w, 3);
+					int minutes = parseValue(w[2]);
+					steps.add(command(line, at, pump, TARGET_PUMP, 't', minutes));
+					steps.add(command(line, at, slider, TARGET_SLIDER, 't', minutes));
+				} else if (action.equals("pulse")) {
+					expect(w, 3);
+					steps.add(command(line, at, pump, TARGET_PUMP, 'u', 0));
+					steps.add(command(line, at + parseTime(w[2]), pump, TARGET_PUMP, 's', 0));
+				} else if (action.equals("ramp")) {
+					// ramp speed <from> <to> over <duration> every <interval>
+					expect(w, 9);
+					if (!w[5].equals("over") || !w[7].equals("every")) {
+						throw new IllegalArgumentException("ramp <what> <from> <to> over <duration> every <interval>");
+					}
+					char letter = w[2].equals("speed") ? 's' : w[2].equals("step") ? 'r' : 0;
+					if (letter == 0) {
+						throw new IllegalArgumentException("only speed and step can be ramped");
+					}
+					int from = parseValue(w[3]), to = parseValue(w[4]);
+					long over = parseTime(w[6]), every = parseTime(w[8]);
+					if (every <= 0 || over < every) {
+						throw new IllegalArgumentException("ramp interval must be positive and within its duration");
+					}
+					long count = over / every;
+					for (long k = 0; k <= count; k++) {
+						int v = (int) Math.round(from + (to - from) * (double) k / count);
+						steps.add(command(line, at + k * every, slider, TARGET_SLIDER, letter, v));
+					}
+				} else if (action.equals("hold")) {
+					if (w.length != 5 && w.length != 7 || !w[2].equals("humidity")) {
+						throw new IllegalArgumentException("hold humidity <min> <max> [max <duration>]");
+					}
+					Step s = new Step();
+					s.line = line;
+					s.at = at;
+					s.op = OP_HOLD;
+					s.low = Double.parseDouble(w[3]);
+					s.high = Double.parseDouble(w[4]);
+					if (!(s.low < s.high)) {
+						throw new IllegalArgumentException("hold range is empty");
+					}
+					if (w.length == 7) {
+						if (!w[5].equals("max")) {
+							throw new IllegalArgumentException("hold humidity <min> <max> [max <duration>]");
+						}
+						s.timeout = parseTime(w[6]);
+					}
+					steps.add(s);
+				} else if (action.equals("end")) {
+					expect(w, 2);
+					end = at;
+				} else {
+					throw new IllegalArgumentException("unknown action " + action);
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(name + " line " + line + ": " + e.getMessage());
+			}
+		}
+		if (end < 0) {
+			throw new IllegalArgumentException(name + ": missing end");
+		}
+
+		// Run in time order; steps planned for the same time keep file order
+		Collections.sort(steps, new Comparator<Step>() {
+			public int compare(Step a, Step b) {
+				return a.at != b.at ? Long.compare(a.at, b.at) : Integer.compare(a.line, b.line);
+			}
+		});
+		for (Step s : steps) {
+			if (s.at > end) {
+				throw new IllegalArgumentException(name + " line " + s.line + ": planned after end");
+			}
+		}
+		Step last = new Step();
+		last.at = end;
+		last.op = OP_END;
+		steps.add(last);
+		return new Recipe(name, steps);
+	}
+
+	// The fixed timed run of the Start Acquisition button as a recipe
+	public static Recipe timedRun(int minutes, DeviceChannel pump, DeviceChannel slider) {
+		String source = "0:00 run " + minutes + "\n" + minutes + ":00 end\n";
+		try {
+			return compile("timed run", new StringReader(source), pump, slider);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Step command(int line, long at, DeviceChannel device, byte target, char letter, int value) {
+		int index = device.commandIndex(letter);
+		if (index < 0) {
+			throw new IllegalArgumentException(device.getName() + " has no command " + letter);
+		}
+		Step s = new Step();
+		s.line = line;
+		s.at = at;
+		s.op = OP_COMMAND;
+		s.target = target;
+		s.command = index;
+		s.letter = letter;
+		s.value = value;
+		return s;
+	}
+
+	private static void expect(String[] words, int count) {
+		if (words.length != count) {
+			throw new IllegalArgumentException("expected " + (count - 1) + " words after the time");
+		}
+	}
+
+	private static int parseValue(String word) {
+		int value = Integer.parseInt(word);
+		if (value < 0 || value > FrameCodec.MAX_VALUE) {
+			throw new IllegalArgumentException("value out of range: " + value);
+		}
+		return value;
+	}
+
+	// m:ss or h:mm:ss, in nanoseconds
+	static long parseTime(String word) {
+		String[] parts = word.split(":");
+		if (parts.length < 2 || parts.length > 3) {
+			throw new IllegalArgumentException("time must be m:ss or h:mm:ss: " + word);
+		}
+		long seconds = 0;
+		for (int i = 0; i < parts.length; i++) {
+			int part = Integer.parseInt(parts[i]);
+			if (part < 0 || (i > 0 && part > 59)) {
+				throw new IllegalArgumentException("bad time: " + word);
+			}
+			seconds = seconds * 60 + part;
+		}
+		return TimeUnit.SECONDS.toNanos(seconds);
+	}
+}
@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/*
+ * RecipeRunner executes a compiled Recipe on a DeadlineTimer from the rig's
+ * scheduler. Every step has a deadline fixed when the run starts (start +
+ * planned time, on the scheduler's clock), so a late step never pushes later
+ * ones back. The timer parks until just before a deadline and spins the
+ * rest, which keeps commands within a fraction of a millisecond of their
+ * planned time instead of the scheduler's millisecond granularity. How late
+ * each command actually fired is recorded in getJitter(). On a
+ * VirtualScheduler the steps run in virtual time like everything else.
+ *
+ * A humidity hold stops the clock: the runner polls the sensor until the
+ * humidity is in the hold's range, and every later deadline moves back by
+ * the time waited. A hold that runs past its max aborts the run. pause and
+ * resume stop the clock the same way from outside, e.g. when the humidity
+ * interlock trips. The runner keeps track of the pump state the recipe last
+ * commanded and sends it again on resume, so a pump stopped for the pause
+ * picks up where the recipe left it. A timed run, once sent, is timed by the
+ * sketches themselves and cannot be paused; see tryPause.
+ *
+ * Commands go through the rig's CommandDispatcher, so they stay in order
+ * with anything the operator sends during the run.
+ */
+public class RecipeRunner {
+	private static final long HOLD_POLL_NANOS = 250000000L;
+
+	private Recipe recipe;
+	private CommandDispatcher dispatcher;
+	private DeviceComm[] targets;
+	private DHT11 sensor;
+	private PeriodicScheduler scheduler;
+	private String threadName;
+	private DeadlineTimer timer;
+	private LatencyHistogram jitter = new LatencyHistogram();
+	private CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+	private List<CompletableFuture<Boolean>> sent = new ArrayList<CompletableFuture<Boolean>>();
+	private final Runnable step = new Runnable() {
+		public void run() {
+			step();
+		}
+	};
+	private long start;
+	private int next = 0;
+	private long holdBegan;
+	// Set once the run is over; ending once done has been set to complete
+	private boolean finished = false, ending = false, stepsOk;
+	private RuntimeException failure;
+	private volatile boolean cancelled = false;
+	private volatile boolean holding = false;
+	private volatile boolean paused = false;
+	private volatile long shift = 0;
+	private volatile long stoppedAt = -1;
+	private volatile int stepsDone = 0;
+	// Last pump command sent by the recipe, or -1, and whether a timed run went out
+	private int pumpStep = -1;
+	private boolean timedRunSent = false;
+
+	// Constructor
+	public RecipeRunner(Recipe recipe, CommandDispatcher dispatcher, DeviceComm pump, DeviceComm slider,
+			DHT11 sensor, PeriodicScheduler scheduler, String threadName) {
+		this.recipe = recipe;
+		this.dispatcher = dispatcher;
+		this.targets = new DeviceComm[] { pump, slider };
+		this.sensor = sensor;
+		this.scheduler = scheduler;
+		this.threadName = threadName;
+	}
+
+	/*
+	 * start begins the run. The future completes with true when every step
+	 * has run and every device took its commands, or false if the run was
+	 * cancelled, a hold timed out or a device was not connected.
+	 */
+	public synchronized CompletableFuture<Boolean> start() {
+		if (timer == null) {
+			timer = scheduler.newDeadlineTimer(threadName);
+			start = scheduler.nanoTime();
+			timer.at(start, step);
+		}
+		return done;
+	}
+
+	// Ends the run; steps already sent are not undone
+	public void cancel() {
+		synchronized (this) {
+			cancelled = true;
+			if (timer != null) {
+				finish(false);
+			}
+		}
+		complete();
+	}
+
+	private void step() {
+		synchronized (this) {
+			advance();
+		}
+		complete();
+	}
+
+	/*
+	 * advance runs on the timer: it carries on with a hold in progress, then
+	 * sends every step that has come due and sets the timer for the next
+	 * one. Nothing is sent while the run is paused; resume calls it again.
+	 */
+	private void advance() {
+		if (finished) {
+			return;
+		}
+		if (cancelled) {
+			finish(false);
+			return;
+		}
+		try {
+			long now = scheduler.nanoTime();
+			if (holding) {
+				if (!holdOver(now)) {
+					return;
+				}
+				stepsDone = ++next;
+			}
+			while (!paused && next < recipe.size()) {
+				long due = start + recipe.at[next] + shift;
+				if (due - now > 0) {
+					timer.at(due, step);
+					return;
+				}
+				if (recipe.op[next] == Recipe.OP_COMMAND) {
+					send(next, now - due);
+				} else if (recipe.op[next] == Recipe.OP_HOLD) {
+					holdBegan = now;
+					stoppedAt = now;
+					holding = true;
+					if (!holdOver(now)) {
+						return;
+					}
+				}
+				stepsDone = ++next;
+				now = scheduler.nanoTime();
+			}
+			if (next == recipe.size()) {
+				finish(true);
+			}
+		} catch (RuntimeException e) {
+			failure = e;
+			finish(false);
+		}
+	}
+
+	// Sends step i, late by the given nanoseconds, and notes what it does to the pump
+	private void send(int i, long late) {
+		jitter.record(late);
+		sent.add(dispatcher.dispatch(targets[recipe.target[i]], recipe.command[i], recipe.value[i]));
+		if (recipe.letter[i] == 't') {
+			timedRunSent = true;
+		}
+		if (recipe.target[i] == Recipe.TARGET_PUMP) {
+			pumpStep = i;
+		}
+	}
+
+	/*
+	 * holdOver checks the hold at the current step and returns true once the
+	 * humidity is in its range. Until then the timer polls again; a hold
+	 * past its max ends the run. The clock stays stopped through the hold,
+	 * and after it for as long as a pause is still on.
+	 */
+	private boolean holdOver(long now) {
+		// A stale reading never satisfies a hold
+		SensorSnapshot reading = sensor.getSnapshot(DHT11.STALE_MILLIS);
+		boolean inRange = reading != null && reading.getHumidity() >= recipe.low[next]
+				&& reading.getHumidity() <= recipe.high[next];
+		long timeout = recipe.timeout[next];
+		if (!inRange && (timeout <= 0 || now - holdBegan < timeout)) {
+			timer.at(now + HOLD_POLL_NANOS, step);
+			return false;
+		}
+		shift += now - holdBegan;
+		stoppedAt = paused ? now : -1;
+		holding = false;
+		if (!inRange) {
+			finish(false);
+			return false;
+		}
+		return true;
+	}
+
+	// Ends the run: no further steps are sent; see complete
+	private void finish(boolean ok) {
+		if (!finished) {
+			finished = true;
+			stepsOk = ok;
+			timer.shutdown();
+		}
+	}
+
+	/*
+	 * complete completes the run once it is finished and every command sent
+	 * has been answered. It is called without the runner's lock, since the
+	 * run's callbacks take the controller's. A step cancelled by a pump Stop
+	 * was not refused by the device.
+	 */
+	private void complete() {
+		final List<CompletableFuture<Boolean>> acks;
+		final boolean ok;
+		synchronized (this) {
+			if (!finished || ending) {
+				return;
+			}
+			ending = true;
+			if (failure != null) {
+				acks = null;
+				ok = false;
+			} else {
+				acks = new ArrayList<CompletableFuture<Boolean>>(sent);
+				ok = stepsOk && !cancelled;
+			}
+		}
+		if (acks == null) {
+			done.completeExceptionally(failure);
+			return;
+		}
+		CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[acks.size()])).whenComplete(
+				new BiConsumer<Void, Throwable>() {
+					public void accept(Void all, Throwable error) {
+						boolean result = ok;
+						for (CompletableFuture<Boolean> ack : acks) {
+							result &= ack.isCancelled() || !ack.isCompletedExceptionally() && ack.join();
+						}
+						done.complete(result);
+					}
+				});
+	}
+
+	/*
+	 * pause stops the run's clock: no further steps are sent until resume,
+	 * and every later deadline moves back by the time paused. Steps already
+	 * sent are not undone. In a humidity hold the clock is already stopped;
+	 * the pause keeps it stopped if it outlasts the hold.
+	 */
+	public synchronized void pause() {
+		if (!paused) {
+			if (!holding) {
+				stoppedAt = scheduler.nanoTime();
+			}
+			paused = true;
+		}
+	}
+
+	/*
+	 * tryPause pauses the run unless a timed run has already been sent: the
+	 * sketches time that themselves, so pausing the recipe would not pause
+	 * the deposition. Returns false, without pausing, in that case; the run
+	 * should then be aborted.
+	 */
+	public synchronized boolean tryPause() {
+		if (timedRunSent) {
+			return false;
+		}
+		pause();
+		return true;
+	}
+
+	/*
+	 * resume restarts the run's clock and sends the pump the last command
+	 * the recipe gave it, if that left it running, since whoever paused the
+	 * run will have stopped the pump.
+	 */
+	public synchronized void resume() {
+		if (paused) {
+			long now = scheduler.nanoTime();
+			if (!holding) {
+				shift += now - stoppedAt;
+				stoppedAt = -1;
+			}
+			paused = false;
+			if (finished || timer == null) {
+				return;
+			}
+			if (pumpStep >= 0 && (recipe.letter[pumpStep] == 'u' || recipe.letter[pumpStep] == 'd')) {
+				sent.add(dispatcher.dispatch(targets[Recipe.TARGET_PUMP], recipe.command[pumpStep],
+						recipe.value[pumpStep]));
+			}
+			timer.at(now, step);
+		}
+	}
+
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public Recipe getRecipe() {
+		return recipe;
+	}
+
+	// Nanoseconds the run has been moved back by holds and pauses so far
+	public long getShiftNanos() {
+		long stopped = stoppedAt;
+		return shift + (stopped < 0 ? 0 : scheduler.nanoTime() - stopped);
+	}
+
+	public boolean isHolding() {
+		return holding;
+	}
+
+	public int getStepsDone() {
+		return stepsDone;
+	}
+
+	// How late each command fired against its planned time
+	public LatencyHistogram getJitter() {
+		return jitter;
+	}
+}
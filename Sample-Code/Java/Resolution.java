@@ -0,0 +1,17 @@
+/*
+ * Resolution is the level of detail a TimeSeries query is answered at: every
+ * raw sample, or min/max/mean rollups over 10 second or 1 minute buckets.
+ */
+public enum Resolution {
+	RAW(0), TEN_SECONDS(10000), ONE_MINUTE(60000);
+
+	private final long bucketMillis;
+
+	Resolution(long bucketMillis) {
+		this.bucketMillis = bucketMillis;
+	}
+
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+}
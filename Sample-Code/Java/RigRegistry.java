@@ -0,0 +1,204 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * RigRegistry holds every electrospinner rig driven by this process. Each rig
+ * is a CardioController with its own devices, Bluetooth links, DHT11 stream,
+ * acquisition timer, command thread and scheduler thread; rigs share nothing
+ * on the command path, so they run in parallel across cores and one rig's
+ * traffic does not add to another's latency.
+ *
+ * Rigs are described in devices.properties. Without a rigs= line the file
+ * describes a single rig, as before. With one, every key of a rig is prefixed
+ * with rig.<name>.:
+ *
+ *     rigs=rig1,rig2
+ *     rig.rig1.devices=pump,slider
+ *     rig.rig1.device.pump.id=1
+ *     rig.rig1.device.pump.link=/dev/rfcomm0
+ *     ...
+ *     rig.rig1.sensor.cmd=sudo python /home/pi/temp/DHT11_stream.py 1 4
+ */
+public class RigRegistry {
+	public static final String DEFAULT_RIG = "rig1";
+
+	private TransportFactory factory;
+	private Map<String, CardioController> rigs = new LinkedHashMap<String, CardioController>();
+
+	// Constructor
+	public RigRegistry() {
+		this(null);
+	}
+
+	// Rigs whose links come from factory, e.g. emulators; null for the real links
+	public RigRegistry(TransportFactory factory) {
+		this.factory = factory;
+	}
+
+	// Builds the rigs described by devices.properties
+	public static RigRegistry createDefault() {
+		RigRegistry registry = new RigRegistry();
+		registry.load(DeviceRegistry.loadConfig());
+		return registry;
+	}
+
+	public void load(Properties config) {
+		String list = config.getProperty("rigs");
+		if (list == null) {
+			register(DEFAULT_RIG, config, false);
+			return;
+		}
+		for (String name : list.split(",")) {
+			name = name.trim();
+			if (name.length() > 0) {
+				register(name, section(config, "rig." + name + "."), true);
+			}
+		}
+	}
+
+	/*
+	 * register builds a rig from its own configuration, with the keys of a
+	 * single-rig devices.properties. scoped keeps the rig's metrics apart
+	 * from other rigs' (rig2.pump rather than pump).
+	 */
+	public synchronized CardioController register(String name, Properties config, boolean scoped) {
+		if (rigs.containsKey(name)) {
+			throw new IllegalArgumentException("Rig already registered: " + name);
+		}
+		LinkPool pool = factory == null ? new LinkPool() : new LinkPool(factory);
+		DeviceRegistry devices = new DeviceRegistry(pool, scoped ? name : null);
+		devices.load(config);
+		String sensorName = scoped ? name + "." + DHT11.METRICS_NAME : DHT11.METRICS_NAME;
+		DHT11 dht11 = new DHT11(sensorName, config.getProperty("sensor.cmd", DHT11.STREAM_CMD).trim());
+		CardioController rig = new CardioController(name, devices, dht11);
+		try {
+			rig.getInterlock().configure(config);
+			rig.getSampling().load(config, scoped ? name : null);
+			TelemetryExporter exporter = TelemetryExporter.fromConfig(config, name);
+			if (exporter != null) {
+				rig.setExporter(exporter);
+			}
+		} catch (IllegalArgumentException e) {
+			rig.shutdown();
+			throw new IllegalArgumentException("Rig " + name + ": " + e.getMessage(), e);
+		}
+		rigs.put(name, rig);
+		return rig;
+	}
+
+	// The keys under prefix, with the prefix taken off
+	static Properties section(Properties config, String prefix) {
+		Properties section = new Properties();
+		for (String key : config.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				section.setProperty(key.substring(prefix.length()), config.getProperty(key));
+			}
+		}
+		return section;
+	}
+
+	public synchronized CardioController get(String name) {
+		CardioController rig = rigs.get(name);
+		if (rig == null) {
+			throw new IllegalArgumentException("Unknown rig: " + name);
+		}
+		return rig;
+	}
+
+	public synchronized CardioController[] getRigs() {
+		return rigs.values().toArray(new CardioController[0]);
+	}
+
+	public synchronized int size() {
+		return rigs.size();
+	}
+
+	public void shutdown() {
+		for (CardioController rig : getRigs()) {
+			rig.shutdown();
+		}
+	}
+
+	/*
+	 * Load check: drives one emulated rig on its own and then many at once,
+	 * each from its own thread, and compares per-rig command latency (from
+	 * dispatch to the command being on the link).
+	 *
+	 *     java RigRegistry [rigs] [commands per rig]
+	 */
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int commands = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		long[] solo = drive(emulatedRigs("solo", 1), commands);
+		System.out.println(String.format("1 rig:   p50 %7.1f us  p99 %7.1f us", solo[0] / 1000.0, solo[1] / 1000.0));
+
+		long[] many = drive(emulatedRigs("load", count), commands);
+		System.out.println(String.format("%d rigs:  p50 %7.1f us  p99 %7.1f us (worst rig)", count,
+				many[0] / 1000.0, many[1] / 1000.0));
+		System.out.println(String.format("p99 vs single rig: %+.1f%% on %d cores",
+				(many[1] - solo[1]) * 100.0 / solo[1], Runtime.getRuntime().availableProcessors()));
+	}
+
+	private static RigRegistry emulatedRigs(String prefix, int count) {
+		RigRegistry registry = new RigRegistry(new TransportFactory() {
+			public DeviceTransport createTransport(String link) {
+				// Every link is its own emulated HC-06
+				DeviceEmulator emulator = new DeviceEmulator();
+				emulator.addDevice(1, DeviceEmulator.PUMP);
+				emulator.addDevice(2, DeviceEmulator.SLIDER);
+				return emulator;
+			}
+		});
+		Properties config = DeviceRegistry.loadConfig();
+		for (int i = 1; i <= count; i++) {
+			registry.register(prefix + i, config, true);
+		}
+		return registry;
+	}
+
+	// Returns the worst per-rig p50 and p99 in nanoseconds
+	private static long[] drive(RigRegistry registry, final int commands) throws InterruptedException {
+		CardioController[] all = registry.getRigs();
+		final long[][] latencies = new long[all.length][commands];
+		final CountDownLatch go = new CountDownLatch(1);
+		Thread[] drivers = new Thread[all.length];
+		for (int r = 0; r < all.length; r++) {
+			final CardioController rig = all[r];
+			final long[] mine = latencies[r];
+			drivers[r] = new Thread(rig.getName() + "-driver") {
+				public void run() {
+					try {
+						go.await();
+						for (int i = 0; i < commands; i++) {
+							long start = System.nanoTime();
+							rig.setSpeed(i & 0x3FF).join();
+							mine[i] = System.nanoTime() - start;
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			drivers[r].start();
+		}
+		go.countDown();
+		for (Thread driver : drivers) {
+			driver.join();
+		}
+		registry.shutdown();
+
+		long[] worst = new long[2];
+		for (long[] mine : latencies) {
+			// The first tenth is JIT warm-up
+			long[] measured = Arrays.copyOfRange(mine, commands / 10, commands);
+			Arrays.sort(measured);
+			worst[0] = Math.max(worst[0], measured[measured.length / 2]);
+			worst[1] = Math.max(worst[1], measured[(int) (measured.length * 0.99)]);
+		}
+		return worst;
+	}
+}
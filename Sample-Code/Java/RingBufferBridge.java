@@ -0,0 +1,149 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * RingBufferBridge is the long-running helper on the other end of a
+ * RingBufferTransport. It drains frames from <base>.tx and writes them to the
+ * real link, and copies whatever the link sends back into <base>.rx.
+ *
+ *     java RingBufferBridge /dev/shm/cardio-pump /dev/rfcomm0
+ *
+ * Using "loopback" as the link echoes every frame back, which together with
+ * the --bench mode measures the channel end to end on any Linux box:
+ *
+ *     java RingBufferBridge --bench /dev/shm/cardio-bench 100000
+ */
+public class RingBufferBridge {
+	private MappedRingBuffer tx, rx;
+	private DeviceTransport link;
+	private volatile boolean running = true;
+
+	// Constructor
+	public RingBufferBridge(String base, DeviceTransport link) throws IOException {
+		tx = new MappedRingBuffer(base + ".tx");
+		rx = new MappedRingBuffer(base + ".rx");
+		this.link = link;
+	}
+
+	/*
+	 * run forwards frames until stop is called. Replies from the link are read
+	 * on a second thread because a serial read blocks until data arrives.
+	 */
+	public void run() throws IOException {
+		link.open();
+		Thread replies = new Thread("bridge-replies") {
+			public void run() {
+				ByteBuffer in = ByteBuffer.allocate(256);
+				try {
+					while (running) {
+						in.clear();
+						int count = link.read(in);
+						if (count < 0) {
+							break;
+						}
+						if (count == 0) {
+							LockSupport.parkNanos(20000);
+							continue;
+						}
+						in.flip();
+						while (!rx.offer(in) && running) {
+							// GUI is not reading replies, wait for room
+							LockSupport.parkNanos(50000);
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		replies.setDaemon(true);
+		replies.start();
+
+		ByteBuffer out = ByteBuffer.allocate(tx.getCapacity());
+		int idle = 0;
+		while (running) {
+			out.clear();
+			if (tx.poll(out) < 0) {
+				// Spin briefly, then back off so an idle bridge costs no CPU
+				if (++idle < 100) {
+					Thread.onSpinWait();
+				} else {
+					LockSupport.parkNanos(idle < 1000 ? 10000 : 1000000);
+				}
+				continue;
+			}
+			idle = 0;
+			out.flip();
+			link.write(out);
+		}
+		link.close();
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3 && args[0].equals("--bench")) {
+			benchmark(args[1], Integer.parseInt(args[2]));
+			return;
+		}
+		if (args.length != 2) {
+			System.err.println("Usage: RingBufferBridge <ring base> <link|loopback>");
+			System.err.println("       RingBufferBridge --bench <ring base> <frames>");
+			System.exit(1);
+		}
+		DeviceTransport link = args[1].equals("loopback") ? new LoopbackTransport() : new SerialTransport(args[1]);
+		new RingBufferBridge(args[0], link).run();
+	}
+
+	/*
+	 * benchmark starts a loopback bridge in a child JVM and times frames going
+	 * out through the tx ring and coming back through the rx ring.
+	 */
+	private static void benchmark(String base, int frames) throws Exception {
+		new File(base + ".tx").delete();
+		new File(base + ".rx").delete();
+		RingBufferTransport transport = new RingBufferTransport(base);
+		transport.open();
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process bridge = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "RingBufferBridge",
+				base, "loopback").inheritIO().start();
+		try {
+			ByteBuffer frame = ByteBuffer.allocate(FrameCodec.FRAME_LENGTH);
+			ByteBuffer reply = ByteBuffer.allocate(FrameCodec.FRAME_LENGTH);
+			long[] latencies = new long[frames];
+			long begin = System.nanoTime();
+			for (int i = 0; i < frames; i++) {
+				frame.clear();
+				FrameCodec.encode(frame, 's', 2, i & 0xFF, i & 0xFFFF);
+				frame.flip();
+				long start = System.nanoTime();
+				transport.write(frame);
+				reply.clear();
+				while (reply.hasRemaining()) {
+					if (transport.read(reply) == 0) {
+						Thread.onSpinWait();
+					}
+				}
+				latencies[i] = System.nanoTime() - start;
+			}
+			long elapsed = System.nanoTime() - begin;
+
+			Arrays.sort(latencies);
+			System.out.println("frames:      " + frames);
+			System.out.println("throughput:  " + (frames * 1000000000L / elapsed) + " round trips/s");
+			System.out.println("p50 (us):    " + latencies[frames / 2] / 1000.0);
+			System.out.println("p99 (us):    " + latencies[(int) (frames * 0.99)] / 1000.0);
+			System.out.println("max (us):    " + latencies[frames - 1] / 1000.0);
+		} finally {
+			bridge.destroy();
+			new File(base + ".tx").delete();
+			new File(base + ".rx").delete();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * RingBufferTransport hands frames to a long-running helper process through a
+ * pair of MappedRingBuffers instead of a file and a process per command.
+ * Frames for the device go into <base>.tx and whatever the device sends back
+ * (acknowledgements) comes out of <base>.rx. RingBufferBridge is the helper
+ * on the other side.
+ *
+ * Configure a device with a link of the form shm:/dev/shm/cardio-pump to send
+ * its commands this way.
+ */
+public class RingBufferTransport implements DeviceTransport {
+	private static final long WRITE_TIMEOUT_NANOS = 1000000000L;
+
+	private String base;
+	private MappedRingBuffer tx, rx;
+	private ByteBuffer incoming;
+	private Object readLock = new Object();
+
+	// Constructor
+	public RingBufferTransport(String base) {
+		this.base = base;
+	}
+
+	public synchronized void open() throws IOException {
+		if (tx != null) {
+			return;
+		}
+		MappedRingBuffer out = new MappedRingBuffer(base + ".tx");
+		MappedRingBuffer in = new MappedRingBuffer(base + ".rx");
+		synchronized (readLock) {
+			incoming = ByteBuffer.allocate(in.getCapacity());
+			incoming.flip();
+			rx = in;
+		}
+		tx = out;
+	}
+
+	public synchronized boolean isOpen() {
+		return tx != null;
+	}
+
+	/*
+	 * write waits for the helper to make room if the ring is full, and fails
+	 * if it has not drained anything within a second.
+	 */
+	public synchronized void write(ByteBuffer src) throws IOException {
+		open();
+		long deadline = System.nanoTime() + WRITE_TIMEOUT_NANOS;
+		while (!tx.offer(src)) {
+			if (System.nanoTime() - deadline > 0) {
+				throw new IOException("Helper is not draining " + tx.getPath());
+			}
+			LockSupport.parkNanos(50000);
+		}
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		synchronized (readLock) {
+			if (rx == null) {
+				return -1;
+			}
+			if (!incoming.hasRemaining()) {
+				incoming.clear();
+				if (rx.poll(incoming) < 0) {
+					incoming.flip();
+					return 0;
+				}
+				incoming.flip();
+			}
+			int count = Math.min(incoming.remaining(), dst.remaining());
+			for (int i = 0; i < count; i++) {
+				dst.put(incoming.get());
+			}
+			return count;
+		}
+	}
+
+	public synchronized void close() {
+		// Nothing to release; the mappings go away with the buffers
+		tx = null;
+		synchronized (readLock) {
+			rx = null;
+		}
+	}
+
+	public String getBase() {
+		return base;
+	}
+}
@@ -0,0 +1,268 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * RunJournal records everything that happens during one acquisition: the
+ * commands sent and whether the device took them, acknowledgements, the
+ * DHT11 samples and changes of the humidity interlock. Records are fixed-size and written straight into a
+ * memory-mapped segment file, so an append is a few stores into memory and
+ * the kernel writes the pages back in the background. Segments are
+ * preallocated as sparse files, so the SD card only sees the pages that hold
+ * records.
+ *
+ * Any thread may append without taking a lock: it claims the next record slot
+ * with one atomic increment, fills the record and publishes it by storing the
+ * record's type word last, with release semantics. A zero type word means the
+ * slot is not written. When the current segment is half full a background
+ * thread maps the next one, so writers never wait on file I/O. A writer that
+ * still gets ahead of the next segment drops its record and counts it.
+ *
+ * Segment files are <dir>/<run>-NNNN.journal:
+ *
+ *     0    magic "CRJ1" (int)
+ *     4    record size (int)
+ *     8    segment number (int)
+ *     12   records per segment (int)
+ *     16   run start, epoch milliseconds (long)
+ *     24   run name, UTF-8, zero padded to 40 bytes
+ *     64   records
+ *
+ * Each record is RECORD_SIZE bytes, little-endian:
+ *
+ *     0    time, epoch microseconds (long)
+ *     8    a: temperature, or command latency in nanoseconds (double)
+ *     16   b: humidity (double)
+ *     24   value (int)
+ *     28   device id, opcode, sequence, type (one byte each; the type
+ *          word, written last)
+ *
+ * JournalInspector reads a run back.
+ */
+public class RunJournal {
+	public static final int MAGIC = 0x314A5243; // "CRJ1"
+	public static final int RECORD_SIZE = 32;
+	public static final int HEADER_SIZE = 64;
+	public static final int DEFAULT_SEGMENT_RECORDS = 128 * 1024; // 4 MB
+	private static final int NAME_OFFSET = 24;
+	private static final int NAME_LENGTH = 40;
+	private static final int TYPE_WORD = 28;
+
+	// Record types; 0 is an unwritten slot
+	public static final byte RUN_START = 1;
+	public static final byte RUN_END = 2;
+	public static final byte COMMAND = 3;
+	public static final byte COMMAND_FAILED = 4;
+	public static final byte ACK = 5;
+	public static final byte SAMPLE = 6;
+	public static final byte INTERLOCK = 7;
+
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private File dir;
+	private String run;
+	private int segmentRecords;
+	private long startMillis, startNanos;
+	private AtomicLong nextRecord = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private volatile MappedByteBuffer[] mapped = new MappedByteBuffer[0];
+	private Thread roller;
+	private volatile boolean closed = false;
+	private volatile IOException rollFailure;
+
+	// Constructor
+	public RunJournal(File dir, String run) throws IOException {
+		this(dir, run, DEFAULT_SEGMENT_RECORDS);
+	}
+
+	public RunJournal(File dir, String run, int segmentRecords) throws IOException {
+		this.dir = dir;
+		this.run = run;
+		this.segmentRecords = segmentRecords;
+		startMillis = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + dir);
+		}
+		mapped = new MappedByteBuffer[] { mapSegment(0) };
+		roller = new Thread("journal-roller-" + run) {
+			public void run() {
+				roll();
+			}
+		};
+		roller.setDaemon(true);
+		roller.start();
+	}
+
+	public static File segmentFile(File dir, String run, int segment) {
+		return new File(dir, run + "-" + String.format("%04d", segment) + ".journal");
+	}
+
+	/***************************************************************************************
+	 ************************************** RECORDING **************************************
+	 ***************************************************************************************/
+	public void runStart(int minutes) {
+		append(RUN_START, 0, 0, 0, minutes, 0, 0);
+	}
+
+	public void runEnd(boolean ok) {
+		append(RUN_END, 0, 0, 0, ok ? 1 : 0, 0, 0);
+	}
+
+	public void command(int deviceId, int opcode, int sequence, int value, boolean ok, long latencyNanos) {
+		append(ok ? COMMAND : COMMAND_FAILED, deviceId, opcode, sequence, value, latencyNanos, 0);
+	}
+
+	public void ack(int deviceId, int sequence) {
+		append(ACK, deviceId, FrameCodec.OPCODE_ACK, sequence, 0, 0, 0);
+	}
+
+	public void sample(DHT11Sample sample) {
+		append(SAMPLE, 0, 0, 0, 0, sample.getTemperature(), sample.getHumidity());
+	}
+
+	public void interlock(InterlockEvent event) {
+		append(INTERLOCK, 0, 0, 0, event.isOk() ? 1 : 0, 0, event.getHumidity());
+	}
+
+	private void append(byte type, int deviceId, int opcode, int sequence, int value, double a, double b) {
+		if (closed) {
+			return;
+		}
+		long index = nextRecord.getAndIncrement();
+		int segment = (int) (index / segmentRecords);
+		int offset = HEADER_SIZE + (int) (index % segmentRecords) * RECORD_SIZE;
+		MappedByteBuffer[] segments = mapped;
+		if (segment >= segments.length || segments[segment] == null) {
+			// The roller has not mapped this segment yet
+			dropped.incrementAndGet();
+			LockSupport.unpark(roller);
+			return;
+		}
+		MappedByteBuffer buffer = segments[segment];
+		long micros = startMillis * 1000 + (System.nanoTime() - startNanos) / 1000;
+		buffer.putLong(offset, micros);
+		buffer.putDouble(offset + 8, a);
+		buffer.putDouble(offset + 16, b);
+		buffer.putInt(offset + 24, value);
+		int word = (deviceId & 0xFF) | (opcode & 0xFF) << 8 | (sequence & 0xFF) << 16 | (type & 0xFF) << 24;
+		INTS.setRelease(buffer, offset + TYPE_WORD, word);
+
+		// Half way through a segment, have the next one mapped
+		if (index % segmentRecords == segmentRecords / 2) {
+			LockSupport.unpark(roller);
+		}
+	}
+
+	/*
+	 * roll runs on the background thread. It keeps one segment mapped ahead
+	 * of the writers and forces finished segments out to the card.
+	 */
+	private void roll() {
+		while (!closed) {
+			int current = (int) (nextRecord.get() / segmentRecords);
+			MappedByteBuffer[] segments = mapped;
+			try {
+				if (segments.length <= current + 1) {
+					MappedByteBuffer[] grown = new MappedByteBuffer[current + 2];
+					System.arraycopy(segments, 0, grown, 0, segments.length);
+					for (int i = segments.length; i < grown.length; i++) {
+						grown[i] = mapSegment(i);
+					}
+					mapped = grown;
+				}
+				for (int i = 0; i < current; i++) {
+					if (segments[i] != null) {
+						retire(i);
+					}
+				}
+			} catch (IOException e) {
+				rollFailure = e;
+			}
+			LockSupport.parkNanos(1000000000L);
+		}
+	}
+
+	// Writes a finished segment out and lets its mapping go
+	private synchronized void retire(int segment) {
+		MappedByteBuffer[] segments = mapped.clone();
+		if (segments[segment] == null) {
+			return;
+		}
+		segments[segment].force();
+		segments[segment] = null;
+		mapped = segments;
+	}
+
+	private MappedByteBuffer mapSegment(int segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(dir, run, segment), "rw");
+		MappedByteBuffer buffer;
+		try {
+			long size = HEADER_SIZE + (long) segmentRecords * RECORD_SIZE;
+			file.setLength(size);
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// The mapping stays valid after the file is closed
+			file.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, RECORD_SIZE);
+		buffer.putInt(8, segment);
+		buffer.putInt(12, segmentRecords);
+		buffer.putLong(16, startMillis);
+		byte[] name = run.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < NAME_LENGTH; i++) {
+			buffer.put(NAME_OFFSET + i, i < name.length ? name[i] : 0);
+		}
+		return buffer;
+	}
+
+	/*
+	 * close stops recording and forces the mapped segments out. Appends after
+	 * close are ignored.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		LockSupport.unpark(roller);
+		for (MappedByteBuffer buffer : mapped) {
+			if (buffer != null) {
+				buffer.force();
+			}
+		}
+	}
+
+	public String getRun() {
+		return run;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	// Records appended so far, including dropped ones
+	public long getRecordCount() {
+		return nextRecord.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	// The last error mapping a new segment, or null
+	public IOException getRollFailure() {
+		return rollFailure;
+	}
+}
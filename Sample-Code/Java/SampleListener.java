@@ -0,0 +1,8 @@
+/*
+ * SampleListener receives every sample parsed from the sensor stream. It is
+ * called on the stream reader's thread and should return quickly.
+ */
+public interface SampleListener {
+
+	void sampleReceived(DHT11Sample sample);
+}
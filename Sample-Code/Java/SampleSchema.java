@@ -0,0 +1,57 @@
+import java.util.Arrays;
+
+/*
+ * SampleSchema names the values in a sensor's samples and their units, e.g.
+ *
+ *     temperature F, humidity %, pressure hPa
+ *
+ * Every SensorSample carries its schema, so listeners can look values up by
+ * name without knowing which sensor produced them.
+ */
+public final class SampleSchema {
+	private final String[] fields;
+	private final String[] units;
+
+	// Constructor: alternating field names and units
+	public SampleSchema(String... fieldsAndUnits) {
+		if (fieldsAndUnits.length == 0 || fieldsAndUnits.length % 2 != 0) {
+			throw new IllegalArgumentException("Expected field and unit pairs: " + Arrays.toString(fieldsAndUnits));
+		}
+		fields = new String[fieldsAndUnits.length / 2];
+		units = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = fieldsAndUnits[2 * i];
+			units[i] = fieldsAndUnits[2 * i + 1];
+		}
+	}
+
+	public int size() {
+		return fields.length;
+	}
+
+	public String getField(int index) {
+		return fields[index];
+	}
+
+	public String getUnit(int index) {
+		return units[index];
+	}
+
+	// Index of the named field, or -1
+	public int indexOf(String field) {
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i].equals(field)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < fields.length; i++) {
+			text.append(i == 0 ? "" : ", ").append(fields[i]).append(' ').append(units[i]);
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * SamplingScheduler reads every Sensor of a rig at the sensor's own rate.
+ * All sensors share one PeriodicScheduler for their timing, but each read
+ * runs on a thread of its own from a shared pool, so a sensor that takes
+ * seconds to answer never delays the others. A sensor whose previous read is
+ * still in progress when its next one falls due skips that tick rather than
+ * piling up reads; skips, failures and reads over the sensor's latency budget
+ * are counted per sensor.
+ *
+ * Sensors beyond the DHT11 are configured in the rig's properties:
+ *
+ *     sensors=env,door
+ *     sensor.env.type=bme280          dht11, bme280, motion or fake
+ *     sensor.env.path=/sys/bus/iio/devices/iio:device0
+ *     sensor.env.period.millis=1000
+ *     sensor.env.budget.millis=200
+ *     sensor.door.type=motion
+ *     sensor.door.gpio=17
+ *
+ * A dht11 takes its stream command from sensor.<name>.cmd and always reads
+ * every two seconds. Loaded for one of several rigs, the sensors are named
+ * <rig>.<name>, like the rig's own DHT11, so each rig keeps its own metrics.
+ */
+public class SamplingScheduler {
+	private static final long DEFAULT_PERIOD_MILLIS = 1000;
+
+	private PeriodicScheduler scheduler;
+	private ExecutorService readers;
+	private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private List<SensorListener> listeners = new CopyOnWriteArrayList<SensorListener>();
+	private boolean started = false;
+
+	// One registered sensor and its statistics
+	private class Entry implements Runnable {
+		final Sensor sensor;
+		final AtomicBoolean reading = new AtomicBoolean();
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong overBudget = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		volatile SensorSample latest;
+		volatile String lastError;
+		ScheduledTask task;
+
+		Entry(Sensor sensor) {
+			this.sensor = sensor;
+		}
+
+		// Runs on the scheduler thread: hands the read to the pool
+		void tick() {
+			if (!reading.compareAndSet(false, true)) {
+				skipped.incrementAndGet();
+				return;
+			}
+			try {
+				readers.execute(this);
+			} catch (RuntimeException e) {
+				// Shutting down
+				reading.set(false);
+			}
+		}
+
+		// Runs on a reader thread
+		public void run() {
+			long start = System.nanoTime();
+			try {
+				SensorSample sample = sensor.read();
+				long elapsed = System.nanoTime() - start;
+				latency.record(elapsed);
+				if (elapsed > sensor.getBudgetMillis() * 1000000L) {
+					overBudget.incrementAndGet();
+				}
+				latest = sample;
+				for (SensorListener listener : listeners) {
+					listener.sampleReceived(sensor, sample);
+				}
+			} catch (IOException e) {
+				failures.incrementAndGet();
+				lastError = e.getMessage();
+			} catch (RuntimeException e) {
+				failures.incrementAndGet();
+				lastError = String.valueOf(e);
+			} finally {
+				reading.set(false);
+			}
+		}
+
+		public String toString() {
+			return sensor.getName() + " every " + sensor.getPeriodMillis() + " ms: reads=" + latency.getCount()
+					+ " p50=" + latency.percentile(0.5) / 1000000 + "ms max=" + latency.getMax() / 1000000
+					+ "ms overBudget=" + overBudget.get() + " skipped=" + skipped.get() + " failures="
+					+ failures.get() + (latest == null ? "" : " latest=" + latest);
+		}
+	}
+
+	// Constructor
+	public SamplingScheduler(final String threadName, PeriodicScheduler scheduler) {
+		this.scheduler = scheduler;
+		readers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName + "-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/*
+	 * register adds a sensor. Once the scheduler has started, the sensor is
+	 * read right away. Sensor names are unique.
+	 */
+	public synchronized void register(Sensor sensor) {
+		if (entries.containsKey(sensor.getName())) {
+			throw new IllegalArgumentException("Sensor " + sensor.getName() + " is already registered");
+		}
+		if (sensor.getPeriodMillis() <= 0) {
+			throw new IllegalArgumentException("Sensor " + sensor.getName() + " needs a period above 0");
+		}
+		Entry entry = new Entry(sensor);
+		entries.put(sensor.getName(), entry);
+		if (started) {
+			schedule(entry);
+		}
+	}
+
+	public synchronized void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+		for (Entry entry : entries.values()) {
+			schedule(entry);
+		}
+	}
+
+	private void schedule(final Entry entry) {
+		entry.task = scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				entry.tick();
+			}
+		}, 0, entry.sensor.getPeriodMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	// Stops reading and closes every sensor
+	public synchronized void stop() {
+		started = false;
+		for (Entry entry : entries.values()) {
+			if (entry.task != null) {
+				entry.task.cancel();
+			}
+			entry.sensor.close();
+		}
+		readers.shutdownNow();
+	}
+
+	// Listeners are called on the reading sensor's thread
+	public void addListener(SensorListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(SensorListener listener) {
+		listeners.remove(listener);
+	}
+
+	// Latest sample of the named sensor, or null if it has none yet
+	public SensorSample getLatest(String name) {
+		Entry entry = entries.get(name);
+		return entry == null ? null : entry.latest;
+	}
+
+	public List<Sensor> getSensors() {
+		List<Sensor> sensors = new ArrayList<Sensor>();
+		for (Entry entry : entries.values()) {
+			sensors.add(entry.sensor);
+		}
+		return sensors;
+	}
+
+	// One line per sensor: rate, read latency, counters and latest sample
+	public List<String> describe() {
+		List<String> lines = new ArrayList<String>();
+		for (Entry entry : entries.values()) {
+			lines.add(entry.toString());
+		}
+		return lines;
+	}
+
+	/*
+	 * load registers the sensors listed in the rig's properties. A sensor
+	 * with an unknown type or a missing setting is an
+	 * IllegalArgumentException.
+	 */
+	public void load(Properties config) {
+		load(config, null);
+	}
+
+	// Same as load above for the rig named scope: sensors are <scope>.<name>
+	public void load(Properties config, String scope) {
+		String list = config.getProperty("sensors", "").trim();
+		if (list.isEmpty()) {
+			return;
+		}
+		for (String name : list.split(",")) {
+			name = name.trim();
+			if (!name.isEmpty()) {
+				Sensor sensor = create(name, config, scope);
+				try {
+					register(sensor);
+				} catch (IllegalArgumentException e) {
+					sensor.close();
+					throw e;
+				}
+			}
+		}
+	}
+
+	static Sensor create(String key, Properties config, String scope) {
+		String prefix = "sensor." + key + ".";
+		String name = scope == null ? key : scope + "." + key;
+		String type = config.getProperty(prefix + "type", "").trim();
+		long period = Long.parseLong(
+				config.getProperty(prefix + "period.millis", Long.toString(DEFAULT_PERIOD_MILLIS)).trim());
+		long budget = Long.parseLong(config.getProperty(prefix + "budget.millis", Long.toString(period)).trim());
+		if (type.equals("dht11")) {
+			// A further DHT11 streaming from its own helper command
+			DHT11 dht11 = new DHT11(name, required(config, prefix + "cmd"));
+			dht11.startStream();
+			return dht11;
+		} else if (type.equals("bme280")) {
+			return new BME280(name, config.getProperty(prefix + "path", BME280.DEFAULT_PATH).trim(), period, budget);
+		} else if (type.equals("motion")) {
+			return new MotionSensor(name, Integer.parseInt(required(config, prefix + "gpio")), period, budget);
+		} else if (type.equals("fake")) {
+			return new FakeSensor(name, new SampleSchema("value", ""), period, budget);
+		}
+		throw new IllegalArgumentException("Unknown type for sensor " + key + ": " + type);
+	}
+
+	private static String required(Properties config, String key) {
+		String value = config.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			throw new IllegalArgumentException("Missing " + key);
+		}
+		return value.trim();
+	}
+
+	/*
+	 * Reads three fake sensors for a few seconds: a fast one, one that takes
+	 * longer than its period to answer and one that fails now and then. The
+	 * fast sensor keeps its rate however slow the others are.
+	 *
+	 *     java SamplingScheduler [seconds]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		PeriodicScheduler periodic = new PeriodicScheduler("sampling-demo");
+		SamplingScheduler sampling = new SamplingScheduler("sensor", periodic);
+
+		FakeSensor fast = new FakeSensor("fast", new SampleSchema("temperature", "F"), 50, 10);
+		fast.setBase(72);
+		FakeSensor slow = new FakeSensor("slow", new SampleSchema("pressure", "hPa"), 200, 300);
+		slow.setBase(1013);
+		slow.setDelay(700);
+		FakeSensor flaky = new FakeSensor("flaky", new SampleSchema("humidity", "%"), 100, 50);
+		flaky.setBase(50);
+		flaky.setFailureRate(0.2);
+		sampling.register(fast);
+		sampling.register(slow);
+		sampling.register(flaky);
+
+		sampling.start();
+		Thread.sleep(seconds * 1000L);
+		sampling.stop();
+		for (String line : sampling.describe()) {
+			System.out.println(line);
+		}
+		periodic.shutdown();
+	}
+}
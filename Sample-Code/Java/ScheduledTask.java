@@ -0,0 +1,29 @@
+import java.util.concurrent.ScheduledFuture;
+
+/*
+ * ScheduledTask is the handle returned by PeriodicScheduler. Cancelling it
+ * stops any further runs; a run already in progress is allowed to finish.
+ */
+public class ScheduledTask {
+	private volatile boolean cancelled = false;
+	private volatile ScheduledFuture<?> next;
+
+	void setNext(ScheduledFuture<?> next) {
+		this.next = next;
+		if (cancelled) {
+			next.cancel(false);
+		}
+	}
+
+	public void cancel() {
+		cancelled = true;
+		ScheduledFuture<?> current = next;
+		if (current != null) {
+			current.cancel(false);
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -0,0 +1,27 @@
+import java.io.IOException;
+
+/*
+ * Sensor is the plugin interface for everything the SamplingScheduler reads:
+ * the DHT11, a BME280, the IR motion sensor, or a FakeSensor in tests. A
+ * sensor describes its readings with a SampleSchema and says how often it
+ * wants to be read and how long a read may take. read() may block; each
+ * sensor is read on its own thread, so a slow sensor only delays itself.
+ */
+public interface Sensor {
+
+	String getName();
+
+	// The fields every sample from this sensor has, in order
+	SampleSchema getSchema();
+
+	// How often the sensor is read
+	long getPeriodMillis();
+
+	// Reads that take longer than this are counted as over budget
+	long getBudgetMillis();
+
+	// Takes one reading. Never called again before the last one returned.
+	SensorSample read() throws IOException;
+
+	void close();
+}
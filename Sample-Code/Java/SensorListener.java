@@ -0,0 +1,8 @@
+/*
+ * SensorListener receives every sample the SamplingScheduler reads. It is
+ * called on the reading sensor's thread and should return quickly.
+ */
+public interface SensorListener {
+
+	void sampleReceived(Sensor sensor, SensorSample sample);
+}
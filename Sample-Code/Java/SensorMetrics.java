@@ -0,0 +1,28 @@
+/*
+ * SensorMetrics adds sample staleness to the operation metrics of a sensor,
+ * so a sensor that has quietly stopped delivering shows up even when no read
+ * has failed outright.
+ */
+public class SensorMetrics extends OperationMetrics implements SensorMetricsMBean {
+	private volatile long lastSampleTime = 0;
+
+	// Constructor
+	public SensorMetrics(String name) {
+		super(name);
+	}
+
+	// Records a good sample taken at the given epoch milliseconds.
+	public void sample(long nanos, long timestamp) {
+		success(nanos);
+		lastSampleTime = timestamp;
+	}
+
+	public long getStalenessMillis() {
+		long last = lastSampleTime;
+		return last == 0 ? -1 : System.currentTimeMillis() - last;
+	}
+
+	public long getLastSampleTime() {
+		return lastSampleTime;
+	}
+}
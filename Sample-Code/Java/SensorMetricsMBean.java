@@ -0,0 +1,11 @@
+/*
+ * JMX view of a sensor: read latency and outcomes, plus how old the newest
+ * good sample is.
+ */
+public interface SensorMetricsMBean extends OperationMetricsMBean {
+
+	// Milliseconds since the last good sample, or -1 if there has been none
+	long getStalenessMillis();
+
+	long getLastSampleTime();
+}
@@ -0,0 +1,29 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * JFR event for one sensor reading, successful or not.
+ */
+@Name("cardio.SensorRead")
+@Label("Sensor Read")
+@Category({ "Cardio", "Sensors" })
+@Description("A reading taken from an environmental sensor")
+public class SensorReadEvent extends Event {
+	@Label("Sensor")
+	public String sensor;
+
+	@Label("Temperature")
+	public double temperature;
+
+	@Label("Humidity")
+	public double humidity;
+
+	@Label("Success")
+	public boolean success;
+
+	@Label("Failure Cause")
+	public String cause;
+}
@@ -0,0 +1,47 @@
+/*
+ * SensorSample is one reading from a Sensor: a timestamp (milliseconds since
+ * the epoch) and one value per field of the sensor's SampleSchema.
+ */
+public final class SensorSample {
+	private final long timestamp;
+	private final SampleSchema schema;
+	private final double[] values;
+
+	// Constructor
+	public SensorSample(long timestamp, SampleSchema schema, double... values) {
+		if (values.length != schema.size()) {
+			throw new IllegalArgumentException("Expected " + schema.size() + " values for " + schema);
+		}
+		this.timestamp = timestamp;
+		this.schema = schema;
+		this.values = values.clone();
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public SampleSchema getSchema() {
+		return schema;
+	}
+
+	public double get(int index) {
+		return values[index];
+	}
+
+	public double get(String field) {
+		int index = schema.indexOf(field);
+		if (index < 0) {
+			throw new IllegalArgumentException("No field " + field + " in " + schema);
+		}
+		return values[index];
+	}
+
+	public String toString() {
+		StringBuilder text = new StringBuilder().append(timestamp);
+		for (int i = 0; i < values.length; i++) {
+			text.append(' ').append(schema.getField(i)).append('=').append(values[i]).append(schema.getUnit(i));
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * SensorSnapshot is the DHT11's latest state as one immutable object:
+ * temperature and humidity from the same reading, the time of that reading
+ * (milliseconds since the epoch), a sequence number that goes up by one with
+ * every new snapshot, and the quality of the last read attempt. The sensor
+ * publishes each snapshot through a single volatile reference, so any number
+ * of threads can read a consistent pair without locking and can tell how old
+ * it is.
+ */
+public final class SensorSnapshot {
+
+	public enum Quality {
+		// No reading yet; the values are 0
+		NONE,
+		// The values come from the last read attempt
+		OK,
+		// The last read attempt failed; the values are from an earlier one
+		FAILED
+	}
+
+	// Before the first reading
+	public static final SensorSnapshot NONE = new SensorSnapshot(0, 0, 0, 0, Quality.NONE);
+
+	private final double temperature;
+	private final double humidity;
+	private final long timestamp;
+	private final long sequence;
+	private final Quality quality;
+
+	// Constructor
+	public SensorSnapshot(double temperature, double humidity, long timestamp, long sequence, Quality quality) {
+		this.temperature = temperature;
+		this.humidity = humidity;
+		this.timestamp = timestamp;
+		this.sequence = sequence;
+		this.quality = quality;
+	}
+
+	// The snapshot that follows this one for a new reading
+	SensorSnapshot next(DHT11Sample sample) {
+		return new SensorSnapshot(sample.getTemperature(), sample.getHumidity(), sample.getTimestamp(),
+				sequence + 1, Quality.OK);
+	}
+
+	// The snapshot that follows this one for a failed read: same values
+	SensorSnapshot failed() {
+		return new SensorSnapshot(temperature, humidity, timestamp, sequence + 1,
+				quality == Quality.NONE ? Quality.NONE : Quality.FAILED);
+	}
+
+	public double getTemperature() {
+		return temperature;
+	}
+
+	public double getHumidity() {
+		return humidity;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public Quality getQuality() {
+		return quality;
+	}
+
+	// Milliseconds since the reading, or Long.MAX_VALUE if there is none
+	public long getAgeMillis() {
+		return getAgeMillis(System.currentTimeMillis());
+	}
+
+	// Age at the given time, for callers on another clock
+	public long getAgeMillis(long nowMillis) {
+		return quality == Quality.NONE ? Long.MAX_VALUE : nowMillis - timestamp;
+	}
+
+	/*
+	 * isFresh is true when the snapshot holds a reading taken at most
+	 * maxAgeMillis ago. A failed read after it does not make it stale by
+	 * itself.
+	 */
+	public boolean isFresh(long maxAgeMillis) {
+		return isFresh(maxAgeMillis, System.currentTimeMillis());
+	}
+
+	public boolean isFresh(long maxAgeMillis, long nowMillis) {
+		return getAgeMillis(nowMillis) <= maxAgeMillis;
+	}
+
+	public String toString() {
+		return "#" + sequence + " " + quality + " " + temperature + "F " + humidity + "% at " + timestamp;
+	}
+}
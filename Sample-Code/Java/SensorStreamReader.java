@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * SensorStreamReader keeps one sensor helper process running (e.g.
+ * DHT11_stream.py) and parses its output as it arrives. Each line is
+ *
+ *     <epoch milliseconds> <temperature> <humidity>
+ *
+ * or "<epoch milliseconds> error" for a failed read. Lines are parsed straight
+ * from the byte stream, without building strings, and handed to the
+ * SampleListener. If the helper exits it is restarted after a short pause;
+ * a helper that exits without printing anything (typically sudo running a
+ * script or library that is not there) counts as MISSING_SCRIPT. Its stderr
+ * is discarded so a chatty helper cannot fill the pipe and stall.
+ */
+public class SensorStreamReader {
+	private static final long RESTART_DELAY = 1000;
+	private static final int MAX_LINE = 128;
+
+	private String name;
+	private String[] cmd;
+	private SampleListener listener;
+	private SensorMetrics metrics;
+	private volatile boolean running = false;
+	private volatile Process process;
+	private Thread reader;
+	private volatile long samples = 0, errors = 0, restarts = 0;
+
+	// Constructor
+	public SensorStreamReader(String name, String cmd, SampleListener listener) {
+		this.name = name;
+		this.cmd = cmd.split(" ");
+		this.listener = listener;
+		metrics = Metrics.sensor(name);
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		reader = new Thread("sensor-stream-" + name) {
+			public void run() {
+				while (running) {
+					try {
+						process = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+						if (pump(process.getInputStream()) == 0 && running) {
+							metrics.failure(0, FailureCause.MISSING_SCRIPT, "helper exited without output");
+						}
+					} catch (IOException e) {
+						// Helper missing or died, start it again below
+						metrics.failure(0, FailureCause.MISSING_SCRIPT, e.getMessage());
+					}
+					if (running) {
+						restarts++;
+						try {
+							Thread.sleep(RESTART_DELAY);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		Process current = process;
+		if (current != null) {
+			current.destroy();
+		}
+		if (reader != null) {
+			reader.interrupt();
+		}
+	}
+
+	/*
+	 * pump reads the helper's output until it ends, splitting it into lines
+	 * and parsing each one as soon as its newline arrives. Returns the number
+	 * of lines read.
+	 */
+	long pump(InputStream in) throws IOException {
+		byte[] chunk = new byte[512];
+		byte[] line = new byte[MAX_LINE];
+		int length = 0;
+		long lines = 0;
+		int count;
+		while ((count = in.read(chunk)) >= 0) {
+			for (int i = 0; i < count; i++) {
+				byte b = chunk[i];
+				if (b == '\n') {
+					handleLine(line, length);
+					lines++;
+					length = 0;
+				} else if (length < MAX_LINE) {
+					line[length++] = b;
+				}
+			}
+		}
+		in.close();
+		return lines;
+	}
+
+	private void handleLine(byte[] line, int length) {
+		long start = System.nanoTime();
+		DHT11Sample sample = parseLine(line, length);
+		SensorReadEvent event = new SensorReadEvent();
+		event.sensor = name;
+		if (sample == null) {
+			errors++;
+			// The helper reports failed reads; anything else is garbled output
+			FailureCause cause = isErrorLine(line, length) ? FailureCause.NO_DEVICE : FailureCause.PARSE_ERROR;
+			metrics.failure(System.nanoTime() - start, cause, new String(line, 0, length));
+			event.cause = cause.name();
+			event.commit();
+			return;
+		}
+		samples++;
+		// Latency is how old the sample is by the time it has been parsed
+		long age = System.currentTimeMillis() - sample.getTimestamp();
+		metrics.sample(Math.max(0, age) * 1000000L, sample.getTimestamp());
+		event.temperature = sample.getTemperature();
+		event.humidity = sample.getHumidity();
+		event.success = true;
+		event.commit();
+		listener.sampleReceived(sample);
+	}
+
+	private static boolean isErrorLine(byte[] line, int length) {
+		return length >= 5 && line[length - 5] == 'e' && line[length - 4] == 'r' && line[length - 3] == 'r'
+				&& line[length - 2] == 'o' && line[length - 1] == 'r';
+	}
+
+	/*
+	 * parseLine turns "<millis> <temperature> <humidity>" into a sample, or
+	 * returns null for error lines and anything malformed.
+	 */
+	public static DHT11Sample parseLine(byte[] line, int length) {
+		int[] pos = { 0 };
+		long timestamp = (long) parseNumber(line, length, pos);
+		double temperature = parseNumber(line, length, pos);
+		double humidity = parseNumber(line, length, pos);
+		if (Double.isNaN(temperature) || Double.isNaN(humidity) || timestamp <= 0) {
+			return null;
+		}
+		return new DHT11Sample(timestamp, temperature, humidity);
+	}
+
+	// Parses the next space separated decimal number, or returns NaN.
+	private static double parseNumber(byte[] line, int length, int[] pos) {
+		int i = pos[0];
+		while (i < length && (line[i] == ' ' || line[i] == '\t' || line[i] == '\r')) {
+			i++;
+		}
+		boolean negative = false;
+		if (i < length && line[i] == '-') {
+			negative = true;
+			i++;
+		}
+		long whole = 0;
+		long fraction = 0;
+		long scale = 1;
+		int digits = 0;
+		while (i < length && line[i] >= '0' && line[i] <= '9') {
+			whole = whole * 10 + (line[i++] - '0');
+			digits++;
+		}
+		if (i < length && line[i] == '.') {
+			i++;
+			while (i < length && line[i] >= '0' && line[i] <= '9') {
+				if (scale < 1000000000L) {
+					fraction = fraction * 10 + (line[i] - '0');
+					scale *= 10;
+				}
+				i++;
+				digits++;
+			}
+		}
+		pos[0] = i;
+		if (digits == 0 || (i < length && line[i] != ' ' && line[i] != '\t' && line[i] != '\r')) {
+			return Double.NaN;
+		}
+		double value = whole + (double) fraction / scale;
+		return negative ? -value : value;
+	}
+
+	public long getSampleCount() {
+		return samples;
+	}
+
+	public long getErrorCount() {
+		return errors;
+	}
+
+	public long getRestartCount() {
+		return restarts;
+	}
+}
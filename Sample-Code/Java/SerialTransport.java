@@ -0,0 +1,178 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * SerialTransport talks to an HC-06 through the RFCOMM serial device that
+ * BlueZ creates for it. The module is bound once at boot, e.g.
+ *
+ *     sudo rfcomm bind 0 <HC-06 address> 1
+ *
+ * after which /dev/rfcomm0 behaves like a serial port. The device file is
+ * opened on first use and kept open; if a write fails the link is closed and
+ * reopened on the next command.
+ *
+ * A tty starts out cooked, which the binary frames do not survive: reads
+ * wait for a newline, a 0x0A byte is written as CR LF, whatever the sketch
+ * sends is echoed back to it, and 0x11 and 0x13 are taken as XON/XOFF. Every
+ * open therefore first puts the line into raw mode with stty. Check a link
+ * with a frame made of those bytes:
+ *
+ *     java SerialTransport /dev/rfcomm0 [device id]
+ */
+public class SerialTransport implements DeviceTransport {
+	private static final long CHECK_MILLIS = 2000;
+
+	private String devicePath;
+	private RandomAccessFile port;
+	private FileChannel channel;
+
+	// Constructor
+	public SerialTransport(String devicePath) {
+		this.devicePath = devicePath;
+	}
+
+	public synchronized void open() throws IOException {
+		if (channel != null && channel.isOpen()) {
+			return;
+		}
+		// Opening "rw" would create a plain file if the module is not bound
+		if (!new File(devicePath).exists()) {
+			throw new FileNotFoundException(devicePath + " is not bound");
+		}
+		makeRaw(devicePath);
+		port = new RandomAccessFile(devicePath, "rw");
+		channel = port.getChannel();
+	}
+
+	public synchronized boolean isOpen() {
+		return channel != null && channel.isOpen();
+	}
+
+	public synchronized void write(ByteBuffer src) throws IOException {
+		open();
+		try {
+			while (src.hasRemaining()) {
+				channel.write(src);
+			}
+		} catch (IOException e) {
+			// Drop the broken link so the next command reconnects
+			close();
+			throw e;
+		}
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		FileChannel current;
+		synchronized (this) {
+			current = channel;
+		}
+		if (current == null || !current.isOpen()) {
+			return -1;
+		}
+		return current.read(dst);
+	}
+
+	public synchronized void close() throws IOException {
+		if (port != null) {
+			try {
+				port.close();
+			} finally {
+				port = null;
+				channel = null;
+			}
+		}
+	}
+
+	public String getDevicePath() {
+		return devicePath;
+	}
+
+	/*
+	 * makeRaw turns off line editing, output processing, echo and XON/XOFF
+	 * on the tty, so every byte goes through unchanged.
+	 */
+	static void makeRaw(String devicePath) throws IOException {
+		Process stty = new ProcessBuilder("stty", "-F", devicePath, "raw", "-echo", "-ixon")
+				.redirectErrorStream(true).start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream in = stty.getInputStream();
+		byte[] buffer = new byte[256];
+		int count;
+		while ((count = in.read(buffer)) > 0) {
+			output.write(buffer, 0, count);
+		}
+		try {
+			if (stty.waitFor() != 0) {
+				throw new IOException("stty failed on " + devicePath + ": " + output.toString().trim());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted setting up " + devicePath);
+		}
+	}
+
+	/*
+	 * Sends a frame whose opcode, sequence, value and CRC bytes are all ones
+	 * a cooked tty changes or swallows (0x0A, 0x11, 0x13) and waits for the
+	 * sketch's ACK, which carries the same awkward sequence. The opcode is
+	 * not a command, so the sketch only acknowledges it.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: java SerialTransport <device> [device id]");
+			System.exit(2);
+		}
+		int deviceId = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		final int opcode = 0x13, sequence = 0x11;
+		ByteBuffer frame = ByteBuffer.allocate(FrameCodec.FRAME_LENGTH);
+		for (int low = 0; low < 256; low++) {
+			frame.clear();
+			FrameCodec.encode(frame, opcode, deviceId, sequence, 0x0A00 | low);
+			int crc = frame.get(FrameCodec.FRAME_LENGTH - 1) & 0xFF;
+			if (crc == 0x0A || crc == 0x11 || crc == 0x13) {
+				break;
+			}
+		}
+		frame.flip();
+
+		final SerialTransport transport = new SerialTransport(args[0]);
+		transport.open();
+		final CountDownLatch acked = new CountDownLatch(1);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				ByteBuffer in = ByteBuffer.allocate(64);
+				CommandFrame received = new CommandFrame();
+				try {
+					while (transport.read(in) >= 0) {
+						in.flip();
+						while (FrameCodec.decode(in, received)) {
+							if (received.isAck() && received.sequence == sequence) {
+								acked.countDown();
+							}
+						}
+						in.compact();
+					}
+				} catch (IOException e) {
+					// The link was closed
+				}
+			}
+		}, "serial-check");
+		reader.setDaemon(true);
+		reader.start();
+
+		transport.write(frame);
+		boolean ok = acked.await(CHECK_MILLIS, TimeUnit.MILLISECONDS);
+		transport.close();
+		System.out.println(ok ? "ACK received through " + args[0]
+				: "No ACK within " + CHECK_MILLIS + " ms through " + args[0]);
+		System.exit(ok ? 0 : 1);
+	}
+}
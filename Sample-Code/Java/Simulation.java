@@ -0,0 +1,410 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JButton;
+
+/*
+ * Simulation replays whole acquisitions in virtual time. Each run builds a
+ * rig on a VirtualScheduler with loopback links, feeds it a DHT11 humidity
+ * profile drawn from the run's seed, starts a 20 minute acquisition and
+ * advances the clock through it second by second, so a run takes
+ * milliseconds and the same seed always gives the same run. A run is
+ * either a timed run, RECIPE, or RECIPE with a hold that cannot be met
+ * (STALLED_HOLD); recipes run on the rig's scheduler like everything else.
+ *
+ * A profile drifts inside the interlock band and may add either a short
+ * glitch, which the interlock must ride out, or a sustained excursion,
+ * which must trip it: a timed run ends, a recipe is paused until the
+ * interlock clears. Every run is checked for:
+ *
+ *     - a timed run with no trip finishing exactly at its 20 minute
+ *       deadline, and one with a trip within TRIP_BOUND_MILLIS of the
+ *       excursion
+ *     - a recipe finishing, successfully, exactly the time it was paused
+ *       for after its deadline
+ *     - a stalled hold failing the recipe exactly at its max, counted from
+ *       when the hold started after any pause
+ *     - the last command sent to the pump after a recipe, failed or not,
+ *       being a Stop
+ *     - Start Acquisition enabled at the end of a run exactly when the
+ *       interlock is clear
+ *     - the interlock clearing again once the humidity is back in range
+ *     - a countdown that only goes down
+ *     - a start refused before the warm-up and another during the run,
+ *       neither of which changes the controls
+ *     - the controls being disabled for the run and enabled again when it
+ *       ends
+ *
+ * The controls are the panel's own ControlState, bound to buttons that are
+ * never shown, so the rules checked are the ones CardioPanel uses.
+ *
+ * Runs go to a pool with a thread per core. The first few seeds are run a
+ * second time and must produce the same trace.
+ *
+ *     java Simulation [runs] [threads]
+ */
+public class Simulation {
+	public static final int MINUTES = 20;
+	public static final long TRIP_BOUND_MILLIS = 12000;
+	private static final long WARM_UP_MILLIS = 10000;
+	private static final int REPEATS = 8;
+	private static final int TIMED = 0, RECIPE_RUN = 1, STALLED_RUN = 2;
+
+	// A 20 minute recipe with no timed run, so a trip pauses it
+	static final String RECIPE = "0:00 hold humidity 45 55 max 1:00\n"
+			+ "0:00 speed 100\n"
+			+ "0:00 step 125\n"
+			+ "0:02 pump up\n"
+			+ "0:10 ramp speed 100 300 over 1:00 every 0:05\n"
+			+ "19:00 pump stop\n";
+	// A hold no profile meets, added to RECIPE; it must fail the run at its max
+	static final String STALLED_HOLD = "5:01 hold humidity 10 20 max 0:30\n";
+	private static final String END = "20:00 end\n";
+	private static final long STALLED_AT_MILLIS = 301000;
+	private static final long STALLED_MAX_MILLIS = 30000;
+
+	// What happened in one run
+	static class Result {
+		final long seed;
+		final List<String> failures = new ArrayList<String>();
+		final StringBuilder trace = new StringBuilder();
+		int kind;
+		boolean tripped, glitched;
+		long taskRuns;
+
+		Result(long seed) {
+			this.seed = seed;
+		}
+
+		void event(long millis, String what) {
+			trace.append(millis).append(' ').append(what).append('\n');
+		}
+
+		void check(boolean ok, String what) {
+			if (!ok) {
+				failures.add(what);
+			}
+		}
+
+		boolean passed() {
+			return failures.isEmpty();
+		}
+	}
+
+	// A humidity walk: drift, plus an optional glitch or excursion
+	static class Profile {
+		final double base, drift;
+		final long excursionStart, excursionLength;
+		final double excursionHumidity;
+
+		Profile(Random random) {
+			base = 48 + random.nextDouble() * 4;
+			drift = random.nextDouble() * 1.5;
+			int kind = random.nextInt(3);
+			long start = WARM_UP_MILLIS + 60000 + random.nextInt(MINUTES - 3) * 60000L
+					+ random.nextInt(30) * DHT11.PERIOD_MILLIS;
+			if (kind == 0) {
+				excursionStart = -1;
+				excursionLength = 0;
+			} else if (kind == 1) {
+				// One bad sample: shorter than the median filter can see
+				excursionStart = start;
+				excursionLength = DHT11.PERIOD_MILLIS;
+			} else {
+				excursionStart = start;
+				excursionLength = 20000 + random.nextInt(60) * 1000L;
+			}
+			excursionHumidity = random.nextBoolean() ? 60 + random.nextInt(20) : 30 + random.nextInt(10);
+		}
+
+		boolean isExcursion() {
+			return excursionLength > DHT11.PERIOD_MILLIS;
+		}
+
+		double humidity(long millis) {
+			if (excursionStart >= 0 && millis >= excursionStart && millis < excursionStart + excursionLength) {
+				return excursionHumidity;
+			}
+			return Math.round((base + drift * Math.sin(millis / 300000.0)) * 10) / 10.0;
+		}
+	}
+
+	/*
+	 * run simulates one acquisition. The rig is torn down before it returns;
+	 * its journal goes wherever cardio.journal.dir points.
+	 */
+	static Result run(long seed, String rig) {
+		final Result result = new Result(seed);
+		Random random = new Random(seed);
+		final Profile profile = new Profile(random);
+		result.kind = random.nextInt(3);
+		final VirtualScheduler scheduler = new VirtualScheduler();
+
+		final List<LoopbackTransport> links = new ArrayList<LoopbackTransport>();
+		LinkPool pool = new LinkPool(new TransportFactory() {
+			public DeviceTransport createTransport(String link) {
+				LoopbackTransport transport = new LoopbackTransport();
+				links.add(transport);
+				return transport;
+			}
+		});
+		pool.setWindow(0, CommandWindow.DEFAULT_TIMEOUT_MILLIS, CommandWindow.DEFAULT_RETRIES);
+		DeviceRegistry devices = new DeviceRegistry(pool);
+		devices.register(DeviceRegistry.PUMP, 1, "udst", "sim-pump");
+		devices.register(DeviceRegistry.SLIDER, 2, "srLRt", "sim-slider");
+		final DHT11 dht11 = new DHT11("sim-dht11", "true");
+		final CardioController controller = new CardioController(rig, devices, dht11, scheduler);
+		final long start = scheduler.nanoTime();
+
+		// The sensor, streaming a sample every two seconds of virtual time
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				long millis = (scheduler.nanoTime() - start) / 1000000;
+				dht11.sampleReceived(new DHT11Sample(scheduler.currentTimeMillis(), 72, profile.humidity(millis)));
+			}
+		}, 0, DHT11.PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+		final long[] finishedAt = { -1 };
+		final boolean[] acquireEnabled = { false };
+		final boolean[] clearAtFinish = { false };
+		// Each trip's time and the time it cleared, in milliseconds
+		final List<long[]> pauses = new ArrayList<long[]>();
+		UiUpdateBus ui = new UiUpdateBus();
+		final ControlState controls = new ControlState(controller, ui.enabled(new JButton()),
+				ui.enabled(new JButton()));
+		controls.start();
+		controller.getInterlock().subscribe(new HumidityInterlock.Subscriber<InterlockEvent>() {
+			protected void onItem(InterlockEvent event) {
+				long millis = (scheduler.nanoTime() - start) / 1000000;
+				result.event(millis, event.isOk() ? "clear" : "trip");
+				if (!event.isOk()) {
+					pauses.add(new long[] { millis, Long.MAX_VALUE });
+				} else if (!pauses.isEmpty()) {
+					pauses.get(pauses.size() - 1)[1] = millis;
+				}
+			}
+		});
+		controller.addAcquisitionListener(new AcquisitionListener() {
+			private int last = Integer.MAX_VALUE;
+
+			public void acquisitionStarted(int minutes) {
+				result.event((scheduler.nanoTime() - start) / 1000000, "start " + minutes);
+			}
+
+			public void acquisitionTick(int secondsLeft) {
+				// A paused recipe's countdown stands still
+				boolean down = result.kind == TIMED ? secondsLeft < last : secondsLeft <= last;
+				result.check(down, "countdown went from " + last + " to " + secondsLeft);
+				last = secondsLeft;
+			}
+
+			public void acquisitionFinished() {
+				finishedAt[0] = (scheduler.nanoTime() - start) / 1000000;
+				result.event(finishedAt[0], "finish");
+				// ControlState was added first, so it has already caught up
+				acquireEnabled[0] = controls.isAcquireEnabled();
+				clearAtFinish[0] = controller.isHumidityInRange();
+			}
+		});
+
+		try {
+			Recipe recipe = null;
+			if (result.kind != TIMED) {
+				String source = RECIPE + (result.kind == STALLED_RUN ? STALLED_HOLD : "") + END;
+				recipe = Recipe.compile(result.kind == STALLED_RUN ? "stalled" : "recipe", new StringReader(source),
+						controller.getPump(), controller.getSlider());
+			}
+
+			// The interlock has no samples yet, so this start is refused
+			result.check(!controller.startAcquisition(MINUTES).getNow(true), "start accepted before warm-up");
+			result.check(!controller.isAcquiring() && controls.isControlsEnabled(),
+					"refused start disabled the controls");
+			result.check(!controls.isAcquireEnabled(), "Start Acquisition enabled before warm-up");
+
+			scheduler.advance(WARM_UP_MILLIS, TimeUnit.MILLISECONDS);
+			result.check(controller.isHumidityInRange(), "humidity out of range after warm-up");
+			result.check(controls.isAcquireEnabled(), "Start Acquisition not enabled after warm-up");
+			CompletableFuture<Boolean> run = recipe == null ? controller.startAcquisition(MINUTES)
+					: controller.startRecipe(recipe);
+			result.check(controller.isAcquiring(), "acquisition refused");
+			result.check(!controls.isControlsEnabled() && !controls.isAcquireEnabled(),
+					"controls enabled during the run");
+
+			scheduler.advance(1, TimeUnit.SECONDS);
+			if (controller.isAcquiring()) {
+				result.check(!controller.startAcquisition(MINUTES).getNow(true), "second start accepted");
+				result.check(controller.isAcquiring() && !controls.isControlsEnabled(),
+						"second start changed the run or the controls");
+			}
+			long runEnd = WARM_UP_MILLIS + TimeUnit.MINUTES.toMillis(MINUTES);
+			// A recipe moves back by the time it is paused for
+			long until = runEnd + (recipe == null ? 60000 : 180000);
+			while ((scheduler.nanoTime() - start) / 1000000 < until) {
+				result.taskRuns += scheduler.advance(1, TimeUnit.SECONDS);
+			}
+
+			result.check(!controller.isAcquiring(), "run still going");
+			result.check(controls.isControlsEnabled(), "controls not enabled again");
+			result.check(acquireEnabled[0] == clearAtFinish[0],
+					"Start Acquisition " + (acquireEnabled[0] ? "enabled" : "disabled") + " at the end of the run");
+			boolean inRun = profile.excursionStart >= 0 && profile.excursionStart < runEnd;
+			result.tripped = profile.isExcursion() && inRun;
+			result.glitched = !profile.isExcursion() && inRun;
+			if (result.kind == STALLED_RUN) {
+				long failAt = afterPauses(WARM_UP_MILLIS + STALLED_AT_MILLIS, pauses) + STALLED_MAX_MILLIS;
+				result.check(finishedAt[0] == failAt, "stalled hold ended the run at " + finishedAt[0] + " not "
+						+ failAt);
+				result.check(Boolean.FALSE.equals(run.getNow(null)), "stalled recipe did not fail");
+				result.check(lastCommand(links, 1) == 's', "stalled recipe left the pump running");
+			} else if (result.kind == RECIPE_RUN) {
+				long end = afterPauses(runEnd, pauses);
+				result.check(finishedAt[0] == end, "recipe ended at " + finishedAt[0] + " not " + end);
+				result.check(Boolean.TRUE.equals(run.getNow(null)), "recipe did not succeed");
+				result.check(lastCommand(links, 1) == 's', "recipe left the pump running");
+			} else if (result.tripped) {
+				result.check(finishedAt[0] >= profile.excursionStart
+						&& finishedAt[0] <= profile.excursionStart + TRIP_BOUND_MILLIS,
+						"trip at " + profile.excursionStart + " ended the run at " + finishedAt[0]);
+			} else {
+				result.check(finishedAt[0] == runEnd, "run ended at " + finishedAt[0] + " not " + runEnd);
+			}
+			result.check(controller.getInterlock().isOk(), "interlock did not clear");
+		} catch (IOException e) {
+			result.check(false, String.valueOf(e));
+		} catch (RuntimeException e) {
+			result.check(false, String.valueOf(e));
+		} finally {
+			controls.stop();
+			controller.shutdown();
+		}
+		return result;
+	}
+
+	// The opcode of the last frame written to deviceId on any link, or -1
+	static int lastCommand(List<LoopbackTransport> links, int deviceId) {
+		int opcode = -1;
+		CommandFrame frame = new CommandFrame();
+		for (LoopbackTransport link : links) {
+			ByteBuffer written = ByteBuffer.wrap(link.received());
+			while (FrameCodec.decode(written, frame)) {
+				if (frame.deviceId == deviceId) {
+					opcode = frame.opcode;
+				}
+			}
+		}
+		return opcode;
+	}
+
+	// When a clock reaches due if every trip before it stops it until the trip clears
+	static long afterPauses(long due, List<long[]> pauses) {
+		for (long[] pause : pauses) {
+			if (pause[0] < due) {
+				due = pause[1] == Long.MAX_VALUE ? Long.MAX_VALUE : due + pause[1] - pause[0];
+			}
+		}
+		return due;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int runs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		File journals = File.createTempFile("cardio-sim", "");
+		journals.delete();
+		journals.mkdirs();
+		System.setProperty("cardio.journal.dir", journals.getPath());
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "simulation-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long wallStart = System.nanoTime();
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (int i = 0; i < runs; i++) {
+			futures.add(submit(pool, i, "sim-" + i));
+		}
+		List<Future<Result>> repeats = new ArrayList<Future<Result>>();
+		for (int i = 0; i < Math.min(REPEATS, runs); i++) {
+			repeats.add(submit(pool, i, "sim-" + i + "-again"));
+		}
+
+		int passed = 0, trips = 0, glitches = 0, recipes = 0, stalled = 0;
+		long taskRuns = 0;
+		List<Result> results = new ArrayList<Result>();
+		for (Future<Result> future : futures) {
+			Result result = future.get();
+			results.add(result);
+			taskRuns += result.taskRuns;
+			if (result.tripped) {
+				trips++;
+			}
+			if (result.glitched) {
+				glitches++;
+			}
+			if (result.kind != TIMED) {
+				recipes++;
+			}
+			if (result.kind == STALLED_RUN) {
+				stalled++;
+			}
+			if (result.passed()) {
+				passed++;
+			} else {
+				System.out.println("seed " + result.seed + ": " + result.failures);
+			}
+		}
+		boolean repeatable = true;
+		for (int i = 0; i < repeats.size(); i++) {
+			if (!repeats.get(i).get().trace.toString().equals(results.get(i).trace.toString())) {
+				System.out.println("seed " + i + ": trace differs on a second run");
+				repeatable = false;
+			}
+		}
+		double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+		pool.shutdown();
+		delete(journals);
+
+		double simulatedSeconds = runs * (WARM_UP_MILLIS / 1000.0 + (MINUTES + 1) * 60);
+		System.out.println(String.format("%d runs on %d threads: %d passed, %d trips, %d glitches ridden out, "
+				+ "%d recipes (%d stalled holds)", runs, threads, passed, trips, glitches, recipes, stalled));
+		System.out.println(String.format("%d task runs, %.0f virtual hours in %.2f s wall (%.0fx real time)%s",
+				taskRuns, simulatedSeconds / 3600, wallSeconds, simulatedSeconds / wallSeconds,
+				repeatable ? ", repeat runs identical" : ""));
+		System.exit(passed == runs && repeatable ? 0 : 1);
+	}
+
+	private static Future<Result> submit(ExecutorService pool, final long seed, final String rig) {
+		return pool.submit(new Callable<Result>() {
+			public Result call() {
+				return run(seed, rig);
+			}
+		});
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,108 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * StartupBenchmark measures the GUI's time to first frame: the milliseconds
+ * from launching a fresh JVM until the main window has been opened. Each run
+ * starts GUIrunner --startup-probe in a child JVM with the current class path
+ * and reads back the time it reports.
+ *
+ *     java StartupBenchmark [-n runs] [-a cardio.jsa] [-o startup.json] [-c baseline.json]
+ *
+ * With -a the runs are repeated with the given AppCDS archive (see launch.sh)
+ * so the two can be compared. One warm-up launch of each kind is discarded to
+ * take the file system cache out of the figures. Results are written in the
+ * same JSON shape as Benchmarks, in single-shot mode, and -c reports any
+ * figure more than 10% slower than the baseline.
+ *
+ * A display is needed; on a headless machine the probe cannot open a window.
+ */
+public class StartupBenchmark {
+	private static final int WARMUP_RUNS = 1;
+
+	public static void main(String[] args) throws Exception {
+		String archive = null, output = null, baseline = null;
+		int runs = 10;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-n")) {
+				runs = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-a")) {
+				archive = args[++i];
+			} else if (args[i].equals("-o")) {
+				output = args[++i];
+			} else if (args[i].equals("-c")) {
+				baseline = args[++i];
+			}
+		}
+
+		List<Benchmarks.Result> results = new ArrayList<Benchmarks.Result>();
+		results.add(measure("startup.firstFrame", runs, "-Xshare:auto"));
+		if (archive != null) {
+			if (!new File(archive).isFile()) {
+				System.err.println("No archive at " + archive + "; run launch.sh once to create it");
+				System.exit(1);
+			}
+			results.add(measure("startup.firstFrame.appcds", runs, "-XX:SharedArchiveFile=" + archive));
+			double cut = 1 - results.get(1).score / results.get(0).score;
+			System.out.println(String.format("AppCDS cuts time to first frame by %.1f%%", cut * 100));
+		}
+		if (output != null) {
+			Benchmarks.writeJson(results, "ss", WARMUP_RUNS, runs, output);
+		}
+		if (baseline != null && Benchmarks.compare(results, Benchmarks.readScores(baseline)) > 0) {
+			System.exit(2);
+		}
+	}
+
+	static Benchmarks.Result measure(String name, int runs, String jvmFlag) throws IOException, InterruptedException {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			launch(jvmFlag);
+		}
+		double[] raw = new double[runs];
+		for (int i = 0; i < runs; i++) {
+			raw[i] = launch(jvmFlag);
+		}
+		Benchmarks.Result r = new Benchmarks.Result();
+		r.name = name;
+		r.unit = "ms";
+		r.raw = raw;
+
+		// Launch times have a long tail, so report the median and the spread
+		double[] sorted = raw.clone();
+		Arrays.sort(sorted);
+		r.score = sorted[sorted.length / 2];
+		r.error = (sorted[sorted.length - 1] - sorted[0]) / 2;
+		System.out.println(String.format("%-40s %8.0f ms  (min %.0f, max %.0f)", name, r.score, sorted[0],
+				sorted[sorted.length - 1]));
+		return r;
+	}
+
+	// Starts one GUI and returns its reported time to first frame in ms
+	private static long launch(String jvmFlag) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, jvmFlag,
+				"-Dcardio.launchMillis=" + System.currentTimeMillis(),
+				"-cp", System.getProperty("java.class.path"), "GUIrunner", "--startup-probe");
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		long firstFrame = -1;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("firstFrame ")) {
+				firstFrame = Long.parseLong(line.substring(11).trim());
+			}
+		}
+		in.close();
+		process.waitFor();
+		if (firstFrame < 0) {
+			throw new IOException("GUI exited with " + process.exitValue() + " without showing a frame");
+		}
+		return firstFrame;
+	}
+}
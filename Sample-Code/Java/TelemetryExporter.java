@@ -0,0 +1,596 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/*
+ * TelemetryExporter writes a rig's DHT11 samples and device commands to
+ * compressed files for analysis outside the application. Unlike the run
+ * journal it records all the time, not only during acquisitions.
+ *
+ * The sampling and command threads only offer each event to a bounded
+ * queue, which never blocks: when the queue is full the event is dropped and
+ * counted. A single writer thread drains the queue and does all the file
+ * I/O, so a slow SD card can never hold up sampling or dispatch.
+ *
+ * The default columnar format collects events into chunks of up to
+ * CHUNK_ROWS rows per table, or FLUSH_MILLIS worth, whichever comes first.
+ * Each column of a chunk is stored as a block of zig-zag varint deltas from
+ * the previous row, so timestamps a sample period apart and slowly changing
+ * readings take a byte or two each, and the chunk is then deflated. A file
+ * (<dir>/<rig>-<yyyyMMdd-HHmmss>.crx) is:
+ *
+ *     magic "CRX1" (int), rig (UTF), start, epoch milliseconds (long)
+ *     table count (byte), then per table: name (UTF), column count (byte),
+ *         then per column: name (UTF), scale (int)
+ *     chunks: table (byte), rows (int), raw length (int),
+ *         deflated length (int), deflated column blocks
+ *
+ * A stored value divided by its column's scale gives the real value;
+ * temperature and humidity are kept in hundredths. "java TelemetryExporter
+ * <file>" converts a file to CSV. Where a CSV is wanted directly,
+ * export.format=csv writes gzipped CSV instead (<rig>-<stamp>.csv.gz).
+ *
+ * Settings come from the rig's configuration; without export.dir nothing is
+ * exported:
+ *
+ *     export.dir=export
+ *     export.format=columnar    (or csv)
+ *     export.file.mb=16         start a new file past this size
+ */
+public class TelemetryExporter implements SampleListener {
+	public enum Format {
+		COLUMNAR, CSV
+	}
+
+	public static final int MAGIC = 0x31585243; // "CRX1"
+	public static final int QUEUE_SIZE = 4096;
+	public static final int CHUNK_ROWS = 4096;
+	public static final long FLUSH_MILLIS = 60000;
+	public static final long DEFAULT_FILE_BYTES = 16L * 1024 * 1024;
+	private static final long CLOSE_WAIT_MILLIS = 5000;
+	private static final String CSV_HEADER = "time,table,device,command,value,ok,latency_us,temperature,humidity";
+
+	static final int SAMPLES = 0;
+	static final int COMMANDS = 1;
+	static final String[] TABLES = { "samples", "commands" };
+	static final String[][] COLUMNS = { { "time", "temperature", "humidity" },
+			{ "time", "device", "command", "value", "ok", "latency_us" } };
+	static final int[][] SCALES = { { 1, 100, 100 }, { 1, 1, 1, 1, 1, 1 } };
+
+	// One sample or command on its way to the writer
+	private static final class Event {
+		final int table;
+		final long[] values;
+
+		Event(int table, long... values) {
+			this.table = table;
+			this.values = values;
+		}
+	}
+
+	private File dir;
+	private String rig;
+	private Format format;
+	private long maxFileBytes;
+	private BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(QUEUE_SIZE);
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong written = new AtomicLong();
+	private Thread writer;
+	private volatile boolean closed = false;
+	private volatile IOException failure;
+
+	// Writer thread state
+	private long[][][] columns = new long[TABLES.length][][];
+	private int[] rows = new int[TABLES.length];
+	private long lastFlush;
+	private File file;
+	private CountingStream out;
+	private DataOutputStream data;
+	private Writer csv;
+	private int part = 0;
+	private Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+	private ByteArrayOutputStream raw = new ByteArrayOutputStream();
+	private byte[] deflated = new byte[0];
+
+	// Constructor
+	public TelemetryExporter(File dir, String rig, Format format, long maxFileBytes) {
+		this.dir = dir;
+		this.rig = rig;
+		this.format = format;
+		this.maxFileBytes = maxFileBytes;
+		for (int t = 0; t < TABLES.length; t++) {
+			columns[t] = new long[COLUMNS[t].length][CHUNK_ROWS];
+		}
+		writer = new Thread("export-" + rig) {
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.setPriority(Thread.MIN_PRIORITY);
+		writer.start();
+	}
+
+	/*
+	 * fromConfig builds the exporter a rig's configuration asks for, or
+	 * returns null if export.dir is not set.
+	 */
+	public static TelemetryExporter fromConfig(Properties config, String rig) {
+		String dir = config.getProperty("export.dir", "").trim();
+		if (dir.isEmpty()) {
+			return null;
+		}
+		Format format = Format.valueOf(
+				config.getProperty("export.format", "columnar").trim().toUpperCase(Locale.ROOT));
+		double mb = Double.parseDouble(
+				config.getProperty("export.file.mb", Long.toString(DEFAULT_FILE_BYTES >> 20)).trim());
+		if (mb <= 0) {
+			throw new IllegalArgumentException("export.file.mb must be above 0: " + mb);
+		}
+		return new TelemetryExporter(new File(dir), rig, format, (long) (mb * 1024 * 1024));
+	}
+
+	/***************************************************************************************
+	 ************************************** RECORDING **************************************
+	 ***************************************************************************************/
+	public void sampleReceived(DHT11Sample sample) {
+		offer(new Event(SAMPLES, sample.getTimestamp(), Math.round(sample.getTemperature() * SCALES[SAMPLES][1]),
+				Math.round(sample.getHumidity() * SCALES[SAMPLES][2])));
+	}
+
+	public void command(int deviceId, int opcode, int value, boolean ok, long latencyNanos) {
+		command(System.currentTimeMillis(), deviceId, opcode, value, ok, latencyNanos);
+	}
+
+	public void command(long timeMillis, int deviceId, int opcode, int value, boolean ok, long latencyNanos) {
+		offer(new Event(COMMANDS, timeMillis, deviceId, opcode, value, ok ? 1 : 0, latencyNanos / 1000));
+	}
+
+	// Never blocks; a full queue drops the event
+	private void offer(Event event) {
+		if (closed || failure != null || !queue.offer(event)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/***************************************************************************************
+	 *************************************** WRITING ***************************************
+	 ***************************************************************************************/
+	private void drain() {
+		lastFlush = System.currentTimeMillis();
+		while (true) {
+			Event event;
+			try {
+				// Once closed, only what is already queued is written
+				event = closed ? queue.poll() : queue.poll(FLUSH_MILLIS / 4, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				event = null;
+			}
+			if (event == null && closed && queue.isEmpty()) {
+				break;
+			}
+			try {
+				if (event != null) {
+					add(event);
+				}
+				if (System.currentTimeMillis() - lastFlush >= FLUSH_MILLIS) {
+					flush();
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+		try {
+			flush();
+			closeFile();
+		} catch (IOException e) {
+			fail(e);
+		}
+		deflater.end();
+	}
+
+	private void add(Event event) throws IOException {
+		if (failure != null) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (format == Format.CSV) {
+			writeCsv(event);
+			return;
+		}
+		int t = event.table;
+		for (int c = 0; c < event.values.length; c++) {
+			columns[t][c][rows[t]] = event.values[c];
+		}
+		if (++rows[t] == CHUNK_ROWS) {
+			writeChunk(t);
+		}
+	}
+
+	// Writes whatever has been collected and pushes it out to the file
+	private void flush() throws IOException {
+		lastFlush = System.currentTimeMillis();
+		if (failure != null) {
+			return;
+		}
+		for (int t = 0; t < TABLES.length; t++) {
+			if (rows[t] > 0) {
+				writeChunk(t);
+			}
+		}
+		if (csv != null) {
+			csv.flush();
+		}
+		if (out != null) {
+			out.flush();
+		}
+		if (out != null && out.count >= maxFileBytes) {
+			closeFile();
+		}
+	}
+
+	private void writeChunk(int t) throws IOException {
+		openFile();
+		int count = rows[t];
+		raw.reset();
+		for (long[] column : columns[t]) {
+			long previous = 0;
+			for (int i = 0; i < count; i++) {
+				writeVarLong(raw, zigZag(column[i] - previous));
+				previous = column[i];
+			}
+		}
+		byte[] bytes = raw.toByteArray();
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		if (deflated.length < bytes.length + 64) {
+			deflated = new byte[bytes.length + 64];
+		}
+		int length = 0;
+		while (!deflater.finished()) {
+			length += deflater.deflate(deflated, length, deflated.length - length);
+			if (length == deflated.length) {
+				byte[] bigger = new byte[deflated.length * 2];
+				System.arraycopy(deflated, 0, bigger, 0, length);
+				deflated = bigger;
+			}
+		}
+		data.writeByte(t);
+		data.writeInt(count);
+		data.writeInt(bytes.length);
+		data.writeInt(length);
+		data.write(deflated, 0, length);
+		data.flush();
+		rows[t] = 0;
+		written.addAndGet(count);
+		if (out.count >= maxFileBytes) {
+			closeFile();
+		}
+	}
+
+	private void writeCsv(Event event) throws IOException {
+		openFile();
+		long[] v = event.values;
+		StringBuilder line = new StringBuilder().append(v[0]).append(',').append(TABLES[event.table]);
+		if (event.table == SAMPLES) {
+			line.append(",,,,,,").append(v[1] / 100.0).append(',').append(v[2] / 100.0);
+		} else {
+			line.append(',').append(v[1]).append(',').append((char) v[2]).append(',').append(v[3]).append(',')
+					.append(v[4] != 0).append(',').append(v[5]).append(",,");
+		}
+		csv.write(line.append('\n').toString());
+		written.incrementAndGet();
+		if (out.count >= maxFileBytes) {
+			closeFile();
+		}
+	}
+
+	private void openFile() throws IOException {
+		if (out != null) {
+			return;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create export directory " + dir);
+		}
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		String extension = format == Format.CSV ? ".csv.gz" : ".crx";
+		file = new File(dir, rig + "-" + stamp + extension);
+		while (file.exists()) {
+			file = new File(dir, rig + "-" + stamp + "-" + ++part + extension);
+		}
+		out = new CountingStream(new FileOutputStream(file));
+		if (format == Format.CSV) {
+			// Sync flushes keep everything up to the last flush readable
+			csv = new OutputStreamWriter(new GZIPOutputStream(out, 8192, true), StandardCharsets.UTF_8);
+			csv.write(CSV_HEADER + "\n");
+			return;
+		}
+		data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		data.writeInt(MAGIC);
+		data.writeUTF(rig);
+		data.writeLong(System.currentTimeMillis());
+		data.writeByte(TABLES.length);
+		for (int t = 0; t < TABLES.length; t++) {
+			data.writeUTF(TABLES[t]);
+			data.writeByte(COLUMNS[t].length);
+			for (int c = 0; c < COLUMNS[t].length; c++) {
+				data.writeUTF(COLUMNS[t][c]);
+				data.writeInt(SCALES[t][c]);
+			}
+		}
+	}
+
+	private void closeFile() throws IOException {
+		if (out == null) {
+			return;
+		}
+		try {
+			if (csv != null) {
+				csv.close();
+			} else {
+				data.close();
+			}
+		} finally {
+			out = null;
+			data = null;
+			csv = null;
+		}
+	}
+
+	private void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+			e.printStackTrace();
+		}
+		try {
+			closeFile();
+		} catch (IOException ignored) {
+			// Already failing
+		}
+	}
+
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static void writeVarLong(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Truncated column block");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	// Counts the bytes that reach the file, for rolling over
+	private static class CountingStream extends BufferedOutputStream {
+		long count;
+
+		CountingStream(OutputStream out) {
+			super(out);
+		}
+
+		public synchronized void write(int b) throws IOException {
+			super.write(b);
+			count++;
+		}
+
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/*
+	 * close writes what is still queued and closes the file, waiting up to
+	 * CLOSE_WAIT_MILLIS for the writer. Events offered after close are
+	 * dropped.
+	 */
+	public void close() {
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(CLOSE_WAIT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	// The file being written, or the last one
+	public File getFile() {
+		return file;
+	}
+
+	// Rows written to files so far
+	public long getWritten() {
+		return written.get();
+	}
+
+	// Events lost to a full queue, a write error or close
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	// The error that stopped the export, or null
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/***************************************************************************************
+	 *************************************** READING ***************************************
+	 ***************************************************************************************/
+	/*
+	 * toCsv converts a columnar file to the CSV the csv format writes. A
+	 * chunk cut short by a crash ends the conversion without an error.
+	 */
+	public static long toCsv(File file, PrintStream csv) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long rowsRead = 0;
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a telemetry export");
+			}
+			in.readUTF();
+			in.readLong();
+			int tables = in.readByte();
+			String[] names = new String[tables];
+			int[][] scales = new int[tables][];
+			for (int t = 0; t < tables; t++) {
+				names[t] = in.readUTF();
+				scales[t] = new int[in.readByte()];
+				for (int c = 0; c < scales[t].length; c++) {
+					in.readUTF();
+					scales[t][c] = in.readInt();
+				}
+			}
+			csv.println(CSV_HEADER);
+			Inflater inflater = new Inflater();
+			while (true) {
+				int t;
+				int count, rawLength, length;
+				byte[] chunk;
+				try {
+					t = in.readByte();
+					count = in.readInt();
+					rawLength = in.readInt();
+					length = in.readInt();
+					chunk = new byte[length];
+					in.readFully(chunk);
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] bytes = new byte[rawLength];
+				inflater.reset();
+				inflater.setInput(chunk);
+				try {
+					inflater.inflate(bytes);
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupt chunk in " + file, e);
+				}
+				ByteArrayInputStream blocks = new ByteArrayInputStream(bytes);
+				long[][] values = new long[scales[t].length][count];
+				for (long[] column : values) {
+					long previous = 0;
+					for (int i = 0; i < count; i++) {
+						previous += unZigZag(readVarLong(blocks));
+						column[i] = previous;
+					}
+				}
+				for (int i = 0; i < count; i++) {
+					long[] row = new long[values.length];
+					for (int c = 0; c < values.length; c++) {
+						row[c] = values[c][i];
+					}
+					StringBuilder line = new StringBuilder().append(row[0]).append(',').append(names[t]);
+					if (t == SAMPLES) {
+						line.append(",,,,,,").append((double) row[1] / scales[t][1]).append(',')
+								.append((double) row[2] / scales[t][2]);
+					} else {
+						line.append(',').append(row[1]).append(',').append((char) row[2]).append(',').append(row[3])
+								.append(',').append(row[4] != 0).append(',').append(row[5]).append(",,");
+					}
+					csv.println(line);
+				}
+				rowsRead += count;
+			}
+			inflater.end();
+		} finally {
+			in.close();
+		}
+		return rowsRead;
+	}
+
+	/*
+	 * Converts an export to CSV on standard output, or with --bench writes a
+	 * simulated run (a sample every two seconds, a command every ten) in both
+	 * formats and compares their size and the time taken to hand off events.
+	 *
+	 *     java TelemetryExporter <file.crx>
+	 *     java TelemetryExporter --bench [hours] [dir]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 1 && !args[0].equals("--bench")) {
+			toCsv(new File(args[0]), System.out);
+			return;
+		}
+		int hours = args.length > 1 ? Integer.parseInt(args[1]) : 24;
+		File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"), "export-bench");
+		java.util.Random random = new java.util.Random(3);
+		for (Format format : Format.values()) {
+			TelemetryExporter exporter = new TelemetryExporter(dir, "bench-" + format.name().toLowerCase(Locale.ROOT),
+					format, DEFAULT_FILE_BYTES * 64);
+			LatencyHistogram handOff = new LatencyHistogram();
+			long start = 1700000000000L;
+			double temperature = 72, humidity = 50;
+			for (long t = 0; t < hours * 3600000L; t += 2000) {
+				temperature += random.nextGaussian() * 0.05;
+				humidity += random.nextGaussian() * 0.1;
+				long before = System.nanoTime();
+				// The DHT11 reports whole degrees and percent, to one decimal
+				exporter.sampleReceived(new DHT11Sample(start + t, Math.round(temperature * 10) / 10.0,
+						Math.round(humidity * 10) / 10.0));
+				if (t % 10000 == 0) {
+					exporter.command(start + t, 2, 's', 100 + random.nextInt(50), true, 2000000 + random.nextInt(400000));
+				}
+				handOff.record(System.nanoTime() - before);
+				if (exporter.queue.size() > QUEUE_SIZE / 2) {
+					// Let the writer catch up, as real time would
+					Thread.sleep(1);
+				}
+			}
+			exporter.close();
+			System.out.printf("%-8s %7d rows  %8.1f KB  dropped %d  hand-off p99 %5.1f us max %6.1f us  %s%n", format,
+					exporter.getWritten(), exporter.getFile().length() / 1024.0, exporter.getDropped(),
+					handOff.percentile(0.99) / 1000.0, handOff.getMax() / 1000.0, exporter.getFile());
+		}
+	}
+}
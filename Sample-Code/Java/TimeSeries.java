@@ -0,0 +1,203 @@
+import java.util.Arrays;
+
+/*
+ * TimeSeries keeps the history of one sensor value in fixed-size primitive
+ * rings: the raw samples, plus min/max/mean rollups over 10 second and 1
+ * minute buckets that reach much further back than the raw data. Appending a
+ * sample is O(1) and never allocates; once a ring is full the oldest entry is
+ * overwritten.
+ *
+ * Timestamps are milliseconds and must not go backwards; older samples are
+ * dropped. Queries copy the entries in a time range into caller-owned arrays
+ * and use a binary search to find the start, so they never scan the whole
+ * history.
+ */
+public class TimeSeries {
+	// Defaults hold a day of 1 Hz samples, 2 days of 10 s and 2 weeks of 1 min rollups
+	public static final int DEFAULT_RAW_CAPACITY = 86400;
+	public static final int DEFAULT_TEN_SECOND_CAPACITY = 17280;
+	public static final int DEFAULT_MINUTE_CAPACITY = 20160;
+
+	private long[] times;
+	private double[] values;
+	private int start = 0, size = 0;
+	private Rollup tenSeconds, minutes;
+
+	// Constructor
+	public TimeSeries() {
+		this(DEFAULT_RAW_CAPACITY, DEFAULT_TEN_SECOND_CAPACITY, DEFAULT_MINUTE_CAPACITY);
+	}
+
+	public TimeSeries(int rawCapacity, int tenSecondCapacity, int minuteCapacity) {
+		times = new long[rawCapacity];
+		values = new double[rawCapacity];
+		tenSeconds = new Rollup(Resolution.TEN_SECONDS.getBucketMillis(), tenSecondCapacity);
+		minutes = new Rollup(Resolution.ONE_MINUTE.getBucketMillis(), minuteCapacity);
+	}
+
+	public synchronized void append(long time, double value) {
+		if (size > 0 && time < times[index(size - 1)]) {
+			return;
+		}
+		if (size < times.length) {
+			times[index(size)] = time;
+			values[index(size)] = value;
+			size++;
+		} else {
+			times[start] = time;
+			values[start] = value;
+			start = (start + 1) % times.length;
+		}
+		tenSeconds.add(time, value);
+		minutes.add(time, value);
+	}
+
+	/*
+	 * query copies every entry with from <= time < to at the given resolution
+	 * into the output arrays and returns how many were copied, at most the
+	 * length of the arrays. For raw samples min, max and mean are all the
+	 * sample itself; any of the value arrays may be null if not needed.
+	 */
+	public synchronized int query(long from, long to, Resolution resolution, long[] outTimes, double[] outMin,
+			double[] outMax, double[] outMean) {
+		if (resolution == Resolution.TEN_SECONDS) {
+			return tenSeconds.query(from, to, outTimes, outMin, outMax, outMean);
+		}
+		if (resolution == Resolution.ONE_MINUTE) {
+			return minutes.query(from, to, outTimes, outMin, outMax, outMean);
+		}
+		int first = lowerBound(times, start, size, from);
+		int count = 0;
+		for (int i = first; i < size && count < outTimes.length; i++) {
+			int slot = index(i);
+			if (times[slot] >= to) {
+				break;
+			}
+			outTimes[count] = times[slot];
+			if (outMin != null) {
+				outMin[count] = values[slot];
+			}
+			if (outMax != null) {
+				outMax[count] = values[slot];
+			}
+			if (outMean != null) {
+				outMean[count] = values[slot];
+			}
+			count++;
+		}
+		return count;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized long firstTime() {
+		return size == 0 ? Long.MIN_VALUE : times[start];
+	}
+
+	public synchronized long lastTime() {
+		return size == 0 ? Long.MIN_VALUE : times[index(size - 1)];
+	}
+
+	public synchronized void clear() {
+		start = 0;
+		size = 0;
+		tenSeconds.clear();
+		minutes.clear();
+	}
+
+	private int index(int logical) {
+		return (start + logical) % times.length;
+	}
+
+	// First logical index whose time is >= from, in a ring of sorted times
+	private static int lowerBound(long[] times, int start, int size, long from) {
+		int low = 0, high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[(start + mid) % times.length] < from) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * Rollup is a ring of fixed-width buckets, each holding the bucket's start
+	 * time and the min, max, sum and count of the samples that fell in it.
+	 */
+	private static class Rollup {
+		private long width;
+		private long[] bucketTimes;
+		private double[] min, max, sum;
+		private int[] count;
+		private int start = 0, size = 0;
+
+		Rollup(long width, int capacity) {
+			this.width = width;
+			bucketTimes = new long[capacity];
+			min = new double[capacity];
+			max = new double[capacity];
+			sum = new double[capacity];
+			count = new int[capacity];
+		}
+
+		void add(long time, double value) {
+			long bucket = time - Math.floorMod(time, width);
+			int last = (start + size - 1) % bucketTimes.length;
+			if (size > 0 && bucketTimes[last] == bucket) {
+				min[last] = Math.min(min[last], value);
+				max[last] = Math.max(max[last], value);
+				sum[last] += value;
+				count[last]++;
+				return;
+			}
+			int slot;
+			if (size < bucketTimes.length) {
+				slot = (start + size) % bucketTimes.length;
+				size++;
+			} else {
+				slot = start;
+				start = (start + 1) % bucketTimes.length;
+			}
+			bucketTimes[slot] = bucket;
+			min[slot] = value;
+			max[slot] = value;
+			sum[slot] = value;
+			count[slot] = 1;
+		}
+
+		int query(long from, long to, long[] outTimes, double[] outMin, double[] outMax, double[] outMean) {
+			// A bucket that started before from may still hold samples after it
+			int first = lowerBound(bucketTimes, start, size, from - width + 1);
+			int n = 0;
+			for (int i = first; i < size && n < outTimes.length; i++) {
+				int slot = (start + i) % bucketTimes.length;
+				if (bucketTimes[slot] >= to) {
+					break;
+				}
+				outTimes[n] = bucketTimes[slot];
+				if (outMin != null) {
+					outMin[n] = min[slot];
+				}
+				if (outMax != null) {
+					outMax[n] = max[slot];
+				}
+				if (outMean != null) {
+					outMean[n] = sum[slot] / count[slot];
+				}
+				n++;
+			}
+			return n;
+		}
+
+		void clear() {
+			start = 0;
+			size = 0;
+			Arrays.fill(count, 0);
+		}
+	}
+}
@@ -0,0 +1,9 @@
+/*
+ * TransportFactory creates the DeviceTransport behind a named link. The
+ * LinkPool asks for each link once and shares the result between every
+ * device on that link.
+ */
+public interface TransportFactory {
+
+	DeviceTransport createTransport(String link);
+}
@@ -0,0 +1,118 @@
+import java.awt.Color;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+
+/*
+ * UiUpdateBus is the view model between the background threads and Swing.
+ * Producers (the clock, the acquisition timer, the sensor refresh) publish
+ * new values to a Property from any thread; the bus hands every pending
+ * change to the event thread in one invokeLater and applies them there
+ * together, so a burst of updates costs one trip to the event thread and one
+ * layout and repaint pass.
+ *
+ * A Property only touches its component when the value has actually changed
+ * since it was last shown, and only the latest value published before a flush
+ * is applied. Once a component's text, colour or enabled state is bound to a
+ * Property it must only be changed through it.
+ */
+public class UiUpdateBus {
+	private final ConcurrentLinkedQueue<Property<?>> dirty = new ConcurrentLinkedQueue<Property<?>>();
+	private final AtomicBoolean flushPending = new AtomicBoolean();
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/*
+	 * Property is one piece of state shown by the GUI. set may be called from
+	 * any thread; apply is only ever called on the event thread.
+	 */
+	public static abstract class Property<T> {
+		private final UiUpdateBus bus;
+		private final AtomicReference<T> pending = new AtomicReference<T>();
+		private final AtomicBoolean queued = new AtomicBoolean();
+		private T shown;
+
+		protected Property(UiUpdateBus bus) {
+			this.bus = bus;
+		}
+
+		public void set(T value) {
+			pending.set(value);
+			if (queued.compareAndSet(false, true)) {
+				bus.publish(this);
+			}
+		}
+
+		// Latest value published, which may not be on screen yet
+		public T get() {
+			return pending.get();
+		}
+
+		void flush() {
+			queued.set(false);
+			T value = pending.get();
+			if (value != null && !value.equals(shown)) {
+				shown = value;
+				apply(value);
+			}
+		}
+
+		protected abstract void apply(T value);
+	}
+
+	// Binds a label's text
+	public Property<String> text(final JLabel label) {
+		return new Property<String>(this) {
+			protected void apply(String value) {
+				label.setText(value);
+			}
+		};
+	}
+
+	// Binds a component's foreground colour; use shared Color constants
+	public Property<Color> foreground(final JComponent component) {
+		return new Property<Color>(this) {
+			protected void apply(Color value) {
+				component.setForeground(value);
+			}
+		};
+	}
+
+	// Binds the enabled state of one or more components together
+	public Property<Boolean> enabled(final JComponent... components) {
+		return new Property<Boolean>(this) {
+			protected void apply(Boolean value) {
+				for (JComponent component : components) {
+					component.setEnabled(value);
+				}
+			}
+		};
+	}
+
+	private void publish(Property<?> property) {
+		dirty.add(property);
+		if (flushPending.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(flush);
+		}
+	}
+
+	/*
+	 * flush applies every pending change on the event thread. The flag is
+	 * cleared before draining, so a value published while the queue is being
+	 * drained is either applied now or triggers the next flush, never lost.
+	 */
+	private void flush() {
+		flushPending.set(false);
+		Property<?> property;
+		while ((property = dirty.poll()) != null) {
+			property.flush();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * VirtualScheduler is a PeriodicScheduler on a virtual clock, for tests and
+ * simulations. Time only moves when advance is called; advance runs every
+ * task that falls due on the calling thread, in deadline order (tasks due at
+ * the same time run in the order they were scheduled), setting the clock to
+ * each task's deadline as it goes. A 20 minute acquisition therefore takes
+ * as long as its tasks take to run, and runs the same way every time.
+ *
+ * Pipelines built on newPipelineExecutor, such as the humidity interlock
+ * and the command dispatcher, run their stages inline on the advancing
+ * thread too, so a sensor sample fed in by a task has been through the
+ * interlock, and whatever the interlock triggered has happened and been
+ * sent, by the time the task returns. Deadline timers, which run recipe
+ * steps, put their runs on the virtual clock like any other task.
+ *
+ * Work handed to threads outside the scheduler, such as a link's ACK window,
+ * still runs in real time.
+ */
+public class VirtualScheduler extends PeriodicScheduler {
+	// 2026-01-01 00:00 UTC, so runs print the same timestamps every time
+	public static final long DEFAULT_EPOCH_MILLIS = 1767225600000L;
+
+	private VirtualClock clock;
+	private PriorityQueue<Task> queue = new PriorityQueue<Task>();
+	private long scheduled = 0;
+	private boolean shutDown = false;
+
+	// A clock that is only moved by its scheduler
+	private static class VirtualClock implements Clock {
+		private final long epochMillis;
+		private volatile long nanos = 0;
+
+		VirtualClock(long epochMillis) {
+			this.epochMillis = epochMillis;
+		}
+
+		public long nanoTime() {
+			return nanos;
+		}
+
+		public long currentTimeMillis() {
+			return epochMillis + nanos / 1000000;
+		}
+	}
+
+	// One pending run of a task
+	private static class Task implements Comparable<Task> {
+		final long due, order;
+		final Runnable run;
+
+		Task(long due, long order, Runnable run) {
+			this.due = due;
+			this.order = order;
+			this.run = run;
+		}
+
+		public int compareTo(Task other) {
+			if (due != other.due) {
+				return due < other.due ? -1 : 1;
+			}
+			return Long.compare(order, other.order);
+		}
+	}
+
+	// Constructor
+	public VirtualScheduler() {
+		this(new VirtualClock(DEFAULT_EPOCH_MILLIS));
+	}
+
+	public VirtualScheduler(long epochMillis) {
+		this(new VirtualClock(epochMillis));
+	}
+
+	private VirtualScheduler(VirtualClock clock) {
+		super(clock);
+		this.clock = clock;
+	}
+
+	public ScheduledTask schedule(final Runnable task, long delay, TimeUnit unit) {
+		final ScheduledTask handle = new ScheduledTask();
+		add(clock.nanos + Math.max(0, unit.toNanos(delay)), new Runnable() {
+			public void run() {
+				if (!handle.isCancelled()) {
+					task.run();
+				}
+			}
+		});
+		return handle;
+	}
+
+	public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+		ScheduledTask handle = new ScheduledTask();
+		scheduleRun(handle, task, clock.nanos + Math.max(0, unit.toNanos(initialDelay)), unit.toNanos(period));
+		return handle;
+	}
+
+	private void scheduleRun(final ScheduledTask handle, final Runnable task, final long deadline,
+			final long periodNanos) {
+		add(deadline, new Runnable() {
+			public void run() {
+				if (handle.isCancelled()) {
+					return;
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				scheduleRun(handle, task, deadline + periodNanos, periodNanos);
+			}
+		});
+	}
+
+	private synchronized void add(long due, Runnable run) {
+		if (!shutDown) {
+			queue.add(new Task(due, scheduled++, run));
+		}
+	}
+
+	private synchronized Task next(long until) {
+		Task head = queue.peek();
+		if (head == null || head.due > until || shutDown) {
+			return null;
+		}
+		return queue.poll();
+	}
+
+	/*
+	 * advance moves the clock forward by the given time, running every task
+	 * that falls due on the way, including tasks those tasks schedule.
+	 * Returns the number of task runs.
+	 */
+	public long advance(long duration, TimeUnit unit) {
+		long until = clock.nanos + unit.toNanos(duration);
+		long runs = 0;
+		Task task;
+		while ((task = next(until)) != null) {
+			clock.nanos = Math.max(clock.nanos, task.due);
+			task.run.run();
+			runs++;
+		}
+		clock.nanos = Math.max(clock.nanos, until);
+		return runs;
+	}
+
+	// Task runs waiting on the clock
+	public synchronized int getPending() {
+		return queue.size();
+	}
+
+	public ExecutorService newPipelineExecutor(String threadName, int priority) {
+		return new AbstractExecutorService() {
+			private volatile boolean shutdown = false;
+
+			public void execute(Runnable command) {
+				command.run();
+			}
+
+			public void shutdown() {
+				shutdown = true;
+			}
+
+			public List<Runnable> shutdownNow() {
+				shutdown = true;
+				return Collections.emptyList();
+			}
+
+			public boolean isShutdown() {
+				return shutdown;
+			}
+
+			public boolean isTerminated() {
+				return shutdown;
+			}
+
+			public boolean awaitTermination(long timeout, TimeUnit unit) {
+				return shutdown;
+			}
+		};
+	}
+
+	public DeadlineTimer newDeadlineTimer(String threadName) {
+		return new DeadlineTimer() {
+			private ScheduledTask pending;
+			private boolean stopped = false;
+
+			public synchronized void at(long deadline, Runnable task) {
+				if (stopped) {
+					return;
+				}
+				if (pending != null) {
+					pending.cancel();
+				}
+				pending = schedule(task, deadline - clock.nanos, TimeUnit.NANOSECONDS);
+			}
+
+			public synchronized void shutdown() {
+				stopped = true;
+				if (pending != null) {
+					pending.cancel();
+				}
+			}
+		};
+	}
+
+	public void shutdown() {
+		synchronized (this) {
+			shutDown = true;
+			queue.clear();
+		}
+		super.shutdown();
+	}
+}
@@ -0,0 +1,28 @@
+#!/bin/sh
+#
+# Starts the electrospinner GUI with an AppCDS archive of its classes, which
+# cuts the time to the first frame on the Raspberry Pi.
+#
+#     ./launch.sh [GUIrunner options]
+#
+# The archive is created by a training run the first time, and again whenever
+# a class file is newer than it. The training run opens the window once with
+# --startup-probe and dumps every class it loaded. If the JVM cannot use the
+# archive (a different JDK or class path) it falls back to starting without
+# it. CARDIO_CP overrides the class path and CARDIO_CDS the archive location.
+# Compare the two with:  java StartupBenchmark -a cardio.jsa
+
+cd "$(dirname "$0")" || exit 1
+CP=${CARDIO_CP:-.}
+ARCHIVE=${CARDIO_CDS:-cardio.jsa}
+
+if [ ! -f "$ARCHIVE" ] || [ -n "$(find . -name '*.class' -newer "$ARCHIVE" | head -n 1)" ]; then
+	rm -f "$ARCHIVE"
+	java -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$CP" GUIrunner --startup-probe > /dev/null 2>&1 \
+		|| rm -f "$ARCHIVE"
+fi
+
+if [ -f "$ARCHIVE" ]; then
+	exec java -XX:SharedArchiveFile="$ARCHIVE" -Xshare:auto -cp "$CP" GUIrunner "$@"
+fi
+exec java -cp "$CP" GUIrunner "$@"
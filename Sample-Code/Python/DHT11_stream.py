@@ -0,0 +1,49 @@
+######################################################################
+# Program: DHT11_stream.py
+# Description: Long-running DHT11 reader for the electrospinner GUI.
+# Instead of being started once per reading, this script is started
+# once by the Java side and keeps printing one line per sample:
+#
+#     <epoch milliseconds> <temperature F> <humidity %>
+#
+# A failed read prints "<epoch milliseconds> error" so the GUI can
+# count it instead of silently losing it. Output is flushed after
+# every line so the Java side sees each sample as soon as it is read.
+######################################################################
+
+# Import necessary libraries
+import sys
+import time
+import Adafruit_DHT
+
+# The DHT11 is wired to GPIO 4 and cannot be read faster than once a second.
+# Usage: DHT11_stream.py [interval seconds] [GPIO pin], so a Pi serving
+# several rigs can run one stream per sensor.
+sensor = Adafruit_DHT.DHT11
+pin = 4
+interval = 1.0
+if len(sys.argv) > 1:
+    interval = max(1.0, float(sys.argv[1]))
+if len(sys.argv) > 2:
+    pin = int(sys.argv[2])
+
+next_read = time.time()
+while True:
+    humidity, temperature = Adafruit_DHT.read(sensor, pin)
+    stamp = int(time.time() * 1000)
+
+    if humidity is not None and temperature is not None:
+        # Convert to Fahrenheit to match what the GUI displays
+        temperature = temperature * 9.0 / 5.0 + 32.0
+        sys.stdout.write("%d %.1f %.1f\n" % (stamp, temperature, humidity))
+    else:
+        sys.stdout.write("%d error\n" % stamp)
+    sys.stdout.flush()
+
+    # Keep a fixed pace regardless of how long the read took
+    next_read += interval
+    delay = next_read - time.time()
+    if delay > 0:
+        time.sleep(delay)
+    else:
+        next_read = time.time()